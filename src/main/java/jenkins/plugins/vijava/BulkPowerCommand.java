@@ -0,0 +1,74 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Hudson;
+
+import java.util.List;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * CLI command powering on, shutting down, suspending or reverting the virtual
+ * machines of a hypervisor selected by name pattern or label, e.g.
+ * <tt>vmware-power "My vCenter" shutdown -pattern "build-*"</tt>.
+ *
+ * Prints one line per virtual machine and exits with 1 if any failed.
+ *
+ * @author jbh
+ */
+@Extension
+public class BulkPowerCommand extends CLICommand {
+
+    @Argument(index = 0, metaVar = "HYPERVISOR", required = true, usage = "Description of the hypervisor cloud")
+    public String hypervisorDescription;
+
+    @Argument(index = 1, metaVar = "ACTION", required = true, usage = "power-on, shutdown, suspend or revert")
+    public String action;
+
+    @Option(name = "-pattern", metaVar = "GLOB", usage = "Virtual machine names to select, * and ? being wildcards")
+    public String pattern;
+
+    @Option(name = "-label", metaVar = "LABEL", usage = "Select the virtual machines of slaves and pools serving this label")
+    public String label;
+
+    @Option(name = "-snapshot", metaVar = "NAME", usage = "Snapshot to revert to, the current snapshot if omitted")
+    public String snapshotName;
+
+    @Override
+    public String getName() {
+        return "vmware-power";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Powers on, shuts down, suspends or reverts virtual machines of a vSphere hypervisor";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+        if (hypervisor == null) {
+            stderr.println("No hypervisor " + hypervisorDescription);
+            return -1;
+        }
+        List<BulkPowerOperation.Result> results;
+        try {
+            results = hypervisor.powerAll(BulkPowerOperation.Action.parse(action), pattern, label, snapshotName, stderr);
+        } catch (IllegalArgumentException e) {
+            stderr.println(e.getMessage());
+            return -1;
+        }
+        int failed = 0;
+        for (BulkPowerOperation.Result result : results) {
+            stdout.println(result);
+            if (result.getOutcome() == BulkPowerOperation.Outcome.FAILED) {
+                failed++;
+            }
+        }
+        stderr.println(results.size() + " virtual machines, " + failed + " failed");
+        return failed > 0 ? 1 : 0;
+    }
+}
@@ -0,0 +1,350 @@
+package jenkins.plugins.vijava;
+
+import hudson.Util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Applies one power action to every virtual machine of a hypervisor selected
+ * by a name pattern or a label, for starting or stopping a whole fleet at
+ * once.
+ *
+ * Each task is submitted on a pooled session that is given back right away;
+ * the tasks are tracked together by managed object reference through the
+ * hypervisor's {@link VirtualMachineWatcher}, so waiting for them holds no
+ * session. Power ons go through the {@link PowerOnScheduler}; the other
+ * actions keep at most as many tasks in flight per host as the scheduler
+ * admits power ons. Every selected virtual machine gets a {@link Result},
+ * including those already in the requested state.
+ *
+ * @author jbh
+ */
+final class BulkPowerOperation {
+
+    /**
+     * Longest a bulk operation waits for its tasks before failing the rest.
+     */
+    static final long TIMEOUT = 15 * 60 * 1000;
+
+    enum Action {
+        POWER_ON("Power on"), SHUTDOWN("Shut down"), SUSPEND("Suspend"), REVERT("Revert to snapshot");
+
+        private final String displayName;
+
+        private Action(String displayName) {
+            this.displayName = displayName;
+        }
+
+        String getDisplayName() {
+            return displayName;
+        }
+
+        /**
+         * Parses an action name, ignoring case and accepting dashes, e.g.
+         * <tt>power-on</tt>.
+         */
+        static Action parse(String value) {
+            try {
+                return valueOf(Util.fixNull(value).trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown action " + value + ", expected one of power-on, shutdown, suspend, revert");
+            }
+        }
+    }
+
+    enum Outcome {
+        DONE, SKIPPED, FAILED
+    }
+
+    /**
+     * What happened to one virtual machine.
+     */
+    static final class Result {
+        private final String name;
+        private final String moRef;
+        private final Outcome outcome;
+        private final String message;
+        private final long durationMillis;
+
+        Result(VirtualMachineInfo info, Outcome outcome, String message, long durationMillis) {
+            this.name = info.getName();
+            this.moRef = info.getMoRef();
+            this.outcome = outcome;
+            this.message = message;
+            this.durationMillis = durationMillis;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getMoRef() {
+            return moRef;
+        }
+
+        Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * Why the virtual machine was skipped or failed, or null.
+         */
+        String getMessage() {
+            return message;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + outcome + (message != null ? ": " + message : "") + " (" + durationMillis + " ms)";
+        }
+    }
+
+    private final Hypervisor hypervisor;
+    private final Action action;
+    private final String snapshotName;
+    private final PrintStream logger;
+
+    BulkPowerOperation(Hypervisor hypervisor, Action action, String snapshotName, PrintStream logger) {
+        this.hypervisor = hypervisor;
+        this.action = action;
+        this.snapshotName = snapshotName;
+        this.logger = logger;
+    }
+
+    /**
+     * Virtual machines whose name matches the glob pattern, <tt>*</tt> and
+     * <tt>?</tt> being wildcards, and that serve the label. At least one of
+     * the two must be given.
+     */
+    List<VirtualMachineInfo> select(String pattern, String label) throws VMWareException {
+        pattern = Util.fixEmptyAndTrim(pattern);
+        label = Util.fixEmptyAndTrim(label);
+        if (pattern == null && label == null) {
+            throw new IllegalArgumentException("Select the virtual machines by name pattern, label or both");
+        }
+        Pattern regex = pattern != null ? toRegex(pattern) : null;
+        Set<String> labelled = label != null ? hypervisor.getLabelledVirtualMachineNames(label) : null;
+        List<VirtualMachineInfo> selected = new ArrayList<VirtualMachineInfo>();
+        for (VirtualMachineInfo info : hypervisor.getInventory().getAll()) {
+            if (info.getName() == null) {
+                continue;
+            }
+            if ((regex == null || regex.matcher(info.getName()).matches())
+                    && (labelled == null || labelled.contains(info.getName()))) {
+                selected.add(info);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Applies the action to the virtual machines and waits for all of them,
+     * returning the results in the order of <tt>targets</tt>.
+     */
+    List<Result> run(final List<VirtualMachineInfo> targets) throws VMWareException {
+        if (targets.isEmpty()) {
+            return Collections.emptyList();
+        }
+        logger.println(action.getDisplayName() + " of " + targets.size() + " virtual machines on "
+                + hypervisor.getHypervisorDescription());
+        VimCalls.Scope calls = VimCalls.open("bulk power", action.getDisplayName() + " on " + hypervisor.getHypervisorDescription());
+        try {
+            return track(targets);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VMWareException("Interrupted waiting for " + action.getDisplayName().toLowerCase(Locale.ENGLISH)
+                    + " of " + targets.size() + " virtual machines", e);
+        } finally {
+            calls.close();
+        }
+    }
+
+    private List<Result> track(List<VirtualMachineInfo> targets) throws InterruptedException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        for (VirtualMachineInfo target : targets) {
+            results.put(target.getMoRef(), null);
+        }
+        int maxPerHost = hypervisor.getMaxPowerOnsPerHost();
+        LinkedList<VirtualMachineInfo> waiting = new LinkedList<VirtualMachineInfo>(targets);
+        Map<String, Integer> inFlightByHost = new HashMap<String, Integer>();
+        List<Tracked> inFlight = new ArrayList<Tracked>();
+        BlockingQueue<Tracked> finished = new LinkedBlockingQueue<Tracked>();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (!waiting.isEmpty() || !inFlight.isEmpty()) {
+            for (Iterator<VirtualMachineInfo> it = waiting.iterator(); it.hasNext();) {
+                VirtualMachineInfo target = it.next();
+                String host = String.valueOf(target.getHost());
+                int onHost = inFlightByHost.containsKey(host) ? inFlightByHost.get(host) : 0;
+                if (action != Action.POWER_ON && onHost >= maxPerHost) {
+                    continue;
+                }
+                it.remove();
+                Tracked tracked = new Tracked(target);
+                try {
+                    PendingResult<?> future = submit(target);
+                    if (future == null) {
+                        results.put(target.getMoRef(), new Result(target, Outcome.SKIPPED,
+                                action == Action.POWER_ON ? "already powered on" : "not powered on", 0));
+                        continue;
+                    }
+                    tracked.track(future, finished);
+                    inFlight.add(tracked);
+                    inFlightByHost.put(host, onHost + 1);
+                } catch (Exception e) {
+                    results.put(target.getMoRef(), tracked.failed(e));
+                }
+            }
+            if (inFlight.isEmpty()) {
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            Tracked done = remaining > 0 ? finished.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            if (done == null) {
+                for (Tracked tracked : inFlight) {
+                    tracked.future.cancel(false);
+                    results.put(tracked.target.getMoRef(), tracked.failed(new VMWareException("Timed out after "
+                            + TIMEOUT / 1000 + "s", null)));
+                }
+                for (VirtualMachineInfo target : waiting) {
+                    results.put(target.getMoRef(), new Result(target, Outcome.FAILED, "Not started before the timeout", 0));
+                }
+                break;
+            }
+            inFlight.remove(done);
+            String host = String.valueOf(done.target.getHost());
+            inFlightByHost.put(host, inFlightByHost.get(host) - 1);
+            Result result = done.result();
+            results.put(done.target.getMoRef(), result);
+            logger.println(result);
+        }
+        return new ArrayList<Result>(results.values());
+    }
+
+    /**
+     * Starts the action on one virtual machine and returns a future completed
+     * when it is done, or null if there is nothing to do.
+     */
+    private PendingResult<?> submit(VirtualMachineInfo target) throws Exception {
+        VirtualMachineWatcher watcher = hypervisor.getWatcher();
+        switch (action) {
+        case POWER_ON:
+            if (target.isPoweredOn()) {
+                return null;
+            }
+            return hypervisor.getPowerOnScheduler().powerOn(target, logger);
+        case SHUTDOWN:
+            if (!target.isPoweredOn()) {
+                return null;
+            }
+            if (target.isToolsRunning()) {
+                hypervisor.execute(target, new Hypervisor.DomainCall<Void>() {
+                    public Void call(VirtualMachine domain) throws Exception {
+                        VimCalls.shutdownGuest(domain);
+                        return null;
+                    }
+                });
+                return watcher.await(target.getMoRef(), VirtualMachineWatcher.POWERED_OFF);
+            }
+            return watcher.awaitTask(hypervisor.execute(target, new Hypervisor.DomainCall<Task>() {
+                public Task call(VirtualMachine domain) throws Exception {
+                    return VimCalls.powerOff(domain);
+                }
+            }));
+        case SUSPEND:
+            if (!target.isPoweredOn()) {
+                return null;
+            }
+            return watcher.awaitTask(hypervisor.execute(target, new Hypervisor.DomainCall<Task>() {
+                public Task call(VirtualMachine domain) throws Exception {
+                    return VimCalls.suspend(domain);
+                }
+            }));
+        default:
+            return watcher.awaitTask(hypervisor.execute(target, new Hypervisor.DomainCall<Task>() {
+                public Task call(VirtualMachine domain) throws Exception {
+                    ManagedObjectReference snapshot = VirtualMachineCloner.findSnapshot(domain, snapshotName);
+                    if (snapshot == null) {
+                        throw new VMWareException("No snapshot " + Util.fixNull(snapshotName) + " to revert to", null);
+                    }
+                    return VimCalls.revertToSnapshot(domain, snapshot);
+                }
+            }));
+        }
+    }
+
+    private static Pattern toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : glob.split("((?<=[*?])|(?=[*?]))")) {
+            if ("*".equals(part)) {
+                regex.append(".*");
+            } else if ("?".equals(part)) {
+                regex.append('.');
+            } else if (part.length() > 0) {
+                regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * A submitted action and when it was submitted.
+     */
+    private static final class Tracked {
+        private final VirtualMachineInfo target;
+        private final long startedAt = System.currentTimeMillis();
+        private PendingResult<?> future;
+
+        Tracked(VirtualMachineInfo target) {
+            this.target = target;
+        }
+
+        void track(PendingResult<?> future, final BlockingQueue<Tracked> finished) {
+            this.future = future;
+            future.addListener(new Runnable() {
+                public void run() {
+                    finished.add(Tracked.this);
+                }
+            });
+        }
+
+        Result result() {
+            try {
+                future.get();
+                return new Result(target, Outcome.DONE, null, System.currentTimeMillis() - startedAt);
+            } catch (ExecutionException e) {
+                return failed(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            } catch (Exception e) {
+                return failed(e);
+            }
+        }
+
+        Result failed(Exception e) {
+            return new Result(target, Outcome.FAILED, e.getMessage() != null ? e.getMessage() : e.toString(),
+                    System.currentTimeMillis() - startedAt);
+        }
+    }
+}
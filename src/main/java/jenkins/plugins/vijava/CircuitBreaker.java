@@ -0,0 +1,215 @@
+package jenkins.plugins.vijava;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.MethodFault;
+
+/**
+ * Stops callers from piling up on a hypervisor that does not answer.
+ *
+ * Logins and calls that fail to reach the hypervisor, and logins slower than
+ * {@link #SLOW_LOGIN}, count as failures. After <tt>threshold</tt> of them in
+ * a row the breaker opens and {@link #check()} fails at once instead of
+ * letting callers wait for connect and TLS timeouts. Once the open delay has
+ * passed a single probe logs in on the executor; if it succeeds the breaker
+ * closes, otherwise it stays open for twice as long, up to a maximum.
+ *
+ * Errors reported by the hypervisor itself, such as a refused power on,
+ * prove it is reachable and are not counted.
+ *
+ * @author jbh
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * Logins taking longer than this count as failures even if they succeed.
+     */
+    static final long SLOW_LOGIN = 30 * 1000;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int threshold;
+    private final long openDelay;
+    private final long maxOpenDelay;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final Callable<?> probe;
+    private State state = State.CLOSED;
+    private int failures;
+    private Exception lastFailure;
+    private long delay;
+    private long openUntil;
+
+    /**
+     * @param threshold failures in a row that open the breaker
+     * @param openDelay how long the breaker stays open before the first probe
+     * @param maxOpenDelay longest time between two probes
+     * @param executor runs the probe, which may block on the hypervisor
+     * @param probe logs in and out of the hypervisor, throwing if it cannot
+     */
+    CircuitBreaker(String name, int threshold, long openDelay, long maxOpenDelay, ScheduledExecutorService scheduler,
+            Executor executor, Callable<?> probe) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openDelay = openDelay;
+        this.maxOpenDelay = maxOpenDelay;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.probe = probe;
+        this.delay = openDelay;
+    }
+
+    /**
+     * Throws unless the breaker is closed.
+     */
+    synchronized void check() throws VMWareException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long wait = Math.max(0, openUntil - System.currentTimeMillis());
+        throw new VMWareException(name + " is unavailable after " + failures + " failed attempts"
+                + (lastFailure != null ? " (" + lastFailure.getMessage() + ")" : "") + ", not trying again for "
+                + (state == State.HALF_OPEN ? "until a test login succeeds" : wait / 1000 + "s"), lastFailure);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Reports a login or call that reached the hypervisor and how long it took.
+     */
+    void succeeded(long millis) {
+        if (millis > SLOW_LOGIN) {
+            failed(new VMWareException("Login to " + name + " took " + millis / 1000 + "s", null));
+            return;
+        }
+        reset();
+    }
+
+    /**
+     * Reports a call on a pooled session that got an answer, including an
+     * error reported by the hypervisor, ending the current run of failures.
+     */
+    synchronized void reset() {
+        if (state == State.CLOSED) {
+            failures = 0;
+        }
+    }
+
+    /**
+     * Reports a login or call that did not get an answer from the hypervisor.
+     */
+    synchronized void failed(Exception e) {
+        lastFailure = e;
+        failures++;
+        if (state == State.CLOSED && failures >= threshold) {
+            LOGGER.log(Level.WARNING, "{0} failed {1} times in a row, failing fast for {2}s: {3}", new Object[] { name,
+                    failures, delay / 1000, e.getMessage() });
+            open();
+        }
+    }
+
+    private synchronized void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + delay;
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    startProbe();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // hypervisor stopped, nothing left to protect
+        }
+    }
+
+    private void startProbe() {
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            state = State.HALF_OPEN;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    probe();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // hypervisor stopped, nothing left to protect
+        }
+    }
+
+    private void probe() {
+        long start = System.currentTimeMillis();
+        Exception failure = null;
+        try {
+            probe.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+        long millis = System.currentTimeMillis() - start;
+        if (failure == null && millis > SLOW_LOGIN) {
+            failure = new VMWareException("Login to " + name + " took " + millis / 1000 + "s", null);
+        }
+        synchronized (this) {
+            if (failure == null) {
+                LOGGER.log(Level.INFO, "{0} is reachable again after {1} failed attempts", new Object[] { name, failures });
+                state = State.CLOSED;
+                failures = 0;
+                lastFailure = null;
+                delay = openDelay;
+            } else {
+                LOGGER.log(Level.FINE, "Test login to " + name + " failed", failure);
+                lastFailure = failure;
+                failures++;
+                delay = Math.min(delay * 2, maxOpenDelay);
+                open();
+            }
+        }
+    }
+
+    /**
+     * True if the exception, or one of its causes, means the hypervisor could
+     * not be reached at all: a socket, TLS or name resolution error, or a
+     * remote exception that is not a fault returned by the hypervisor, as
+     * vijava reports transport errors.
+     */
+    static boolean isUnreachable(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MethodFault) {
+                return false;
+            }
+            if (cause instanceof RemoteException) {
+                if (cause.getCause() == null) {
+                    return true;
+                }
+            } else if (cause instanceof IOException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -20,23 +20,42 @@
 package jenkins.plugins.vijava;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
 import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.NodeProperty;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
+import hudson.util.LogTaskListener;
 
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -49,10 +68,10 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import com.vmware.vim25.mo.Folder;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
 
 /**
@@ -61,16 +80,106 @@ import com.vmware.vim25.mo.VirtualMachine;
 public class Hypervisor extends Cloud {
 
     private static final Logger LOGGER = Logger.getLogger(Hypervisor.class.getName());    
+    private static final int DEFAULT_MAX_SESSIONS = 4;
+    /**
+     * Default SOAP connect and read timeouts, in seconds.
+     */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30;
+    private static final int DEFAULT_READ_TIMEOUT = 120;
+    private static final long INVENTORY_TIMEOUT = 2 * 60 * 1000;
+    private static final int LAUNCH_THREADS = 4;
+    private static final long CLONE_TIMEOUT = 10 * 60 * 1000;
+    private static final long SHUTDOWN_TIMEOUT = 5 * 60 * 1000;
+    /**
+     * How long folder names are cached for searches.
+     */
+    private static final long FOLDER_NAMES_TTL = 5 * 60 * 1000;
+    private static final int DEFAULT_POWER_ONS_PER_HOST = 4;
+    private static final int DEFAULT_POWER_ONS_PER_DATASTORE = 8;
+    /**
+     * How long a hypervisor that refused a login is left out of placement.
+     */
+    private static final long UNREACHABLE_TIMEOUT = 60 * 1000;
+    /**
+     * Inventory age beyond which a hypervisor is considered unreachable.
+     */
+    private static final long UNREACHABLE_STALENESS = 5 * 60 * 1000;
+    /**
+     * Failed logins or calls in a row after which callers fail fast.
+     */
+    private static final int BREAKER_THRESHOLD = 3;
+    private static final long BREAKER_OPEN_DELAY = 30 * 1000;
+    private static final long BREAKER_MAX_OPEN_DELAY = 5 * 60 * 1000;
+    /**
+     * Weight of the latest launch in the launch latency average.
+     */
+    private static final double LATENCY_SMOOTHING = 0.3;
     private final String hypervisorHost;
     private final String hypervisorSystemUrl;
     private final int hypervisorSshPort;
     private final String username;
     private final String password;
-    private transient List<JenkinsVirtualMachine> virtualMachineList = null;    
-    
-    @DataBoundConstructor
+    private final int maxSessions;
+    private final int instanceCap;
+    private final List<VirtualMachinePool> pools;
+    private final int maxPowerOnsPerHost;
+    private final int maxPowerOnsPerDatastore;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private transient volatile VirtualMachineIndex virtualMachineIndex;
+    private transient InventoryCache inventoryCache;
+    private transient VirtualMachineWatcher watcher;
+    private transient ExecutorService watcherExecutor;
+    private transient ExecutorService launchExecutor;
+    private transient ScheduledExecutorService scheduler;
+    private transient HypervisorConnectionPool connectionPool;
+    private transient CircuitBreaker circuitBreaker;
+    private transient SingleFlight<String, VirtualMachineInfo> refreshes;
+    private transient SingleFlight<String, Void> stops;
+    private transient PowerOnScheduler powerOnScheduler;
+    /**
+     * Pool members being started, cloned or destroyed, which must not be
+     * picked again until they are done.
+     */
+    private transient Set<String> pendingMembers;
+    private transient Map<VirtualMachinePool, WarmPool> warmPools;
+    private transient volatile long lastConnectFailure;
+    private transient volatile Map<String, String> folderNames;
+    private transient volatile long folderNamesFetchedAt;
+    private transient double launchLatency;
+    /**
+     * Set by {@link #stop()}, after which the lazy getters fail instead of
+     * starting new threads and sessions that nothing would stop.
+     */
+    private transient volatile boolean stopped;
+
     public Hypervisor(String hypervisorHost, int hypervisorSshPort, String hypervisorSystemUrl, String username,
             String password) {
+        this(hypervisorHost, hypervisorSshPort, hypervisorSystemUrl, username, password, DEFAULT_MAX_SESSIONS);
+    }
+
+    public Hypervisor(String hypervisorHost, int hypervisorSshPort, String hypervisorSystemUrl, String username,
+            String password, int maxSessions) {
+        this(hypervisorHost, hypervisorSshPort, hypervisorSystemUrl, username, password, maxSessions, 0, null);
+    }
+
+    public Hypervisor(String hypervisorHost, int hypervisorSshPort, String hypervisorSystemUrl, String username,
+            String password, int maxSessions, int instanceCap, List<VirtualMachinePool> pools) {
+        this(hypervisorHost, hypervisorSshPort, hypervisorSystemUrl, username, password, maxSessions, instanceCap, pools,
+                0, 0);
+    }
+
+    public Hypervisor(String hypervisorHost, int hypervisorSshPort, String hypervisorSystemUrl, String username,
+            String password, int maxSessions, int instanceCap, List<VirtualMachinePool> pools, int maxPowerOnsPerHost,
+            int maxPowerOnsPerDatastore) {
+        this(hypervisorHost, hypervisorSshPort, hypervisorSystemUrl, username, password, maxSessions, instanceCap, pools,
+                maxPowerOnsPerHost, maxPowerOnsPerDatastore, 0, 0);
+    }
+
+    @DataBoundConstructor
+    public Hypervisor(String hypervisorHost, int hypervisorSshPort, String hypervisorSystemUrl, String username,
+            String password, int maxSessions, int instanceCap, List<VirtualMachinePool> pools, int maxPowerOnsPerHost,
+            int maxPowerOnsPerDatastore, int connectTimeout, int readTimeout) {
         super("Hypervisor(libvirt)");      
         this.hypervisorHost = hypervisorHost;
         if (hypervisorSystemUrl != null && !hypervisorSystemUrl.equals("")) {
@@ -81,17 +190,32 @@ public class Hypervisor extends Cloud {
         this.hypervisorSshPort = hypervisorSshPort <= 0 ? 22 : hypervisorSshPort;
         this.username = username;
         this.password = password;
-        virtualMachineList = retrieveVirtualMachines();
+        this.maxSessions = maxSessions;
+        this.instanceCap = instanceCap;
+        this.pools = pools != null ? new ArrayList<VirtualMachinePool>(pools) : new ArrayList<VirtualMachinePool>();
+        this.maxPowerOnsPerHost = maxPowerOnsPerHost;
+        this.maxPowerOnsPerDatastore = maxPowerOnsPerDatastore;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
     }
 
-    private static ServiceInstance makeConnection(String host, String user, String password, int port, String systemURL) throws VMWareException {
+    /**
+     * Logs in with the given SOAP connect and read timeouts in seconds.
+     */
+    private static ServiceInstance makeConnection(String host, String user, String password, int port, String systemURL,
+            int connectTimeout, int readTimeout) throws VMWareException {
         ServiceInstance newConnection = null;
         URL hypervisorUri = null;
         try {
             hypervisorUri = constructHypervisorURI(host, user, port, systemURL);
             LOGGER.log(Level.INFO, "Trying to establish a connection to hypervisor URI: {0} as {1}/******",
                     new Object[] { hypervisorUri, user });
-            newConnection = new ServiceInstance(hypervisorUri, user, password, true);
+            long started = System.currentTimeMillis();
+            try {
+                newConnection = SoapTransport.login(hypervisorUri, user, password, connectTimeout * 1000, readTimeout * 1000);
+            } finally {
+                VimCalls.record("Login", "SessionManager", started);
+            }
             LOGGER.log(Level.INFO, "Established connection to hypervisor URI: {0} as {1}/******", new Object[] { hypervisorUri, user });
         } catch (Exception e) {
             throw new VMWareException("Failed to connect to "+host, e);
@@ -99,19 +223,6 @@ public class Hypervisor extends Cloud {
         return newConnection;
     }
 
-    private List<JenkinsVirtualMachine> retrieveVirtualMachines() {
-        List<JenkinsVirtualMachine> vmList = new ArrayList<JenkinsVirtualMachine>();
-        try {
-            Map<String, VirtualMachine> domains = getDomains();
-            for (Entry<String, VirtualMachine> domain : domains.entrySet()) {
-                vmList.add(new JenkinsVirtualMachine(this, domain.getKey()));
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage(), e);
-        }
-        return vmList;
-    }
-
     public String getHypervisorHost() {
         return hypervisorHost;
     }
@@ -132,80 +243,1039 @@ public class Hypervisor extends Cloud {
         return password;
     }
     
+    public int getMaxSessions() {
+        return maxSessions <= 0 ? DEFAULT_MAX_SESSIONS : maxSessions;
+    }
+
+    /**
+     * Maximum number of pool slaves running at the same time, 0 for no limit.
+     */
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    /**
+     * Maximum number of virtual machines powering on at the same time on one
+     * ESX host.
+     */
+    public int getMaxPowerOnsPerHost() {
+        return maxPowerOnsPerHost <= 0 ? DEFAULT_POWER_ONS_PER_HOST : maxPowerOnsPerHost;
+    }
+
+    /**
+     * Maximum number of virtual machines powering on at the same time from one
+     * datastore.
+     */
+    public int getMaxPowerOnsPerDatastore() {
+        return maxPowerOnsPerDatastore <= 0 ? DEFAULT_POWER_ONS_PER_DATASTORE : maxPowerOnsPerDatastore;
+    }
+
+    /**
+     * Seconds to wait for a connection to the vCenter.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout <= 0 ? DEFAULT_CONNECT_TIMEOUT : connectTimeout;
+    }
+
+    /**
+     * Seconds to wait for the answer to a call before giving up on it.
+     */
+    public int getReadTimeout() {
+        return readTimeout <= 0 ? DEFAULT_READ_TIMEOUT : readTimeout;
+    }
+
+    /**
+     * Number of power ons waiting for a free slot on their host or datastore.
+     */
+    public int getPowerOnQueueDepth() {
+        PowerOnScheduler powerOns = getCurrentPowerOnScheduler();
+        return powerOns != null ? powerOns.getQueueDepth() : 0;
+    }
+
+    /**
+     * Average time power ons waited for admission, in milliseconds.
+     */
+    public long getPowerOnAverageWaitMillis() {
+        PowerOnScheduler powerOns = getCurrentPowerOnScheduler();
+        return powerOns != null ? powerOns.getAverageWaitMillis() : 0;
+    }
+
+    public long getPowerOnMaxWaitMillis() {
+        PowerOnScheduler powerOns = getCurrentPowerOnScheduler();
+        return powerOns != null ? powerOns.getMaxWaitMillis() : 0;
+    }
+
+    public List<VirtualMachinePool> getPools() {
+        if (pools == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(pools);
+    }
+
     public String getHypervisorDescription() {
         return getHypervisorHost();
     }
 
-    private ServiceInstance getConnection() throws VMWareException {
-         return makeConnection(hypervisorHost, username, password, hypervisorSshPort,
-                    hypervisorSystemUrl);
+    /**
+     * Logs in a new session. Only the connection pool should call this, everyone
+     * else borrows sessions through {@link #getConnectionPool()}.
+     */
+    ServiceInstance openSession() throws VMWareException {
+        CircuitBreaker breaker = getCircuitBreaker();
+        breaker.check();
+        long start = System.currentTimeMillis();
+        try {
+            ServiceInstance session = makeConnection(hypervisorHost, username, password, hypervisorSshPort,
+                    hypervisorSystemUrl, getConnectTimeout(), getReadTimeout());
+            lastConnectFailure = 0;
+            long duration = System.currentTimeMillis() - start;
+            LaunchMetrics.record(LaunchMetrics.Phase.CONNECT, getHypervisorDescription(), null, duration);
+            breaker.succeeded(duration);
+            return session;
+        } catch (VMWareException e) {
+            lastConnectFailure = System.currentTimeMillis();
+            if (CircuitBreaker.isUnreachable(e)) {
+                breaker.failed(e);
+            }
+            throw e;
+        }
     }
 
-    public InventoryNavigator getRootNavigator(ServiceInstance instance) {        
-        Folder rootFolder = instance.getRootFolder();
-        String rootName = rootFolder.getName();
-        System.out.println("root:" + rootName);
-        return  new InventoryNavigator(rootFolder);
-     
+    /**
+     * Fails fast while logins and calls to this hypervisor keep failing,
+     * probing it in the background until it answers again.
+     */
+    synchronized CircuitBreaker getCircuitBreaker() throws VMWareException {
+        checkRunning();
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker(hypervisorHost, BREAKER_THRESHOLD, BREAKER_OPEN_DELAY,
+                    BREAKER_MAX_OPEN_DELAY, getScheduler(), getLaunchExecutor(), new Callable<Void>() {
+                        public Void call() throws Exception {
+                            ServiceInstance session = makeConnection(hypervisorHost, username, password,
+                                    hypervisorSshPort, hypervisorSystemUrl, getConnectTimeout(), getReadTimeout());
+                            getConnectionPool().logout(session);
+                            return null;
+                        }
+                    });
+        }
+        return circuitBreaker;
     }
 
-    public VirtualMachine getDomain(String name) throws VMWareException {
-        ServiceInstance hypervisorConnection = getConnection();
-        LogRecord info = new LogRecord(Level.INFO, "Getting hypervisor domain "+name+" on "+hypervisorConnection);
-        LOGGER.log(info);
-        if (hypervisorConnection != null) {
-            ManagedEntity mes;
+    /**
+     * False while the hypervisor refuses logins or its inventory has not been
+     * current for a while, so placement sends new slaves elsewhere.
+     */
+    boolean isReachable() {
+        try {
+            if (getCircuitBreaker().isOpen() || System.currentTimeMillis() - lastConnectFailure < UNREACHABLE_TIMEOUT) {
+                return false;
+            }
+            InventoryCache cache = getInventoryCache();
+            return cache.getInventory() != null && cache.getStaleness() < UNREACHABLE_STALENESS;
+        } catch (VMWareException e) {
+            // stopped
+            return false;
+        }
+    }
+
+    /**
+     * Records how long a launch on this hypervisor took, from power on to a
+     * connected slave.
+     */
+    synchronized void recordLaunch(long millis) {
+        launchLatency = launchLatency == 0 ? millis : LATENCY_SMOOTHING * millis + (1 - LATENCY_SMOOTHING) * launchLatency;
+    }
+
+    /**
+     * Moving average of recent launch times, 0 until the first launch.
+     */
+    public synchronized long getLaunchLatencyMillis() {
+        return (long) launchLatency;
+    }
+
+    /**
+     * Pool members being started or cloned plus power ons queued or running.
+     */
+    int getOperationsInFlight() {
+        int pending;
+        synchronized (this) {
+            pending = getPendingMembers().size();
+        }
+        PowerOnScheduler powerOns = getCurrentPowerOnScheduler();
+        return powerOns != null ? pending + powerOns.getQueueDepth() + powerOns.getInFlight() : pending;
+    }
+
+    /**
+     * Average CPU usage of the hosts that recently powered on virtual machines,
+     * between 0 and 1.
+     */
+    double getLoad() {
+        PowerOnScheduler powerOns = getCurrentPowerOnScheduler();
+        return powerOns != null ? powerOns.getAverageCpuUsage() : 0;
+    }
+
+    /**
+     * Fails once this hypervisor was stopped.
+     */
+    private void checkRunning() throws VMWareException {
+        if (stopped) {
+            throw new VMWareException("Hypervisor " + hypervisorHost + " was stopped", null);
+        }
+    }
+
+    synchronized HypervisorConnectionPool getConnectionPool() throws VMWareException {
+        checkRunning();
+        if (connectionPool == null) {
+            connectionPool = new HypervisorConnectionPool(this, getMaxSessions());
+        }
+        return connectionPool;
+    }
+
+    synchronized InventoryCache getInventoryCache() throws VMWareException {
+        checkRunning();
+        if (inventoryCache == null) {
+            inventoryCache = new InventoryCache(hypervisorHost, new PropertyCollectorInventorySource(this),
+                    InventoryStore.forHost(hypervisorHost));
+            inventoryCache.start();
+        }
+        return inventoryCache;
+    }
+
+    /**
+     * Resolves futures for callers waiting on tasks and virtual machine state
+     * changes, fed by the same property collector as the inventory.
+     */
+    synchronized VirtualMachineWatcher getWatcher() throws VMWareException {
+        checkRunning();
+        if (watcher == null) {
+            watcherExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("vSphere watcher for " + hypervisorHost));
+            watcher = new VirtualMachineWatcher(getInventoryCache(), watcherExecutor, getLaunchExecutor(), getScheduler(),
+                    new VirtualMachineWatcher.Reader() {
+                        public VirtualMachineInfo readVirtualMachine(String moRef) throws Exception {
+                            return Hypervisor.this.readVirtualMachine(moRef);
+                        }
+
+                        public Map<String, Object> readTask(String moRef) throws Exception {
+                            return Hypervisor.this.readTask(moRef);
+                        }
+                    });
+        }
+        return watcher;
+    }
+
+    private VirtualMachineInfo readVirtualMachine(String moRef) throws VMWareException {
+        final ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(VirtualMachineInfo.TYPE);
+        mor.setVal(moRef);
+        return getConnectionPool().execute(new HypervisorConnectionPool.Call<VirtualMachineInfo>() {
+            public VirtualMachineInfo call(ServiceInstance hypervisorConnection) throws Exception {
+                return VirtualMachineInventory.retrieve(new VirtualMachine(hypervisorConnection.getServerConnection(), mor));
+            }
+        });
+    }
+
+    private Map<String, Object> readTask(String moRef) throws VMWareException {
+        final ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(VirtualMachineWatcher.TASK);
+        mor.setVal(moRef);
+        TaskInfo info = getConnectionPool().execute(new HypervisorConnectionPool.Call<TaskInfo>() {
+            public TaskInfo call(ServiceInstance hypervisorConnection) throws Exception {
+                return VimCalls.getTaskInfo(new Task(hypervisorConnection.getServerConnection(), mor));
+            }
+        });
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(VirtualMachineWatcher.TASK_STATE, info.getState());
+        if (info.getError() != null) {
+            properties.put(VirtualMachineWatcher.TASK_ERROR, info.getError());
+        }
+        return properties;
+    }
+
+    /**
+     * Bounded executor running the SOAP calls of launches on this hypervisor,
+     * so a burst of launches cannot exhaust Jenkins' remoting thread pool.
+     */
+    synchronized ExecutorService getLaunchExecutor() throws VMWareException {
+        checkRunning();
+        if (launchExecutor == null) {
+            launchExecutor = Executors.newFixedThreadPool(LAUNCH_THREADS,
+                    new NamedThreadFactory("vSphere launcher for " + hypervisorHost));
+        }
+        return launchExecutor;
+    }
+
+    /**
+     * Admission control every power on of a virtual machine on this hypervisor
+     * goes through.
+     */
+    synchronized PowerOnScheduler getPowerOnScheduler() throws VMWareException {
+        checkRunning();
+        if (powerOnScheduler == null) {
+            powerOnScheduler = new PowerOnScheduler(this, getMaxPowerOnsPerHost(), getMaxPowerOnsPerDatastore());
+        }
+        return powerOnScheduler;
+    }
+
+    /**
+     * The power on scheduler if one was created and this hypervisor is not
+     * stopped, else null.
+     */
+    private synchronized PowerOnScheduler getCurrentPowerOnScheduler() {
+        return powerOnScheduler;
+    }
+
+    /**
+     * Timer for launch timeouts and other delayed work on this hypervisor.
+     */
+    synchronized ScheduledExecutorService getScheduler() throws VMWareException {
+        checkRunning();
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("vSphere timer for " + hypervisorHost));
+        }
+        return scheduler;
+    }
+
+    /**
+     * Current inventory snapshot, kept up to date in the background. Only the
+     * first call waits for the initial snapshot to arrive.
+     */
+    public VirtualMachineInventory getInventory() throws VMWareException {
+        InventoryCache cache = getInventoryCache();
+        VirtualMachineInventory result = cache.getInventory();
+        if (result == null) {
+            getCircuitBreaker().check();
             try {
-                mes = getRootNavigator(hypervisorConnection).searchManagedEntity("VirtualMachine",name);
-            } catch (Exception e) {
-                throw new VMWareException("Failed to find domain "+name,e);
+                result = cache.awaitInventory(INVENTORY_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VMWareException("Interrupted waiting for the inventory of " + hypervisorHost, e);
+            }
+            if (result == null) {
+                throw new VMWareException("Timed out waiting for the inventory of " + hypervisorHost, null);
             }
-            info = new LogRecord(Level.INFO, "Found "+mes+ " for "+name);
-            LOGGER.log(info);
-            return (VirtualMachine) mes;
-        } else {
-            throw new VMWareException("Could not connect to vmware "+hypervisorHost, null);
         }
+        return result;
     }
 
-    public Map<String, VirtualMachine> getDomains() throws VMWareException {
-        Map<String, VirtualMachine> domains = new WeakHashMap<String, VirtualMachine>();
-        ServiceInstance hypervisorConnection = getConnection();
+    /**
+     * True once an inventory snapshot has been loaded or restored from disk,
+     * before that lookups by name find nothing.
+     */
+    public boolean isInventoryLoaded() {
+        return getLoadedInventory() != null;
+    }
+
+    /**
+     * Current inventory snapshot without waiting for it, null until one has
+     * been loaded or restored from disk and once this hypervisor is stopped.
+     */
+    private VirtualMachineInventory getLoadedInventory() {
+        try {
+            return getInventoryCache().getInventory();
+        } catch (VMWareException e) {
+            // stopped
+            return null;
+        }
+    }
+
+    /**
+     * Version of the inventory snapshot, increased on every applied update.
+     */
+    public long getInventoryVersion() {
+        try {
+            return getInventoryCache().getVersion();
+        } catch (VMWareException e) {
+            // stopped
+            return 0;
+        }
+    }
+
+    /**
+     * Milliseconds since the inventory snapshot was last known to be current,
+     * zero while changes are being tracked.
+     */
+    public long getInventoryStaleness() {
+        try {
+            return getInventoryCache().getStaleness();
+        } catch (VMWareException e) {
+            // stopped
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Fetches a new inventory snapshot in parallel shards, bypassing the
+     * background cache.
+     */
+    public VirtualMachineInventory refreshInventory() throws VMWareException {
         LogRecord info = new LogRecord(Level.INFO, "Getting hypervisor domains");
         LOGGER.log(info);
-        if (hypervisorConnection != null) {
-            virtualMachineList = null;
-            try {
-                for (ManagedEntity c : getRootNavigator(hypervisorConnection).searchManagedEntities("VirtualMachine")) {
-                    domains.put(c.getName(), (VirtualMachine) c);
+        return InventoryDiscovery.discover(this);
+    }
+
+    /**
+     * Returns the snapshot entry for the named virtual machine. When
+     * <tt>refresh</tt> is set and the background cache is not currently
+     * tracking changes, the entry is re-read from the hypervisor, which costs
+     * one round-trip for all tracked properties, shared by concurrent callers
+     * asking for the same virtual machine. While the hypervisor does not
+     * answer the last known entry is returned.
+     */
+    public VirtualMachineInfo getVirtualMachineInfo(String name, boolean refresh) throws VMWareException {
+        final VirtualMachineInfo info = getInventory().get(name);
+        if (info == null || !refresh || getInventoryCache().isTracking() || getCircuitBreaker().isOpen()) {
+            return info;
+        }
+        try {
+            return getRefreshes().execute(info.getMoRef(), new Callable<VirtualMachineInfo>() {
+                public VirtualMachineInfo call() throws Exception {
+                    return getConnectionPool().execute(new HypervisorConnectionPool.Call<VirtualMachineInfo>() {
+                        public VirtualMachineInfo call(ServiceInstance hypervisorConnection) throws Exception {
+                            return VirtualMachineInventory.retrieve(toVirtualMachine(hypervisorConnection, info));
+                        }
+                    });
                 }
-            } catch (Exception e) {
-                throw new VMWareException("Failed to find domains ",e);
+            });
+        } catch (VMWareException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VMWareException("Interrupted waiting for the state of " + name, e);
+        } catch (Exception e) {
+            throw new VMWareException(e.getMessage(), e);
+        }
+    }
+
+    private synchronized SingleFlight<String, VirtualMachineInfo> getRefreshes() {
+        if (refreshes == null) {
+            refreshes = new SingleFlight<String, VirtualMachineInfo>();
+        }
+        return refreshes;
+    }
+
+    /**
+     * Runs a power off, suspend or revert of the named virtual machine, or
+     * waits for the same one already running for it, so concurrent stops do
+     * not fail each other's tasks. A stop with another strategy running is
+     * waited for first, after which the requested one still runs, so that for
+     * instance a revert is not lost to a power off.
+     */
+    void stopVirtualMachine(String name, StopStrategy strategy, PrintStream logger, Callable<Void> stop)
+            throws Exception {
+        SingleFlight<String, Void> running;
+        synchronized (this) {
+            if (stops == null) {
+                stops = new SingleFlight<String, Void>();
             }
-        } else {
-            LogRecord rec = new LogRecord(Level.SEVERE, "Cannot connect to datacenter {0} as {1}/******");
-            rec.setParameters(new Object[] { hypervisorHost, username });
-            LOGGER.log(rec);
+            running = stops;
+        }
+        for (StopStrategy other : StopStrategy.values()) {
+            String otherKey = name + "/" + other;
+            if (other != strategy && running.isRunning(otherKey)) {
+                logger.println("Virtual machine " + name + " is being stopped with " + other.getDisplayName()
+                        + ", waiting for it before " + strategy.getDisplayName());
+                try {
+                    // joins the running stop, or does nothing once it is over
+                    running.execute(otherKey, new Callable<Void>() {
+                        public Void call() {
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // reported to its own caller, the requested stop runs regardless
+                }
+            }
+        }
+        String key = name + "/" + strategy;
+        if (running.isRunning(key)) {
+            logger.println("Virtual machine " + name + " is already being stopped, waiting for it");
+        }
+        running.execute(key, stop);
+    }
+
+    private static VirtualMachine toVirtualMachine(ServiceInstance hypervisorConnection, VirtualMachineInfo info) {
+        return new VirtualMachine(hypervisorConnection.getServerConnection(), info.toManagedObjectReference());
+    }
+
+    /**
+     * A call on a virtual machine bound to a pooled session.
+     */
+    interface DomainCall<T> {
+        /**
+         * The domain is only valid during the call, it must not be kept or
+         * returned. Handles such as a {@link com.vmware.vim25.mo.Task} are
+         * fine to return as only their managed object reference is used later.
+         */
+        T call(VirtualMachine domain) throws Exception;
+    }
+
+    /**
+     * Runs the call on the virtual machine with a session of the connection
+     * pool, so that it is retried on an expired session and counted by the
+     * circuit breaker like any other call.
+     */
+    <T> T execute(final VirtualMachineInfo info, final DomainCall<T> call) throws VMWareException {
+        return getConnectionPool().execute(new HypervisorConnectionPool.Call<T>() {
+            public T call(ServiceInstance hypervisorConnection) throws Exception {
+                return call.call(toVirtualMachine(hypervisorConnection, info));
+            }
+        });
+    }
+
+    /**
+     * @deprecated the returned object is bound to a pooled session that is
+     *             released before it is used, use {@link #execute} instead
+     */
+    @Deprecated
+    public VirtualMachine getDomain(final String name) throws VMWareException {
+        final VirtualMachineInfo vm = getVirtualMachineInfo(name, false);
+        LOGGER.log(new LogRecord(Level.INFO, "Found "+vm+ " for "+name));
+        if (vm == null) {
+            return null;
         }
+        return getConnectionPool().execute(new HypervisorConnectionPool.Call<VirtualMachine>() {
+            public VirtualMachine call(ServiceInstance hypervisorConnection) throws Exception {
+                return toVirtualMachine(hypervisorConnection, vm);
+            }
+        });
+    }
 
-        return domains;
+    /**
+     * @deprecated the returned objects are bound to a pooled session that is
+     *             released before they are used, use {@link #execute} instead
+     */
+    @Deprecated
+    public Map<String, VirtualMachine> getDomains() throws VMWareException {
+        final VirtualMachineInventory snapshot = getInventory();
+        return getConnectionPool().execute(new HypervisorConnectionPool.Call<Map<String, VirtualMachine>>() {
+            public Map<String, VirtualMachine> call(ServiceInstance hypervisorConnection) throws Exception {
+                Map<String, VirtualMachine> domains = new LinkedHashMap<String, VirtualMachine>(snapshot.size() * 2);
+                for (VirtualMachineInfo vm : snapshot.getAll()) {
+                    domains.put(vm.getName(), toVirtualMachine(hypervisorConnection, vm));
+                }
+                return domains;
+            }
+        });
     }
 
     public List<JenkinsVirtualMachine> getVirtualMachines() {
-        if (virtualMachineList == null) {
-            virtualMachineList = retrieveVirtualMachines();
+        return getVirtualMachineIndex().getAll();
+    }
+
+    /**
+     * Looks up a virtual machine by name, or returns null.
+     */
+    public JenkinsVirtualMachine getVirtualMachine(String name) {
+        return getVirtualMachineIndex().get(name);
+    }
+
+    /**
+     * Looks up a virtual machine by managed object reference value, or returns null.
+     */
+    public JenkinsVirtualMachine getVirtualMachineByMoRef(String moRef) {
+        return getVirtualMachineIndex().getByMoRef(moRef);
+    }
+
+    /**
+     * Searches the virtual machines by name for the configuration pages,
+     * optionally only those directly in a folder of the given name, or those
+     * that slaves with the given label run on.
+     *
+     * @see VirtualMachineIndex#search
+     */
+    public VirtualMachineIndex.Page searchVirtualMachines(String query, boolean substring, String folder, String label,
+            int offset, int limit) throws VMWareException {
+        final String folderName = Util.fixEmptyAndTrim(folder);
+        final Map<String, String> folders = folderName != null ? getFolderNames() : null;
+        final Set<String> labelled = Util.fixEmptyAndTrim(label) != null ? getLabelledVirtualMachineNames(label.trim()) : null;
+        VirtualMachineIndex.Filter filter = null;
+        if (folderName != null || labelled != null) {
+            filter = new VirtualMachineIndex.Filter() {
+                public boolean accept(VirtualMachineInfo info) {
+                    if (folderName != null && !folderName.equalsIgnoreCase(folders.get(info.getFolder()))) {
+                        return false;
+                    }
+                    return labelled == null || labelled.contains(info.getName());
+                }
+            };
         }
-        return virtualMachineList;
+        return getVirtualMachineIndex().search(Util.fixNull(query).trim(), substring, filter, offset, limit);
     }
 
-    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int i) {
-        return Collections.emptySet();
+    /**
+     * Applies the power action to every virtual machine whose name matches
+     * the glob pattern and that serves the label, and waits for all of them.
+     * Progress is written to <tt>logger</tt>.
+     *
+     * @see BulkPowerOperation
+     */
+    public List<BulkPowerOperation.Result> powerAll(BulkPowerOperation.Action action, String pattern, String label,
+            String snapshotName, PrintStream logger) throws VMWareException {
+        BulkPowerOperation operation = new BulkPowerOperation(this, action, snapshotName, logger);
+        return operation.run(operation.select(pattern, label));
+    }
+
+    /**
+     * Names of the inventory folders by managed object reference value,
+     * fetched in one call and cached for a few minutes.
+     */
+    Map<String, String> getFolderNames() throws VMWareException {
+        Map<String, String> names = folderNames;
+        if (names == null || System.currentTimeMillis() - folderNamesFetchedAt > FOLDER_NAMES_TTL) {
+            names = getConnectionPool().execute(new HypervisorConnectionPool.Call<Map<String, String>>() {
+                public Map<String, String> call(ServiceInstance session) throws Exception {
+                    return InventoryDiscovery.findFolderNames(session.getPropertyCollector(), session.getRootFolder().getMOR());
+                }
+            });
+            folderNames = names;
+            folderNamesFetchedAt = System.currentTimeMillis();
+        }
+        return names;
+    }
+
+    /**
+     * Virtual machines of slaves carrying the label, and members and
+     * templates of pools serving it.
+     */
+    Set<String> getLabelledVirtualMachineNames(String labelExpression) throws VMWareException {
+        Label label = Hudson.getInstance().getLabel(labelExpression);
+        Set<String> names = new HashSet<String>();
+        if (label == null) {
+            return names;
+        }
+        for (Node node : Hudson.getInstance().getNodes()) {
+            if (node instanceof VirtualMachineSlave && label.contains(node)
+                    && getHypervisorDescription().equals(((VirtualMachineSlave) node).getHypervisorDescription())) {
+                names.add(((VirtualMachineSlave) node).getVirtualMachineName());
+            }
+        }
+        for (VirtualMachinePool pool : getPools()) {
+            if (pool.matches(label)) {
+                names.addAll(pool.getMemberNames(getInventory()));
+                if (pool.isClonePool()) {
+                    names.add(pool.getTemplateName());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Index of the current inventory snapshot, rebuilt only when the
+     * snapshot has changed. Never waits for the inventory, as it serves form
+     * validation and auto completion: until a snapshot has been loaded or
+     * restored from disk the index is empty.
+     */
+    private VirtualMachineIndex getVirtualMachineIndex() {
+        VirtualMachineIndex index = virtualMachineIndex;
+        VirtualMachineInventory current = getLoadedInventory();
+        if (current == null) {
+            return index != null ? index : new VirtualMachineIndex(this, VirtualMachineInventory.EMPTY);
+        }
+        if (index == null || current != index.getSource()) {
+            index = new VirtualMachineIndex(this, current);
+            virtualMachineIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Plans one slave for each unit of the excess workload that
+     * {@link HypervisorPlacement} assigns to this hypervisor.
+     */
+    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        List<NodeProvisioner.PlannedNode> planned = new ArrayList<NodeProvisioner.PlannedNode>();
+        int share = HypervisorPlacement.claim(this, label, excessWorkload);
+        int provided = 0;
+        VirtualMachineInventory inventory = getLoadedInventory();
+        if (inventory == null) {
+            LOGGER.log(Level.INFO, "Inventory of {0} not loaded yet, not provisioning for {1}", new Object[] { hypervisorHost, label });
+        } else if (share > 0) {
+            synchronized (this) {
+                provided = allocate(label, share, inventory, planned);
+            }
+        }
+        HypervisorPlacement.settle(this, label, provided);
+        if (!planned.isEmpty()) {
+            LOGGER.log(Level.INFO, "Provisioning {0} slaves on {1} for {2}", new Object[] { planned.size(), hypervisorHost, label });
+        }
+        return planned;
+    }
+
+    /**
+     * Workload this hypervisor could take for the label right now, without
+     * starting anything.
+     */
+    synchronized int getAvailableWorkload(Label label) {
+        VirtualMachineInventory inventory = getLoadedInventory();
+        return inventory != null ? allocate(label, Integer.MAX_VALUE, inventory, null) : 0;
+    }
+
+    /**
+     * Picks one slave for each unit of excess workload from the idle members
+     * of the pools matching the label, and plans them unless
+     * <tt>planned</tt> is null. Members already running are preferred since
+     * they connect faster, then clone pools create new linked clones up to
+     * their limit. The instance cap counts pool slaves both connected and
+     * still being started. Returns the workload covered.
+     */
+    private int allocate(Label label, int excessWorkload, VirtualMachineInventory inventory,
+            List<NodeProvisioner.PlannedNode> planned) {
+        Set<String> busy = getAttachedVirtualMachineNames();
+        busy.addAll(getPendingMembers());
+        int capacity = instanceCap > 0 ? instanceCap - countPoolMembers(busy) : Integer.MAX_VALUE;
+        int covered = 0;
+        for (VirtualMachinePool pool : getPools()) {
+            if (!pool.matches(label)) {
+                continue;
+            }
+            for (VirtualMachineInfo member : getIdleMembers(pool, inventory, busy)) {
+                if (covered >= excessWorkload || capacity <= 0) {
+                    break;
+                }
+                pick(pool, member.getName(), false, busy, planned);
+                covered += pool.getNumExecutors();
+                capacity--;
+            }
+            if (pool.isClonePool()) {
+                int clones = countClones(pool, inventory);
+                while (covered < excessWorkload && capacity > 0 && clones < pool.getMaxClones()) {
+                    pick(pool, nextCloneName(pool, inventory, busy), true, busy, planned);
+                    covered += pool.getNumExecutors();
+                    capacity--;
+                    clones++;
+                }
+            }
+        }
+        return covered;
+    }
+
+    private void pick(VirtualMachinePool pool, String virtualMachineName, boolean clone, Set<String> busy,
+            List<NodeProvisioner.PlannedNode> planned) {
+        if (planned != null) {
+            planned.add(planMember(pool, virtualMachineName, clone, busy));
+        } else {
+            busy.add(virtualMachineName);
+        }
     }
 
     public boolean canProvision(Label label) {
+        for (VirtualMachinePool pool : getPools()) {
+            if (pool.matches(label)) {
+                return true;
+            }
+        }
         return false;
     }
 
+    /**
+     * Names of the virtual machines of this hypervisor currently attached to a
+     * slave, static or provisioned.
+     */
+    private Set<String> getAttachedVirtualMachineNames() {
+        Set<String> names = new HashSet<String>();
+        for (Node node : Hudson.getInstance().getNodes()) {
+            if (node instanceof VirtualMachineSlave) {
+                VirtualMachineSlave slave = (VirtualMachineSlave) node;
+                if (getHypervisorDescription().equals(slave.getHypervisorDescription())) {
+                    names.add(slave.getVirtualMachineName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private Set<String> getPendingMembers() {
+        if (pendingMembers == null) {
+            pendingMembers = new HashSet<String>();
+        }
+        return pendingMembers;
+    }
+
+    private NodeProvisioner.PlannedNode planMember(VirtualMachinePool pool, String virtualMachineName, boolean clone,
+            Set<String> busy) {
+        busy.add(virtualMachineName);
+        getPendingMembers().add(virtualMachineName);
+        return new NodeProvisioner.PlannedNode(virtualMachineName, startMember(pool, virtualMachineName, clone),
+                pool.getNumExecutors());
+    }
+
+    private int countPoolMembers(Set<String> names) {
+        int count = 0;
+        for (String name : names) {
+            for (VirtualMachinePool pool : getPools()) {
+                if (pool.isMember(name)) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private List<VirtualMachineInfo> getIdleMembers(VirtualMachinePool pool, VirtualMachineInventory inventory, Set<String> busy) {
+        List<VirtualMachineInfo> running = new ArrayList<VirtualMachineInfo>();
+        List<VirtualMachineInfo> stopped = new ArrayList<VirtualMachineInfo>();
+        for (String name : pool.getMemberNames(inventory)) {
+            VirtualMachineInfo info = inventory.get(name);
+            if (info == null) {
+                LOGGER.log(Level.FINE, "Pool member {0} not found on {1}", new Object[] { name, hypervisorHost });
+            } else if (!busy.contains(name)) {
+                if (info.isPoweredOn()) {
+                    running.add(info);
+                } else {
+                    stopped.add(info);
+                }
+            }
+        }
+        running.addAll(stopped);
+        return running;
+    }
+
+    /**
+     * Existing clones of the pool plus those being created.
+     */
+    private int countClones(VirtualMachinePool pool, VirtualMachineInventory inventory) {
+        Set<String> clones = new HashSet<String>(pool.getMemberNames(inventory));
+        for (String name : getPendingMembers()) {
+            if (pool.isMember(name)) {
+                clones.add(name);
+            }
+        }
+        return clones.size();
+    }
+
+    private String nextCloneName(VirtualMachinePool pool, VirtualMachineInventory inventory, Set<String> busy) {
+        for (int i = 1;; i++) {
+            String name = pool.getCloneName(i);
+            if (inventory.get(name) == null && !busy.contains(name)) {
+                return name;
+            }
+        }
+    }
+
+    /**
+     * Powers the member on in the background, after creating it first if it
+     * is a new clone, and registers it as a slave once it is up, so the node
+     * provisioner only counts it as available capacity when it can take builds.
+     */
+    private Future<Node> startMember(final VirtualMachinePool pool, final String virtualMachineName, final boolean clone) {
+        return Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+            public Node call() throws Exception {
+                try {
+                    prepareMember(pool, virtualMachineName, clone, new LogTaskListener(LOGGER, Level.INFO));
+                    // launchers keep per-connection state, every slave gets its own copy
+                    ComputerLauncher launcher = (ComputerLauncher) Hudson.XSTREAM.fromXML(Hudson.XSTREAM.toXML(pool.getLauncher()));
+                    VirtualMachineSlave slave = new VirtualMachineSlave(virtualMachineName, "Provisioned from pool on "
+                            + getHypervisorDescription(), pool.getRemoteFS(), String.valueOf(pool.getNumExecutors()),
+                            Node.Mode.EXCLUSIVE, pool.getLabelString(), null, launcher,
+                            new VirtualMachineRetentionStrategy(pool.getIdleMinutes(), 0, true),
+                            Collections.<NodeProperty<?>> emptyList(), getHypervisorDescription(), virtualMachineName,
+                            null, null, null);
+                    Hudson.getInstance().addNode(slave);
+                    return slave;
+                } finally {
+                    synchronized (Hypervisor.this) {
+                        getPendingMembers().remove(virtualMachineName);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the member first if it is a new clone, then powers it on and
+     * waits until it is up.
+     */
+    private void prepareMember(VirtualMachinePool pool, String virtualMachineName, boolean clone, TaskListener listener)
+            throws Exception {
+        if (clone) {
+            createClone(pool, virtualMachineName, listener);
+        }
+        new LaunchPipeline(this, virtualMachineName, null, null, listener, 0).start().get();
+    }
+
+    /**
+     * Idle members of the pool, neither attached to a slave nor being started
+     * or destroyed, running ones first.
+     */
+    synchronized List<VirtualMachineInfo> getIdleMembers(VirtualMachinePool pool, VirtualMachineInventory inventory) {
+        Set<String> busy = getAttachedVirtualMachineNames();
+        busy.addAll(getPendingMembers());
+        return getIdleMembers(pool, inventory, busy);
+    }
+
+    /**
+     * Powers an idle member on ahead of demand without attaching it to a
+     * slave, or creates a new clone if <tt>virtualMachineName</tt> is null.
+     * Returns null if the clone pool is already at its limit.
+     */
+    synchronized Future<?> warmUp(final VirtualMachinePool pool, String virtualMachineName, VirtualMachineInventory inventory) {
+        final boolean clone = virtualMachineName == null;
+        if (clone) {
+            if (!pool.isClonePool() || countClones(pool, inventory) >= pool.getMaxClones()) {
+                return null;
+            }
+            Set<String> busy = getAttachedVirtualMachineNames();
+            busy.addAll(getPendingMembers());
+            virtualMachineName = nextCloneName(pool, inventory, busy);
+        }
+        final String name = virtualMachineName;
+        getPendingMembers().add(name);
+        return Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    prepareMember(pool, name, clone, new LogTaskListener(LOGGER, Level.INFO));
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to warm up " + name + " on " + hypervisorHost, e);
+                } finally {
+                    synchronized (Hypervisor.this) {
+                        getPendingMembers().remove(name);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Shuts an idle warm member down, and destroys it if it is a clone that
+     * is not recycled.
+     */
+    synchronized void coolDown(final VirtualMachinePool pool, final String virtualMachineName) {
+        getPendingMembers().add(virtualMachineName);
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    TaskListener listener = new LogTaskListener(LOGGER, Level.INFO);
+                    new VirtualMachineLauncher(null, getHypervisorDescription(), virtualMachineName).powerOffVM(listener.getLogger());
+                    if (pool.isClonePool() && !pool.isRecycleClones()) {
+                        destroyClone(virtualMachineName);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to shut down " + virtualMachineName + " on " + hypervisorHost, e);
+                } finally {
+                    synchronized (Hypervisor.this) {
+                        getPendingMembers().remove(virtualMachineName);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs one round of warm pool maintenance for every pool with a warm pool
+     * configured, given the current build queue.
+     */
+    void maintainWarmPools(Queue.Item[] items) {
+        VirtualMachineInventory inventory = getLoadedInventory();
+        if (inventory == null) {
+            return;
+        }
+        for (VirtualMachinePool pool : getPools()) {
+            if (pool.getMaxWarm() > 0) {
+                getWarmPool(pool).maintain(inventory, items);
+            }
+        }
+    }
+
+    synchronized WarmPool getWarmPool(VirtualMachinePool pool) {
+        if (warmPools == null) {
+            warmPools = new HashMap<VirtualMachinePool, WarmPool>();
+        }
+        WarmPool warmPool = warmPools.get(pool);
+        if (warmPool == null) {
+            warmPool = new WarmPool(this, pool);
+            warmPools.put(pool, warmPool);
+        }
+        return warmPool;
+    }
+
+    private void createClone(final VirtualMachinePool pool, final String cloneName, TaskListener listener) throws Exception {
+        final VirtualMachineInfo template = getVirtualMachineInfo(pool.getTemplateName(), false);
+        if (template == null) {
+            throw new VMWareException("Template " + pool.getTemplateName() + " not found on " + hypervisorHost, null);
+        }
+        long start = System.currentTimeMillis();
+        listener.getLogger().println("Creating linked clone " + cloneName + " of " + template.getName());
+        Task task = getConnectionPool().execute(new HypervisorConnectionPool.Call<Task>() {
+            public Task call(ServiceInstance hypervisorConnection) throws Exception {
+                return VirtualMachineCloner.linkedClone(toVirtualMachine(hypervisorConnection, template),
+                        pool.getSnapshotName(), cloneName);
+            }
+        });
+        VirtualMachineWatcher watcher = getWatcher();
+        watcher.awaitTask(task).get(CLONE_TIMEOUT, TimeUnit.MILLISECONDS);
+        watcher.awaitCreated(cloneName).get(CLONE_TIMEOUT, TimeUnit.MILLISECONDS);
+        listener.getLogger().println("Created " + cloneName + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Called once the slave of a pool member has been removed. Clones of pools
+     * that do not recycle them are destroyed as soon as they are powered off.
+     */
+    void releaseMember(final String virtualMachineName) {
+        VirtualMachinePool pool = null;
+        for (VirtualMachinePool candidate : getPools()) {
+            if (candidate.isMember(virtualMachineName)) {
+                pool = candidate;
+                break;
+            }
+        }
+        if (pool == null || !pool.isClonePool() || pool.isRecycleClones()) {
+            return;
+        }
+        synchronized (this) {
+            getPendingMembers().add(virtualMachineName);
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    destroyClone(virtualMachineName);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to destroy clone " + virtualMachineName + " on " + hypervisorHost, e);
+                } finally {
+                    synchronized (Hypervisor.this) {
+                        getPendingMembers().remove(virtualMachineName);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the clone to shut down, powers it off if it does not, and
+     * deletes it from disk.
+     */
+    private void destroyClone(String cloneName) throws Exception {
+        VirtualMachineInfo info = getVirtualMachineInfo(cloneName, true);
+        if (info == null) {
+            return;
+        }
+        VirtualMachineWatcher watcher = getWatcher();
+        if (!info.isPoweredOff()) {
+            Future<VirtualMachineInfo> poweredOff = watcher.await(info.getMoRef(), VirtualMachineWatcher.POWERED_OFF);
+            try {
+                poweredOff.get(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                poweredOff.cancel(false);
+                LOGGER.log(Level.INFO, "Clone {0} did not shut down, powering it off", cloneName);
+                Task powerOff = execute(info, new DomainCall<Task>() {
+                    public Task call(VirtualMachine domain) throws Exception {
+                        return VimCalls.powerOff(domain);
+                    }
+                });
+                watcher.awaitTask(powerOff).get(CLONE_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+        Task destroy = execute(info, new DomainCall<Task>() {
+            public Task call(VirtualMachine domain) throws Exception {
+                return VimCalls.destroy(domain);
+            }
+        });
+        watcher.awaitTask(destroy).get(CLONE_TIMEOUT, TimeUnit.MILLISECONDS);
+        LOGGER.log(Level.INFO, "Destroyed clone {0} on {1}", new Object[] { cloneName, hypervisorHost });
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -270,7 +1340,8 @@ public class Hypervisor extends Cloud {
                 rec.setParameters(new Object[] { constructHypervisorURI(hypervisorHost, username, port, hypervisorSystemUrl) });
                 LOGGER.log(rec);
                 ServiceInstance testHypervisorConnection = makeConnection(hypervisorHost, username, password, port,
-                        hypervisorSystemUrl);
+                        hypervisorSystemUrl, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+                VimCalls.logout(testHypervisorConnection);
                 return FormValidation.ok("Connected successfully");
             } catch (Exception e) {
                 LogRecord rec = new LogRecord(Level.WARNING, "Failed to check hypervisor connection to {0} as {1}/******");
@@ -292,6 +1363,13 @@ public class Hypervisor extends Cloud {
             return hypervisorHost;
         }
 
+        /**
+         * Launchers a pool can use to connect to its members once they are up.
+         */
+        public List<Descriptor<ComputerLauncher>> getComputerLauncherDescriptors() {
+            return VirtualMachineSlave.DESCRIPTOR.getComputerLauncherDescriptors();
+        }
+
         public int getHypervisorSshPort() {
             return hypervisorSshPort;
         }
@@ -310,7 +1388,52 @@ public class Hypervisor extends Cloud {
         
     }
 
+    /**
+     * Stops pending launches, queued power ons, warm pool maintenance and
+     * inventory tracking, and logs out every pooled session to the
+     * hypervisor.
+     */
     public void stop() {
-        
+        HypervisorConnectionPool pool;
+        InventoryCache cache;
+        PowerOnScheduler powerOns;
+        List<WarmPool> warm;
+        synchronized (this) {
+            stopped = true;
+            pool = connectionPool;
+            cache = inventoryCache;
+            powerOns = powerOnScheduler;
+            warm = warmPools != null ? new ArrayList<WarmPool>(warmPools.values()) : Collections.<WarmPool> emptyList();
+            warmPools = null;
+            if (launchExecutor != null) {
+                launchExecutor.shutdownNow();
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            if (watcherExecutor != null) {
+                watcherExecutor.shutdownNow();
+            }
+            connectionPool = null;
+            circuitBreaker = null;
+            inventoryCache = null;
+            watcher = null;
+            watcherExecutor = null;
+            powerOnScheduler = null;
+            launchExecutor = null;
+            scheduler = null;
+        }
+        if (powerOns != null) {
+            powerOns.stop();
+        }
+        for (WarmPool warmPool : warm) {
+            warmPool.stop();
+        }
+        if (cache != null) {
+            cache.stop();
+        }
+        if (pool != null) {
+            pool.close();
+        }
     }
 }
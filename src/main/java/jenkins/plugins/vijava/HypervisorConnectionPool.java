@@ -0,0 +1,270 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Bounded pool of logged in vSphere sessions for one {@link Hypervisor}.
+ *
+ * Sessions are reused between calls instead of logging in every time, idle
+ * sessions are validated with a cheap <tt>CurrentTime</tt> call before they
+ * are handed out, and at most <tt>maxSessions</tt> sessions are open against
+ * the vCenter at any time. Calls that cannot reach the vCenter are reported
+ * to the hypervisor's {@link CircuitBreaker}, and while it is open no session
+ * is handed out.
+ *
+ * @author jbh
+ */
+class HypervisorConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(HypervisorConnectionPool.class.getName());
+    /**
+     * Sessions idle for longer than this are validated before reuse.
+     */
+    private static final long VALIDATE_AFTER_IDLE = 60 * 1000;
+    /**
+     * How long a caller waits for a free session before giving up.
+     */
+    private static final long ACQUIRE_TIMEOUT = 5 * 60 * 1000;
+
+    private final Hypervisor hypervisor;
+    private final Semaphore permits;
+    private final LinkedList<PooledSession> idle = new LinkedList<PooledSession>();
+    private final List<ServiceInstance> leased = new ArrayList<ServiceInstance>();
+    private boolean closed;
+
+    HypervisorConnectionPool(Hypervisor hypervisor, int maxSessions) {
+        this.hypervisor = hypervisor;
+        this.permits = new Semaphore(maxSessions, true);
+    }
+
+    /**
+     * Work to run against a pooled session.
+     */
+    interface Call<T> {
+        T call(ServiceInstance session) throws Exception;
+    }
+
+    /**
+     * Runs the given call on a pooled session. If the session turns out to be
+     * logged out on the server the session is discarded and the call retried
+     * once on a fresh login.
+     */
+    <T> T execute(Call<T> call) throws VMWareException {
+        ServiceInstance session = acquire();
+        try {
+            T result = call.call(session);
+            answered();
+            return result;
+        } catch (NotAuthenticated e) {
+            LOGGER.log(Level.INFO, "Session to {0} has expired, logging in again", hypervisor.getHypervisorHost());
+            invalidate(session);
+            session = acquire();
+            try {
+                T result = call.call(session);
+                answered();
+                return result;
+            } catch (VMWareException e2) {
+                throw e2;
+            } catch (Exception e2) {
+                unreachable(session, e2);
+                throw new VMWareException(e2.getMessage(), e2);
+            }
+        } catch (VMWareException e) {
+            throw e;
+        } catch (Exception e) {
+            unreachable(session, e);
+            throw new VMWareException(e.getMessage(), e);
+        } finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Borrows a session, logging in if no valid idle session is available.
+     * Every session acquired must be given back with {@link #release} or
+     * {@link #invalidate}.
+     */
+    ServiceInstance acquire() throws VMWareException {
+        hypervisor.getCircuitBreaker().check();
+        try {
+            if (!permits.tryAcquire(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new VMWareException("Timed out waiting for a free session to " + hypervisor.getHypervisorHost(), null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VMWareException("Interrupted waiting for a session to " + hypervisor.getHypervisorHost(), e);
+        }
+        try {
+            ServiceInstance session = null;
+            while (session == null) {
+                PooledSession candidate;
+                synchronized (this) {
+                    if (closed) {
+                        throw new VMWareException("Connection pool for " + hypervisor.getHypervisorHost() + " is closed", null);
+                    }
+                    candidate = idle.poll();
+                }
+                if (candidate == null) {
+                    session = hypervisor.openSession();
+                } else if (isAlive(candidate)) {
+                    session = candidate.session;
+                } else {
+                    logout(candidate.session);
+                }
+            }
+            synchronized (this) {
+                leased.add(session);
+            }
+            return session;
+        } catch (VMWareException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy session to the pool.
+     */
+    void release(ServiceInstance session) {
+        if (session == null) {
+            return;
+        }
+        boolean logout = false;
+        synchronized (this) {
+            if (!leased.remove(session)) {
+                return;
+            }
+            if (closed) {
+                logout = true;
+            } else {
+                idle.addFirst(new PooledSession(session));
+            }
+        }
+        permits.release();
+        if (logout) {
+            logout(session);
+        }
+    }
+
+    /**
+     * Drops the session without logging out and reports the failure if the
+     * call did not reach the vCenter, as its connection is likely broken. An
+     * error returned by the vCenter counts as an answer instead.
+     */
+    private void unreachable(ServiceInstance session, Exception e) {
+        if (!CircuitBreaker.isUnreachable(e)) {
+            answered();
+            return;
+        }
+        boolean dropped;
+        synchronized (this) {
+            dropped = leased.remove(session);
+        }
+        if (dropped) {
+            permits.release();
+        }
+        try {
+            hypervisor.getCircuitBreaker().failed(e);
+        } catch (VMWareException stopped) {
+            // the hypervisor was stopped, there is no breaker left to open
+        }
+    }
+
+    /**
+     * Reports that the vCenter answered a call, ending a run of failures.
+     */
+    private void answered() {
+        try {
+            hypervisor.getCircuitBreaker().reset();
+        } catch (VMWareException e) {
+            // the hypervisor was stopped, there is no breaker left to close
+        }
+    }
+
+    /**
+     * Discards a session that failed, so the next caller logs in again.
+     */
+    void invalidate(ServiceInstance session) {
+        if (session == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!leased.remove(session)) {
+                return;
+            }
+        }
+        permits.release();
+        logout(session);
+    }
+
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    synchronized int getLeasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * Logs out every idle session. Sessions still leased are logged out when
+     * they are released.
+     */
+    void close() {
+        List<PooledSession> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PooledSession>(idle);
+            idle.clear();
+        }
+        for (Iterator<PooledSession> it = toClose.iterator(); it.hasNext();) {
+            logout(it.next().session);
+        }
+    }
+
+    private boolean isAlive(PooledSession candidate) {
+        if (System.currentTimeMillis() - candidate.releasedAt < VALIDATE_AFTER_IDLE) {
+            return true;
+        }
+        long started = System.currentTimeMillis();
+        try {
+            candidate.session.currentTime();
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Dropping stale session to " + hypervisor.getHypervisorHost(), e);
+            return false;
+        } finally {
+            VimCalls.record("CurrentTime", "ServiceInstance", started);
+        }
+    }
+
+    void logout(ServiceInstance session) {
+        try {
+            VimCalls.logout(session);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to log out from " + hypervisor.getHypervisorHost(), e);
+        }
+    }
+
+    private static final class PooledSession {
+        private final ServiceInstance session;
+        private final long releasedAt;
+
+        PooledSession(ServiceInstance session) {
+            this.session = session;
+            this.releasedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package jenkins.plugins.vijava;
+
+import hudson.model.Label;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads the slaves provisioned for a label over every {@link Hypervisor}
+ * cloud able to start them, instead of filling the clouds in configuration
+ * order.
+ *
+ * The node provisioner asks the clouds one after the other. The first
+ * {@link Hypervisor} asked computes a plan for the whole excess workload and
+ * the others take their share of it. Each unit of workload goes to the
+ * hypervisor with the lowest cost, counting operations in flight, host CPU
+ * usage and recent launch times, with the units already given to it counted
+ * as operations in flight. Hypervisors that are unreachable or have nothing
+ * free for the label get no share. Whatever a hypervisor fails to provide is
+ * offered to the clouds asked after it, and the next plan is made without
+ * hypervisors that turned unreachable.
+ *
+ * @author jbh
+ */
+final class HypervisorPlacement {
+
+    private static final Logger LOGGER = Logger.getLogger(HypervisorPlacement.class.getName());
+    /**
+     * How long a plan is used, about one round of the node provisioner.
+     */
+    private static final long PLAN_TTL = 5 * 1000;
+    /**
+     * Cost of a fully loaded host, in operations in flight.
+     */
+    private static final double LOAD_WEIGHT = 4;
+    /**
+     * Launch time costing as much as one operation in flight.
+     */
+    private static final double LATENCY_UNIT = 60 * 1000;
+
+    private static final Map<String, Plan> plans = new HashMap<String, Plan>();
+
+    private HypervisorPlacement() {
+    }
+
+    /**
+     * Returns the part of the excess workload for the label that the
+     * hypervisor should provision.
+     */
+    static synchronized int claim(Hypervisor hypervisor, Label label, int excessWorkload) {
+        String key = String.valueOf(label);
+        long now = System.currentTimeMillis();
+        Plan plan = plans.get(key);
+        if (plan == null || now - plan.createdAt > PLAN_TTL) {
+            plan = plan(label, excessWorkload, now);
+            plans.put(key, plan);
+        }
+        Integer share = plan.shares.get(hypervisor);
+        if (share == null) {
+            return 0;
+        }
+        return Math.min(excessWorkload, share + plan.unplaced);
+    }
+
+    /**
+     * Books the workload the hypervisor provided against its share. A
+     * shortfall is left for the clouds asked next.
+     */
+    static synchronized void settle(Hypervisor hypervisor, Label label, int provided) {
+        Plan plan = plans.get(String.valueOf(label));
+        if (plan == null) {
+            return;
+        }
+        Integer share = plan.shares.get(hypervisor);
+        if (share == null) {
+            return;
+        }
+        plan.shares.put(hypervisor, 0);
+        if (provided < share) {
+            plan.unplaced += share - provided;
+        } else {
+            plan.unplaced = Math.max(0, plan.unplaced - (provided - share));
+        }
+    }
+
+    private static Plan plan(Label label, int excessWorkload, long now) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (Hypervisor hypervisor : HypervisorRegistry.getAll()) {
+            if (!hypervisor.canProvision(label)) {
+                continue;
+            }
+            if (!hypervisor.isReachable()) {
+                LOGGER.log(Level.INFO, "Not placing {0} slaves on {1}, it is unreachable",
+                        new Object[] { label, hypervisor.getHypervisorDescription() });
+                continue;
+            }
+            int available = hypervisor.getAvailableWorkload(label);
+            if (available > 0) {
+                candidates.add(new Candidate(hypervisor, available));
+            }
+        }
+
+        Plan plan = new Plan(now);
+        for (Candidate candidate : candidates) {
+            plan.shares.put(candidate.hypervisor, 0);
+        }
+        for (int unit = 0; unit < excessWorkload; unit++) {
+            Candidate best = null;
+            for (Candidate candidate : candidates) {
+                if (candidate.available > 0 && (best == null || candidate.getCost() < best.getCost())) {
+                    best = candidate;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            best.available--;
+            best.inFlight++;
+            plan.shares.put(best.hypervisor, plan.shares.get(best.hypervisor) + 1);
+        }
+        if (candidates.size() > 1) {
+            LOGGER.log(Level.FINE, "Placement of {0} for {1}: {2}", new Object[] { excessWorkload, label, plan.shares });
+        }
+        return plan;
+    }
+
+    private static final class Plan {
+        private final long createdAt;
+        private final Map<Hypervisor, Integer> shares = new HashMap<Hypervisor, Integer>();
+        /**
+         * Workload given to hypervisors that could not provide it.
+         */
+        private int unplaced;
+
+        Plan(long createdAt) {
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final class Candidate {
+        private final Hypervisor hypervisor;
+        private final double load;
+        private final long latency;
+        private int available;
+        private int inFlight;
+
+        Candidate(Hypervisor hypervisor, int available) {
+            this.hypervisor = hypervisor;
+            this.available = available;
+            this.inFlight = hypervisor.getOperationsInFlight();
+            this.load = hypervisor.getLoad();
+            this.latency = hypervisor.getLaunchLatencyMillis();
+        }
+
+        double getCost() {
+            return inFlight + LOAD_WEIGHT * load + latency / LATENCY_UNIT;
+        }
+    }
+}
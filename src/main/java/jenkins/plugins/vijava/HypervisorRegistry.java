@@ -0,0 +1,186 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the configured {@link Hypervisor} clouds by description, so slaves,
+ * launchers and configuration pages find their hypervisor and virtual machine
+ * without scanning every cloud and every virtual machine.
+ *
+ * The index is an immutable snapshot, replaced whenever the Jenkins
+ * configuration is saved, which is where cloud changes end up. A lookup that
+ * misses rebuilds the snapshot once, in case clouds were changed without a
+ * save. Hypervisors dropped from the configuration by a rebuild are stopped.
+ *
+ * @author jbh
+ */
+final class HypervisorRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(HypervisorRegistry.class.getName());
+    private static volatile Snapshot snapshot;
+
+    private HypervisorRegistry() {
+    }
+
+    /**
+     * Looks up a hypervisor by description, or returns null.
+     */
+    static Hypervisor get(String description) {
+        if (description == null) {
+            return null;
+        }
+        Hypervisor hypervisor = getSnapshot().byDescription.get(description);
+        if (hypervisor == null) {
+            hypervisor = rebuild().byDescription.get(description);
+        }
+        return hypervisor;
+    }
+
+    /**
+     * All configured hypervisors in configuration order.
+     */
+    static List<Hypervisor> getAll() {
+        return getSnapshot().all;
+    }
+
+    /**
+     * Looks up a virtual machine by hypervisor description and name, or
+     * returns null.
+     */
+    static JenkinsVirtualMachine getVirtualMachine(String description, String name) {
+        Hypervisor hypervisor = get(description);
+        return hypervisor != null && name != null ? hypervisor.getVirtualMachine(name) : null;
+    }
+
+    /**
+     * Looks up a virtual machine by hypervisor description and managed object
+     * reference value, or returns null.
+     */
+    static JenkinsVirtualMachine getVirtualMachineByMoRef(String description, String moRef) {
+        Hypervisor hypervisor = get(description);
+        return hypervisor != null && moRef != null ? hypervisor.getVirtualMachineByMoRef(moRef) : null;
+    }
+
+    /**
+     * Virtual machines of the described hypervisor, empty if there is none.
+     */
+    static List<JenkinsVirtualMachine> getVirtualMachines(String description) {
+        Hypervisor hypervisor = get(description);
+        return hypervisor != null ? hypervisor.getVirtualMachines() : Collections.<JenkinsVirtualMachine> emptyList();
+    }
+
+    /**
+     * Names of virtual machines on any hypervisor starting with the prefix,
+     * for typeahead fields that do not know the hypervisor yet.
+     */
+    static List<String> completeVirtualMachineNames(String prefix, int limit) {
+        List<String> names = new ArrayList<String>();
+        for (Hypervisor hypervisor : getAll()) {
+            if (names.size() >= limit) {
+                break;
+            }
+            try {
+                for (VirtualMachineInfo info : hypervisor.searchVirtualMachines(prefix, false, null, null, 0,
+                        limit - names.size()).getItems()) {
+                    names.add(info.getName());
+                }
+            } catch (VMWareException e) {
+                LOGGER.log(Level.FINE, "Failed to complete virtual machine names on " + hypervisor.getHypervisorDescription(), e);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Rebuilds the snapshot from the configured clouds.
+     */
+    static void invalidate() {
+        rebuild();
+    }
+
+    private static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        return current != null ? current : rebuild();
+    }
+
+    /**
+     * Replaces the snapshot and stops the hypervisors that are no longer
+     * configured. Saving the configuration replaces every cloud with a new
+     * object, and nothing else would stop the tracking, executors and
+     * sessions of the old ones.
+     */
+    private static Snapshot rebuild() {
+        Hudson hudson = Hudson.getInstance();
+        Snapshot rebuilt = new Snapshot(hudson);
+        if (hudson == null) {
+            return rebuilt;
+        }
+        Snapshot previous;
+        synchronized (HypervisorRegistry.class) {
+            previous = snapshot;
+            snapshot = rebuilt;
+        }
+        if (previous != null) {
+            Set<Hypervisor> current = Collections.newSetFromMap(new IdentityHashMap<Hypervisor, Boolean>());
+            current.addAll(rebuilt.all);
+            for (Hypervisor hypervisor : previous.all) {
+                if (!current.contains(hypervisor)) {
+                    LOGGER.log(Level.FINE, "Stopping replaced hypervisor {0}", hypervisor.getHypervisorDescription());
+                    hypervisor.stop();
+                }
+            }
+        }
+        return rebuilt;
+    }
+
+    private static final class Snapshot {
+        private final List<Hypervisor> all;
+        private final Map<String, Hypervisor> byDescription = new HashMap<String, Hypervisor>();
+
+        Snapshot(Hudson hudson) {
+            List<Hypervisor> hypervisors = new ArrayList<Hypervisor>();
+            if (hudson != null) {
+                for (Cloud cloud : hudson.clouds) {
+                    if (cloud instanceof Hypervisor) {
+                        Hypervisor hypervisor = (Hypervisor) cloud;
+                        hypervisors.add(hypervisor);
+                        // same rule as the old lookups, the first cloud with a description wins
+                        if (!byDescription.containsKey(hypervisor.getHypervisorDescription())) {
+                            byDescription.put(hypervisor.getHypervisorDescription(), hypervisor);
+                        }
+                    }
+                }
+            }
+            all = Collections.unmodifiableList(hypervisors);
+        }
+    }
+
+    /**
+     * Rebuilds the snapshot whenever the global configuration, and with it
+     * the list of clouds, is saved.
+     */
+    @Extension
+    public static class ConfigurationListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Hudson) {
+                invalidate();
+            }
+        }
+    }
+}
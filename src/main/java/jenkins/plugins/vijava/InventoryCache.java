@@ -0,0 +1,321 @@
+package jenkins.plugins.vijava;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link VirtualMachineInventory} current in the background.
+ *
+ * A tracker thread takes one full snapshot from the {@link InventorySource}
+ * and then applies the incremental updates it reports. On a cold start the
+ * source's parallel {@link InventorySource#load()} is served until the first
+ * update arrives, so readers always get
+ * the latest snapshot without a round-trip to the hypervisor. When the source
+ * fails the last snapshot keeps being served, the cache reports itself as
+ * stale and the tracker reconnects with a growing back-off.
+ *
+ * With an {@link InventoryStore} the cache starts out with the snapshot
+ * stored by the previous run, reported as stale since it was saved, and
+ * writes the current snapshot back every few minutes and when stopped.
+ *
+ * @author jbh
+ */
+class InventoryCache {
+
+    private static final Logger LOGGER = Logger.getLogger(InventoryCache.class.getName());
+    private static final long MIN_RETRY_DELAY = 5 * 1000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+    /**
+     * Shortest time between two writes of the snapshot to the store.
+     */
+    private static final long SAVE_INTERVAL = 2 * 60 * 1000;
+
+    private final String name;
+    private final InventorySource source;
+    private final InventoryStore store;
+    private final Object lock = new Object();
+    private volatile VirtualMachineInventory inventory;
+    private volatile long version;
+    private volatile long synchronizedAt;
+    private volatile boolean tracking;
+    private volatile boolean running;
+    private Thread tracker;
+    private VirtualMachineInventory saved;
+    private long savedAt;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+
+    InventoryCache(String name, InventorySource source) {
+        this(name, source, null);
+    }
+
+    InventoryCache(String name, InventorySource source, InventoryStore store) {
+        this.name = name;
+        this.source = source;
+        this.store = store;
+    }
+
+    /**
+     * Serves the stored snapshot, if any, and starts tracking the source in
+     * the background. Reading the store is the only work done by the caller.
+     */
+    synchronized void start() {
+        if (tracker != null) {
+            return;
+        }
+        running = true;
+        if (inventory == null) {
+            restore();
+        }
+        tracker = new Thread(new Runnable() {
+            public void run() {
+                track();
+            }
+        }, "vSphere inventory tracker for " + name);
+        tracker.setDaemon(true);
+        tracker.start();
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (tracker != null) {
+            tracker.interrupt();
+            tracker = null;
+        }
+        source.close();
+        save(true);
+    }
+
+    /**
+     * Notified on the tracker thread after every applied update.
+     */
+    interface Listener {
+        void onUpdate(VirtualMachineInventory inventory, List<InventorySource.Change> changes);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Reports changes of an extra managed object, such as a task, to the
+     * listeners until {@link #unwatch} is called. Watches survive reconnects.
+     */
+    void watch(String type, String moRef, String[] paths) throws Exception {
+        watches.put(moRef, new Watch(type, paths));
+        source.watch(type, moRef, paths);
+    }
+
+    void unwatch(String moRef) {
+        if (watches.remove(moRef) != null) {
+            source.unwatch(moRef);
+        }
+    }
+
+    /**
+     * Latest snapshot, or null if the first one has not arrived yet.
+     */
+    VirtualMachineInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Waits up to <tt>timeout</tt> milliseconds for the first snapshot.
+     */
+    VirtualMachineInventory awaitInventory(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while (inventory == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                lock.wait(remaining);
+            }
+            return inventory;
+        }
+    }
+
+    /**
+     * Number of updates applied so far; increases every time the snapshot changes.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * True while the tracker is connected and applying updates.
+     */
+    boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * Milliseconds since the snapshot was last known to be current, zero while
+     * tracking.
+     */
+    long getStaleness() {
+        if (tracking) {
+            return 0;
+        }
+        if (synchronizedAt == 0) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() - synchronizedAt;
+    }
+
+    private void track() {
+        long retryDelay = MIN_RETRY_DELAY;
+        while (running) {
+            if (inventory == null) {
+                preload();
+            }
+            try {
+                source.open();
+                for (Map.Entry<String, Watch> watch : watches.entrySet()) {
+                    source.watch(watch.getValue().type, watch.getKey(), watch.getValue().paths);
+                }
+                String updateVersion = "";
+                VirtualMachineInventory current = VirtualMachineInventory.EMPTY;
+                boolean initial = true;
+                while (running) {
+                    InventorySource.Update update = source.waitForUpdates(updateVersion);
+                    if (update == null) {
+                        continue;
+                    }
+                    current = current.apply(update.getChanges());
+                    if (initial) {
+                        LOGGER.log(Level.INFO, "Loaded inventory of {0} with {1} virtual machines",
+                                new Object[] { name, current.size() });
+                        initial = false;
+                    }
+                    publish(current);
+                    save(false);
+                    for (Listener listener : listeners) {
+                        try {
+                            listener.onUpdate(current, update.getChanges());
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Inventory listener failed on " + name, e);
+                        }
+                    }
+                    updateVersion = update.getVersion();
+                    retryDelay = MIN_RETRY_DELAY;
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Lost inventory updates from " + name + ", retrying in " + retryDelay / 1000 + "s", e);
+            } finally {
+                tracking = false;
+                source.close();
+            }
+            try {
+                Thread.sleep(retryDelay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    private void preload() {
+        VimCalls.Scope calls = VimCalls.open("inventory load", name);
+        try {
+            VirtualMachineInventory loaded = source.load();
+            if (loaded == null) {
+                return;
+            }
+            synchronized (lock) {
+                if (inventory == null) {
+                    inventory = loaded;
+                    version++;
+                    synchronizedAt = System.currentTimeMillis();
+                    lock.notifyAll();
+                }
+            }
+            LOGGER.log(Level.INFO, "Preloaded inventory of {0} with {1} virtual machines", new Object[] { name, loaded.size() });
+            save(true);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to preload the inventory of " + name + ", waiting for the first update", e);
+        } finally {
+            calls.close();
+        }
+    }
+
+    private void restore() {
+        if (store == null) {
+            return;
+        }
+        try {
+            InventoryStore.Snapshot stored = store.load();
+            if (stored == null) {
+                return;
+            }
+            synchronized (lock) {
+                inventory = stored.getInventory();
+                version++;
+                synchronizedAt = stored.getSavedAt();
+                lock.notifyAll();
+            }
+            synchronized (this) {
+                saved = stored.getInventory();
+                savedAt = System.currentTimeMillis();
+            }
+            LOGGER.log(Level.INFO, "Restored inventory of {0} with {1} virtual machines from {2}", new Object[] { name,
+                    stored.getInventory().size(), store.getFile() });
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Ignoring the stored inventory of " + name, e);
+        }
+    }
+
+    /**
+     * Writes the current snapshot to the store if it changed, at most once
+     * per {@link #SAVE_INTERVAL} unless <tt>force</tt> is set.
+     */
+    private synchronized void save(boolean force) {
+        VirtualMachineInventory current = inventory;
+        if (store == null || current == null || current == saved) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!force && now - savedAt < SAVE_INTERVAL) {
+            return;
+        }
+        try {
+            store.save(current, synchronizedAt);
+            saved = current;
+            savedAt = now;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to store the inventory of " + name, e);
+        }
+    }
+
+    private void publish(VirtualMachineInventory current) {
+        synchronized (lock) {
+            inventory = current;
+            version++;
+            synchronizedAt = System.currentTimeMillis();
+            tracking = true;
+            lock.notifyAll();
+        }
+    }
+
+    private static final class Watch {
+        private final String type;
+        private final String[] paths;
+
+        Watch(String type, String[] paths) {
+            this.type = type;
+            this.paths = paths;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Loads a full {@link VirtualMachineInventory} in parallel shards.
+ *
+ * Two cheap calls list the datacenters and the top level entries of their
+ * virtual machine folders. Every sub folder and vApp found there becomes a
+ * shard, and the virtual machines directly in a datacenter's folder are
+ * split into shards of a bounded size. The shards are then fetched at the same time, each on its own
+ * pooled session, and merged into one snapshot. Folders partition the
+ * virtual machines of a datacenter, so every machine is fetched exactly once.
+ *
+ * @author jbh
+ */
+final class InventoryDiscovery {
+
+    private static final Logger LOGGER = Logger.getLogger(InventoryDiscovery.class.getName());
+    private static final String FOLDER = "Folder";
+    private static final String DATACENTER = "Datacenter";
+    private static final String VM_FOLDER = "vmFolder";
+    private static final String CHILD_ENTITY = "childEntity";
+    private static final String NAME = "name";
+    /**
+     * Most virtual machines fetched in one shard when they sit directly in a
+     * datacenter's folder.
+     */
+    private static final int MAX_SHARD_SIZE = 250;
+
+    private InventoryDiscovery() {
+    }
+
+    /**
+     * Fetches every virtual machine of the hypervisor, with up to as many
+     * shards in flight as the hypervisor allows sessions.
+     */
+    static VirtualMachineInventory discover(Hypervisor hypervisor) throws VMWareException {
+        long started = System.currentTimeMillis();
+        final HypervisorConnectionPool pool = hypervisor.getConnectionPool();
+        List<ObjectSpec[]> shards = pool.execute(new HypervisorConnectionPool.Call<List<ObjectSpec[]>>() {
+            public List<ObjectSpec[]> call(ServiceInstance session) throws Exception {
+                return findShards(session.getPropertyCollector(), session.getRootFolder().getMOR());
+            }
+        });
+        if (shards.isEmpty()) {
+            return VirtualMachineInventory.EMPTY;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(shards.size(), hypervisor.getMaxSessions()),
+                new NamedThreadFactory("vSphere discovery for " + hypervisor.getHypervisorHost()));
+        try {
+            List<Future<ObjectContent[]>> results = new ArrayList<Future<ObjectContent[]>>(shards.size());
+            final VimCalls.Scope calls = VimCalls.current();
+            for (final ObjectSpec[] shard : shards) {
+                results.add(executor.submit(new Callable<ObjectContent[]>() {
+                    public ObjectContent[] call() throws Exception {
+                        VimCalls.Scope previous = calls != null ? calls.enter() : null;
+                        try {
+                            return pool.execute(new HypervisorConnectionPool.Call<ObjectContent[]>() {
+                                public ObjectContent[] call(ServiceInstance session) throws Exception {
+                                    return VirtualMachineInventory.retrieve(session.getPropertyCollector(), shard);
+                                }
+                            });
+                        } finally {
+                            VimCalls.restore(previous);
+                        }
+                    }
+                }));
+            }
+            Map<String, VirtualMachineInfo> merged = new LinkedHashMap<String, VirtualMachineInfo>();
+            for (Future<ObjectContent[]> result : results) {
+                ObjectContent[] contents = result.get();
+                if (contents != null) {
+                    for (ObjectContent content : contents) {
+                        VirtualMachineInfo info = VirtualMachineInventory.toInfo(content);
+                        merged.put(info.getMoRef(), info);
+                    }
+                }
+            }
+            VirtualMachineInventory inventory = new VirtualMachineInventory(merged.values());
+            LOGGER.log(Level.INFO, "Discovered {0} virtual machines on {1} in {2} shards in {3} ms", new Object[] {
+                    inventory.size(), hypervisor.getHypervisorHost(), shards.size(), System.currentTimeMillis() - started });
+            return inventory;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new VMWareException("Failed to discover the inventory of " + hypervisor.getHypervisorHost(),
+                    cause instanceof Exception ? (Exception) cause : e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VMWareException("Interrupted discovering the inventory of " + hypervisor.getHypervisorHost(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the datacenters below the root folder and splits their virtual
+     * machine folders into shards.
+     */
+    static List<ObjectSpec[]> findShards(PropertyCollector collector, ManagedObjectReference rootFolder) throws Exception {
+        List<ManagedObjectReference> vmFolders = new ArrayList<ManagedObjectReference>();
+        for (ObjectContent datacenter : retrieve(collector, folderWalk(rootFolder), DATACENTER, VM_FOLDER)) {
+            Object vmFolder = value(datacenter, VM_FOLDER);
+            if (vmFolder instanceof ManagedObjectReference) {
+                vmFolders.add((ManagedObjectReference) vmFolder);
+            }
+        }
+        if (vmFolders.isEmpty()) {
+            return new ArrayList<ObjectSpec[]>();
+        }
+
+        ObjectSpec[] folderSpecs = new ObjectSpec[vmFolders.size()];
+        for (int i = 0; i < folderSpecs.length; i++) {
+            folderSpecs[i] = objectSpec(vmFolders.get(i), false, null);
+        }
+        List<ObjectSpec[]> shards = new ArrayList<ObjectSpec[]>();
+        List<ObjectSpec> virtualMachines = new ArrayList<ObjectSpec>();
+        SelectionSpec[] fullTraversal = PropertyCollectorUtil.buildFullTraversal();
+        for (ObjectContent folder : retrieve(collector, folderSpecs, FOLDER, CHILD_ENTITY)) {
+            for (ManagedObjectReference child : toMoRefs(value(folder, CHILD_ENTITY))) {
+                if (VirtualMachineInfo.TYPE.equals(child.getType())) {
+                    virtualMachines.add(objectSpec(child, false, null));
+                } else {
+                    shards.add(new ObjectSpec[] { objectSpec(child, true, fullTraversal) });
+                }
+            }
+        }
+        for (int from = 0; from < virtualMachines.size(); from += MAX_SHARD_SIZE) {
+            List<ObjectSpec> chunk = virtualMachines.subList(from, Math.min(from + MAX_SHARD_SIZE, virtualMachines.size()));
+            shards.add(chunk.toArray(new ObjectSpec[chunk.size()]));
+        }
+        return shards;
+    }
+
+    /**
+     * Names of all folders, including the virtual machine folders inside the
+     * datacenters, by managed object reference value.
+     */
+    static Map<String, String> findFolderNames(PropertyCollector collector, ManagedObjectReference rootFolder)
+            throws Exception {
+        SelectionSpec recurse = new SelectionSpec();
+        recurse.setName("folderWalk");
+        TraversalSpec vmFolder = new TraversalSpec();
+        vmFolder.setName("datacenterVmFolder");
+        vmFolder.setType(DATACENTER);
+        vmFolder.setPath(VM_FOLDER);
+        vmFolder.setSkip(Boolean.FALSE);
+        vmFolder.setSelectSet(new SelectionSpec[] { recurse });
+
+        Map<String, String> names = new HashMap<String, String>();
+        for (ObjectContent folder : retrieve(collector, folderWalk(rootFolder, vmFolder), FOLDER, NAME)) {
+            Object name = value(folder, NAME);
+            if (name != null) {
+                names.put(folder.getObj().getVal(), name.toString());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Object spec visiting the folder tree below <tt>rootFolder</tt>. It only
+     * descends into datacenters through the given extra traversals.
+     */
+    private static ObjectSpec[] folderWalk(ManagedObjectReference rootFolder, TraversalSpec... extra) {
+        SelectionSpec recurse = new SelectionSpec();
+        recurse.setName("folderWalk");
+        TraversalSpec walk = new TraversalSpec();
+        walk.setName("folderWalk");
+        walk.setType(FOLDER);
+        walk.setPath(CHILD_ENTITY);
+        walk.setSkip(Boolean.FALSE);
+        SelectionSpec[] next = new SelectionSpec[extra.length + 1];
+        next[0] = recurse;
+        System.arraycopy(extra, 0, next, 1, extra.length);
+        walk.setSelectSet(next);
+        return new ObjectSpec[] { objectSpec(rootFolder, true, new SelectionSpec[] { walk }) };
+    }
+
+    private static ObjectSpec objectSpec(ManagedObjectReference mor, boolean skip, SelectionSpec[] selectSet) {
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(mor);
+        objectSpec.setSkip(skip);
+        if (selectSet != null) {
+            objectSpec.setSelectSet(selectSet);
+        }
+        return objectSpec;
+    }
+
+    private static ObjectContent[] retrieve(PropertyCollector collector, ObjectSpec[] objectSpecs, String type, String path)
+            throws Exception {
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(type);
+        propertySpec.setAll(Boolean.FALSE);
+        propertySpec.setPathSet(new String[] { path });
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(objectSpecs);
+        filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+        ObjectContent[] contents = VimCalls.retrieveProperties(collector, filterSpec);
+        return contents != null ? contents : new ObjectContent[0];
+    }
+
+    private static Object value(ObjectContent content, String path) {
+        if (content.getPropSet() != null) {
+            for (DynamicProperty property : content.getPropSet()) {
+                if (path.equals(property.getName())) {
+                    return property.getVal();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<ManagedObjectReference> toMoRefs(Object value) {
+        List<ManagedObjectReference> result = new ArrayList<ManagedObjectReference>();
+        ManagedObjectReference[] mors = null;
+        if (value instanceof ArrayOfManagedObjectReference) {
+            mors = ((ArrayOfManagedObjectReference) value).getManagedObjectReference();
+        } else if (value instanceof ManagedObjectReference[]) {
+            mors = (ManagedObjectReference[]) value;
+        }
+        if (mors != null) {
+            result.addAll(Arrays.asList(mors));
+        }
+        return result;
+    }
+}
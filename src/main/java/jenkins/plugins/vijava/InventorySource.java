@@ -0,0 +1,118 @@
+package jenkins.plugins.vijava;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feed of property collector updates consumed by {@link InventoryCache}.
+ *
+ * The first call to {@link #waitForUpdates(String)} with an empty version
+ * returns every tracked object as {@link Kind#ENTER}; later calls block until
+ * something changed since the given version.
+ *
+ * @author jbh
+ */
+interface InventorySource {
+
+    /**
+     * Logs in and registers the property filters.
+     */
+    void open() throws Exception;
+
+    /**
+     * Fetches a full snapshot without going through the update feed, so
+     * readers can be served while the first update is being assembled.
+     * Returns null if the source has no faster way than the first update.
+     */
+    VirtualMachineInventory load() throws Exception;
+
+    /**
+     * Blocks until there are changes newer than <tt>version</tt>. Returns null
+     * if the wait timed out without changes, to be called again with the same
+     * version.
+     */
+    Update waitForUpdates(String version) throws Exception;
+
+    /**
+     * Releases the session, aborting a pending {@link #waitForUpdates(String)}.
+     */
+    void close();
+
+    /**
+     * Starts reporting changes to the given properties of one extra managed
+     * object, such as a task, through {@link #waitForUpdates(String)}.
+     */
+    void watch(String type, String moRef, String[] paths) throws Exception;
+
+    /**
+     * Stops reporting changes registered with {@link #watch}.
+     */
+    void unwatch(String moRef);
+
+    enum Kind {
+        ENTER, MODIFY, LEAVE
+    }
+
+    /**
+     * Changed properties of one managed object.
+     */
+    final class Change {
+        private final Kind kind;
+        private final String type;
+        private final String moRef;
+        private final Map<String, Object> properties;
+
+        Change(Kind kind, String type, String moRef, Map<String, Object> properties) {
+            this.kind = kind;
+            this.type = type;
+            this.moRef = moRef;
+            this.properties = Collections.unmodifiableMap(properties);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getMoRef() {
+            return moRef;
+        }
+
+        /**
+         * New property values keyed by property path. Removed properties map to null.
+         */
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + type + ":" + moRef + " " + properties;
+        }
+    }
+
+    /**
+     * One batch of changes and the version to wait on next.
+     */
+    final class Update {
+        private final String version;
+        private final List<Change> changes;
+
+        Update(String version, List<Change> changes) {
+            this.version = version;
+            this.changes = Collections.unmodifiableList(changes);
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package jenkins.plugins.vijava;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Last known {@link VirtualMachineInventory} of one hypervisor, kept in a
+ * compressed file under <tt>JENKINS_HOME/vmware-slave</tt> so the inventory
+ * is available as soon as Jenkins starts, before the hypervisor answers.
+ *
+ * Only the tracked property values are written, as strings, numbers and lists
+ * of strings, so the file does not depend on the vSphere API classes. A file
+ * that cannot be read is ignored.
+ *
+ * @author jbh
+ */
+final class InventoryStore {
+
+    private static final int FORMAT = 1;
+
+    private final File file;
+
+    InventoryStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Store for the given hypervisor host in the Jenkins home, or null when
+     * Jenkins is not running.
+     */
+    static InventoryStore forHost(String hypervisorHost) {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null || hypervisorHost == null) {
+            return null;
+        }
+        File directory = new File(hudson.getRootDir(), "vmware-slave");
+        return new InventoryStore(new File(directory, "inventory-" + hypervisorHost.replaceAll("[^A-Za-z0-9._-]", "_") + ".ser.gz"));
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the stored snapshot, or returns null if there is none.
+     */
+    Snapshot load() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != FORMAT) {
+                return null;
+            }
+            long savedAt = in.readLong();
+            int size = in.readInt();
+            List<VirtualMachineInfo> machines = new ArrayList<VirtualMachineInfo>(size);
+            for (int i = 0; i < size; i++) {
+                String moRef = in.readUTF();
+                @SuppressWarnings("unchecked")
+                Map<String, Object> properties = (Map<String, Object>) in.readObject();
+                machines.add(new VirtualMachineInfo(moRef, properties));
+            }
+            return new Snapshot(new VirtualMachineInventory(machines), savedAt);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable inventory in " + file, e);
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable inventory in " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces the stored snapshot. The file is written next to the old one
+     * and renamed, so a crash never leaves a partial snapshot behind.
+     */
+    void save(VirtualMachineInventory inventory, long synchronizedAt) throws IOException {
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File temp = new File(directory, file.getName() + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp))));
+        try {
+            out.writeInt(FORMAT);
+            out.writeLong(synchronizedAt);
+            out.writeInt(inventory.size());
+            for (VirtualMachineInfo info : inventory.getAll()) {
+                out.writeUTF(info.getMoRef());
+                out.writeObject(toStoredProperties(info));
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // renaming over an existing file fails on Windows
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    private static HashMap<String, Object> toStoredProperties(VirtualMachineInfo info) {
+        HashMap<String, Object> properties = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> property : info.toProperties().entrySet()) {
+            Object value = property.getValue();
+            if (value instanceof Enum) {
+                value = ((Enum<?>) value).name();
+            } else if (value instanceof List) {
+                value = new ArrayList<Object>((List<?>) value);
+            }
+            properties.put(property.getKey(), value);
+        }
+        return properties;
+    }
+
+    /**
+     * A stored inventory and when it was last known to be current.
+     */
+    static final class Snapshot {
+        private final VirtualMachineInventory inventory;
+        private final long savedAt;
+
+        Snapshot(VirtualMachineInventory inventory, long savedAt) {
+            this.inventory = inventory;
+            this.savedAt = savedAt;
+        }
+
+        VirtualMachineInventory getInventory() {
+            return inventory;
+        }
+
+        long getSavedAt() {
+            return savedAt;
+        }
+    }
+}
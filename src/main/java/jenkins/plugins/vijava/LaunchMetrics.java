@@ -0,0 +1,259 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Durations of the phases of connecting to hypervisors and of launching and
+ * stopping virtual machines, as histograms per hypervisor and per virtual
+ * machine.
+ *
+ * Every sample is counted twice, once for the virtual machine and once for
+ * all virtual machines of its hypervisor, so per hypervisor figures need no
+ * merging. Histograms have fixed buckets and take constant memory however
+ * many samples they count. Figures are kept in memory until Jenkins restarts.
+ *
+ * @author jbh
+ */
+public final class LaunchMetrics {
+
+    /**
+     * Virtual machine key of the histograms covering a whole hypervisor.
+     */
+    static final String ALL = "*";
+
+    /**
+     * Upper bounds of the histogram buckets in milliseconds; a last bucket
+     * counts everything slower.
+     */
+    static final long[] BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 60000, 120000, 300000, 600000 };
+
+    public enum Phase {
+        CONNECT("Connect and log in"),
+        LOOKUP("Look up virtual machine"),
+        POWER_ON("Power on task"),
+        TOOLS_READY("VMware Tools ready"),
+        GUEST_NETWORK("Guest network"),
+        AGENT_PORT("Agent port"),
+        DELEGATE_LAUNCH("Delegate launch"),
+        LAUNCH("Whole launch"),
+        STOP("Power off, suspend or revert");
+
+        private final String displayName;
+
+        private Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Histogram[]>> histograms =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Histogram[]>>();
+
+    private LaunchMetrics() {
+    }
+
+    /**
+     * Counts one sample for the virtual machine, or only for the hypervisor
+     * if <tt>virtualMachineName</tt> is null.
+     */
+    static void record(Phase phase, String hypervisorDescription, String virtualMachineName, long millis) {
+        if (hypervisorDescription == null) {
+            return;
+        }
+        histograms(hypervisorDescription, ALL)[phase.ordinal()].record(millis);
+        if (virtualMachineName != null) {
+            histograms(hypervisorDescription, virtualMachineName)[phase.ordinal()].record(millis);
+        }
+    }
+
+    /**
+     * Hypervisors with samples, sorted by description.
+     */
+    public static List<String> getHypervisors() {
+        return new ArrayList<String>(new TreeSet<String>(histograms.keySet()));
+    }
+
+    /**
+     * Histogram of the phase for the virtual machine, or for the whole
+     * hypervisor if <tt>virtualMachineName</tt> is {@link #ALL}. Never null.
+     */
+    public static Histogram get(String hypervisorDescription, String virtualMachineName, Phase phase) {
+        Map<String, Histogram[]> byVirtualMachine = histograms.get(hypervisorDescription);
+        Histogram[] phases = byVirtualMachine != null ? byVirtualMachine.get(virtualMachineName) : null;
+        return phases != null ? phases[phase.ordinal()] : new Histogram();
+    }
+
+    /**
+     * Virtual machines of the hypervisor with the slowest launches first,
+     * by 90th percentile of the whole launch.
+     */
+    public static List<String> getSlowestVirtualMachines(final String hypervisorDescription, int limit) {
+        Map<String, Histogram[]> byVirtualMachine = histograms.get(hypervisorDescription);
+        if (byVirtualMachine == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<String>(byVirtualMachine.keySet());
+        names.remove(ALL);
+        Collections.sort(names, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long pa = get(hypervisorDescription, a, Phase.LAUNCH).getPercentileMillis(0.9);
+                long pb = get(hypervisorDescription, b, Phase.LAUNCH).getPercentileMillis(0.9);
+                return pa != pb ? (pa > pb ? -1 : 1) : a.compareTo(b);
+            }
+        });
+        return names.size() > limit ? names.subList(0, limit) : names;
+    }
+
+    /**
+     * All histograms with samples, or only those of one hypervisor.
+     */
+    static JSONObject toJSON(String onlyHypervisor) {
+        JSONArray hypervisors = new JSONArray();
+        for (String hypervisor : getHypervisors()) {
+            if (onlyHypervisor != null && !onlyHypervisor.equals(hypervisor)) {
+                continue;
+            }
+            JSONArray virtualMachines = new JSONArray();
+            List<String> names = new ArrayList<String>(new TreeSet<String>(histograms.get(hypervisor).keySet()));
+            names.remove(ALL);
+            for (String name : names) {
+                JSONObject virtualMachine = new JSONObject();
+                virtualMachine.put("name", name);
+                virtualMachine.put("phases", toJSON(hypervisor, name));
+                virtualMachines.add(virtualMachine);
+            }
+            JSONObject entry = new JSONObject();
+            entry.put("name", hypervisor);
+            entry.put("phases", toJSON(hypervisor, ALL));
+            entry.put("virtualMachines", virtualMachines);
+            hypervisors.add(entry);
+        }
+        JSONArray bounds = new JSONArray();
+        for (long bound : BOUNDS) {
+            bounds.add(bound);
+        }
+        JSONObject result = new JSONObject();
+        result.put("bucketBoundsMillis", bounds);
+        result.put("hypervisors", hypervisors);
+        return result;
+    }
+
+    private static JSONObject toJSON(String hypervisor, String virtualMachineName) {
+        JSONObject phases = new JSONObject();
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = get(hypervisor, virtualMachineName, phase);
+            if (histogram.getCount() > 0) {
+                phases.put(phase.name(), histogram.toJSON());
+            }
+        }
+        return phases;
+    }
+
+    private static Histogram[] histograms(String hypervisorDescription, String virtualMachineName) {
+        ConcurrentMap<String, Histogram[]> byVirtualMachine = histograms.get(hypervisorDescription);
+        if (byVirtualMachine == null) {
+            histograms.putIfAbsent(hypervisorDescription, new ConcurrentHashMap<String, Histogram[]>());
+            byVirtualMachine = histograms.get(hypervisorDescription);
+        }
+        Histogram[] phases = byVirtualMachine.get(virtualMachineName);
+        if (phases == null) {
+            Histogram[] created = new Histogram[Phase.values().length];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new Histogram();
+            }
+            phases = byVirtualMachine.putIfAbsent(virtualMachineName, created);
+            if (phases == null) {
+                phases = created;
+            }
+        }
+        return phases;
+    }
+
+    /**
+     * Sample count per bucket, with count, sum and extremes.
+     */
+    public static final class Histogram {
+        private final long[] buckets = new long[BOUNDS.length + 1];
+        private long count;
+        private long sum;
+        private long min;
+        private long max;
+
+        synchronized void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            min = count == 0 ? millis : Math.min(min, millis);
+            max = Math.max(max, millis);
+            count++;
+            sum += millis;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMeanMillis() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public synchronized long getMinMillis() {
+            return min;
+        }
+
+        public synchronized long getMaxMillis() {
+            return max;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile, at most the
+         * slowest sample.
+         */
+        public synchronized long getPercentileMillis(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[bucket], max);
+                }
+            }
+            return max;
+        }
+
+        synchronized JSONObject toJSON() {
+            JSONArray counts = new JSONArray();
+            for (long bucket : buckets) {
+                counts.add(bucket);
+            }
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("meanMillis", getMeanMillis());
+            json.put("minMillis", min);
+            json.put("p50Millis", getPercentileMillis(0.5));
+            json.put("p90Millis", getPercentileMillis(0.9));
+            json.put("p99Millis", getPercentileMillis(0.99));
+            json.put("maxMillis", max);
+            json.put("buckets", counts);
+            return json;
+        }
+    }
+}
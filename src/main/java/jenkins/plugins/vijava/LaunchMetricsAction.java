@@ -0,0 +1,104 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Status page at <tt>/vmware-metrics</tt> showing the {@link LaunchMetrics}
+ * of every hypervisor and the {@link VimCalls} accounting, with the same
+ * figures as JSON at <tt>/vmware-metrics/json</tt> and
+ * <tt>/vmware-metrics/vimCalls</tt>. Only administrators see the page.
+ *
+ * @author jbh
+ */
+@Extension
+public class LaunchMetricsAction implements RootAction, StaplerProxy {
+
+    /**
+     * Virtual machines listed per hypervisor on the status page.
+     */
+    private static final int SLOWEST = 20;
+
+    public String getIconFileName() {
+        return Hudson.getInstance().hasPermission(Hudson.ADMINISTER) ? "clock.gif" : null;
+    }
+
+    public String getDisplayName() {
+        return "vSphere Launch Metrics";
+    }
+
+    public String getUrlName() {
+        return "vmware-metrics";
+    }
+
+    public Object getTarget() {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        return this;
+    }
+
+    public List<String> getHypervisors() {
+        return LaunchMetrics.getHypervisors();
+    }
+
+    public LaunchMetrics.Phase[] getPhases() {
+        return LaunchMetrics.Phase.values();
+    }
+
+    public String getAll() {
+        return LaunchMetrics.ALL;
+    }
+
+    /**
+     * Histogram of the phase with the given name, for the virtual machine or
+     * for the whole hypervisor if <tt>virtualMachineName</tt> is {@link #getAll()}.
+     */
+    public LaunchMetrics.Histogram getHistogram(String hypervisorDescription, String virtualMachineName, String phase) {
+        return LaunchMetrics.get(hypervisorDescription, virtualMachineName, LaunchMetrics.Phase.valueOf(phase));
+    }
+
+    public List<String> getSlowestVirtualMachines(String hypervisorDescription) {
+        return LaunchMetrics.getSlowestVirtualMachines(hypervisorDescription, SLOWEST);
+    }
+
+    public List<VimCalls.Stats> getVimMethods() {
+        return VimCalls.getMethods();
+    }
+
+    public List<VimCalls.Stats> getVimOperations() {
+        return VimCalls.getOperations();
+    }
+
+    public long getSlowCallMillis() {
+        return VimCalls.SLOW_CALL;
+    }
+
+    /**
+     * All histograms as JSON, or only those of the hypervisor given by the
+     * <tt>hypervisor</tt> parameter.
+     */
+    public void doJson(StaplerRequest req, StaplerResponse rsp, @QueryParameter("hypervisor") String hypervisorDescription)
+            throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(LaunchMetrics.toJSON(Util.fixEmptyAndTrim(hypervisorDescription)).toString());
+    }
+
+    /**
+     * vSphere API call figures as JSON.
+     */
+    public void doVimCalls(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(VimCalls.toJSON().toString());
+    }
+}
@@ -0,0 +1,482 @@
+package jenkins.plugins.vijava;
+
+import hudson.AbortException;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Brings a virtual machine up as a chain of asynchronous stages: resolve the
+ * virtual machine, power it on and wait for VMware Tools unless it was already
+ * running, optionally wait for the guest network and until the agent port
+ * accepts connections, and finally hand over to the delegate launcher. The guest network is only waited for
+ * with a readiness port, guests whose Tools never report an IP address, such
+ * as JNLP slaves on an isolated network, launch without it.
+ *
+ * Short SOAP calls run on the hypervisor's bounded launch executor, waiting
+ * stages hold no thread at all and are resolved by the hypervisor's
+ * {@link VirtualMachineWatcher}. Every stage has a timeout, its duration is
+ * written to the launch log and counted in the {@link LaunchMetrics}, and the
+ * pipeline is cancelled when the computer is removed while it is running.
+ *
+ * The delegate launch is handed to the thread waiting in {@link #await()},
+ * which is the remoting thread Jenkins gave the launch, so a launch holds one
+ * remoting thread rather than a second one for the delegate.
+ *
+ * @author jbh
+ */
+class LaunchPipeline {
+
+    private static final long CANCEL_CHECK_PERIOD = 10 * 1000;
+    private static final long PROBE_CONNECT_TIMEOUT = 2 * 1000;
+    private static final long PROBE_INITIAL_DELAY = 500;
+    private static final long PROBE_MAX_DELAY = 10 * 1000;
+    /**
+     * Time the delegate launch is given in the overall launch timeout.
+     */
+    private static final long DELEGATE_TIMEOUT = 10 * 60 * 1000;
+
+    private final Hypervisor hypervisor;
+    private final String virtualMachineName;
+    private final int readinessPort;
+    private final ComputerLauncher delegate;
+    private final SlaveComputer computer;
+    private final TaskListener listener;
+    private final PrintStream logger;
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final PendingResult<VirtualMachineInfo> result = new PendingResult<VirtualMachineInfo>();
+    private final long startedAt = System.currentTimeMillis();
+    private final VimCalls.Scope calls;
+
+    /**
+     * Work for the thread waiting in {@link #await()}: the delegate launch,
+     * and a wake up once the launch has finished.
+     */
+    private final BlockingQueue<Runnable> handoff = new LinkedBlockingQueue<Runnable>();
+    private final Runnable wakeUp = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private volatile VirtualMachineInfo info;
+    /**
+     * Whether the virtual machine was running when it was resolved, in which
+     * case the state of its Tools is not waited for.
+     */
+    private volatile boolean wasRunning;
+    private volatile Future<?> current;
+    private volatile String startMode = "already running";
+
+    /**
+     * @param delegate launcher to hand over to, or null to only start the virtual machine
+     * @param computer computer being launched, or null when not launching a slave
+     * @param readinessPort guest port to wait for before the delegate launch, 0 for none
+     */
+    LaunchPipeline(Hypervisor hypervisor, String virtualMachineName, ComputerLauncher delegate, SlaveComputer computer,
+            TaskListener listener, int readinessPort) {
+        this.hypervisor = hypervisor;
+        this.virtualMachineName = virtualMachineName;
+        this.readinessPort = readinessPort;
+        this.delegate = delegate;
+        this.computer = computer;
+        this.listener = listener;
+        this.logger = listener.getLogger();
+        this.calls = VimCalls.newScope("launch", virtualMachineName);
+        stages.add(new Resolve());
+        stages.add(new PowerOn());
+        stages.add(new WaitForTools());
+        if (readinessPort > 0) {
+            stages.add(new WaitForNetwork());
+            stages.add(new WaitForPort());
+        }
+        if (delegate != null && computer != null) {
+            stages.add(new DelegateLaunch());
+        }
+    }
+
+    /**
+     * Starts the first stage and returns a future completed with the final
+     * virtual machine state once every stage has finished.
+     */
+    PendingResult<VirtualMachineInfo> start() {
+        result.addListener(new Runnable() {
+            public void run() {
+                calls.close();
+                handoff.add(wakeUp);
+            }
+        });
+        if (computer != null) {
+            final ScheduledFuture<?> cancelCheck;
+            try {
+                cancelCheck = hypervisor.getScheduler().scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        if (isComputerRemoved()) {
+                            cancel("computer " + computer.getName() + " was removed");
+                        }
+                    }
+                }, CANCEL_CHECK_PERIOD, CANCEL_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+            } catch (VMWareException e) {
+                result.setException(e);
+                return result;
+            }
+            result.addListener(new Runnable() {
+                public void run() {
+                    cancelCheck.cancel(false);
+                }
+            });
+        }
+        advance(0);
+        return result;
+    }
+
+    boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * Longest the whole launch may take, the sum of the stage timeouts.
+     */
+    long getTimeout() {
+        long timeout = 0;
+        for (Stage stage : stages) {
+            timeout += stage.timeout;
+        }
+        return stages.get(stages.size() - 1) instanceof DelegateLaunch ? timeout + DELEGATE_TIMEOUT : timeout;
+    }
+
+    /**
+     * Waits for the started launch to finish, at most {@link #getTimeout()},
+     * running the delegate launch on this thread when it is due. A launch
+     * that times out or is interrupted is cancelled. Failures are reported as
+     * an {@link AbortException}, their stack trace is already in the launch
+     * log.
+     */
+    VirtualMachineInfo await() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + getTimeout();
+        try {
+            while (!result.isDone()) {
+                long remaining = deadline - System.currentTimeMillis();
+                Runnable work = remaining > 0 ? handoff.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (work == null) {
+                    String reason = "not finished after " + getTimeout() / 1000 + "s";
+                    cancel(reason);
+                    throw new AbortException("Launch of " + virtualMachineName + " " + reason);
+                }
+                if (work == wakeUp) {
+                    // for other threads waiting on the same launch
+                    handoff.add(wakeUp);
+                }
+                work.run();
+            }
+            return result.get();
+        } catch (InterruptedException e) {
+            cancel("interrupted");
+            throw e;
+        } catch (ExecutionException e) {
+            throw new AbortException("Launch of " + virtualMachineName + " failed: " + e.getCause().getMessage());
+        } catch (CancellationException e) {
+            throw new AbortException("Launch of " + virtualMachineName + " was cancelled");
+        }
+    }
+
+    /**
+     * Aborts the stage currently running or waiting.
+     */
+    void cancel(String reason) {
+        if (result.isDone()) {
+            return;
+        }
+        logger.println("Cancelling launch of " + virtualMachineName + ": " + reason);
+        Future<?> stage = current;
+        if (stage != null) {
+            stage.cancel(true);
+        }
+        result.setException(new VMWareException("Launch of " + virtualMachineName + " cancelled: " + reason, null));
+    }
+
+    private boolean isComputerRemoved() {
+        Hudson hudson = Hudson.getInstance();
+        return computer.getNode() == null || hudson == null || hudson.getComputer(computer.getName()) != computer;
+    }
+
+    private void advance(final int index) {
+        if (result.isDone()) {
+            return;
+        }
+        if (index >= stages.size()) {
+            long duration = System.currentTimeMillis() - startedAt;
+            logger.println("Launch of " + virtualMachineName + " finished in " + duration + " ms (" + startMode + ", "
+                    + calls.getCalls() + " vSphere calls)");
+            hypervisor.recordLaunch(duration);
+            LaunchMetrics.record(LaunchMetrics.Phase.LAUNCH, hypervisor.getHypervisorDescription(), virtualMachineName, duration);
+            result.set(info);
+            return;
+        }
+        final Stage stage = stages.get(index);
+        Runnable run = VimCalls.within(calls, new Runnable() {
+            public void run() {
+                if (result.isDone()) {
+                    return;
+                }
+                if (computer != null && isComputerRemoved()) {
+                    cancel("computer " + computer.getName() + " was removed");
+                    return;
+                }
+                final long stageStart = System.currentTimeMillis();
+                final PendingResult<?> pending;
+                try {
+                    pending = stage.begin();
+                } catch (Throwable t) {
+                    fail(stage, t);
+                    return;
+                }
+                if (pending == null) {
+                    finish(stage, stageStart, stage.isTimedInline());
+                    advance(index + 1);
+                    return;
+                }
+                current = pending;
+                final ScheduledFuture<?> timeout;
+                try {
+                    timeout = hypervisor.getScheduler().schedule(new Runnable() {
+                        public void run() {
+                            pending.setException(new VMWareException(stage.name + " timed out after " + stage.timeout / 1000 + "s", null));
+                        }
+                    }, stage.timeout, TimeUnit.MILLISECONDS);
+                } catch (VMWareException e) {
+                    pending.cancel(true);
+                    fail(stage, e);
+                    return;
+                }
+                pending.addListener(VimCalls.within(calls, new Runnable() {
+                    public void run() {
+                        timeout.cancel(false);
+                        current = null;
+                        try {
+                            stage.end(pending);
+                        } catch (Throwable t) {
+                            fail(stage, t);
+                            return;
+                        }
+                        finish(stage, stageStart, true);
+                        advance(index + 1);
+                    }
+                }));
+            }
+        });
+        try {
+            stage.executor().execute(run);
+        } catch (VMWareException e) {
+            fail(stage, e);
+        } catch (RejectedExecutionException e) {
+            fail(stage, new VMWareException("Launch of " + virtualMachineName + " dropped, the hypervisor was stopped", e));
+        }
+    }
+
+    /**
+     * Logs the duration of the stage, and counts it in the metrics unless the
+     * stage found nothing to do.
+     */
+    private void finish(Stage stage, long stageStart, boolean timed) {
+        long duration = System.currentTimeMillis() - stageStart;
+        logger.println(stage.name + " took " + duration + " ms");
+        if (timed) {
+            LaunchMetrics.record(stage.phase, hypervisor.getHypervisorDescription(), virtualMachineName, duration);
+        }
+    }
+
+    private void fail(Stage stage, Throwable t) {
+        if (t instanceof ExecutionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (result.isDone()) {
+            return;
+        }
+        t.printStackTrace(listener.error(stage.name + " failed for " + virtualMachineName + ": " + t.getMessage()));
+        result.setException(t);
+    }
+
+    /**
+     * One step of the launch. {@link #begin()} either does its work inline and
+     * returns null, or returns a result the pipeline waits for before calling
+     * {@link #end(PendingResult)}.
+     */
+    private abstract class Stage {
+        final String name;
+        final LaunchMetrics.Phase phase;
+        final long timeout;
+
+        Stage(String name, LaunchMetrics.Phase phase, long timeout) {
+            this.name = name;
+            this.phase = phase;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Whether the work done by a {@link #begin()} that returns null is
+         * worth timing, rather than a check that found nothing to do.
+         */
+        boolean isTimedInline() {
+            return false;
+        }
+
+        Executor executor() throws VMWareException {
+            return hypervisor.getLaunchExecutor();
+        }
+
+        abstract PendingResult<?> begin() throws Exception;
+
+        void end(PendingResult<?> pending) throws Exception {
+            pending.get();
+        }
+    }
+
+    private final class Resolve extends Stage {
+        Resolve() {
+            super("Resolve virtual machine", LaunchMetrics.Phase.LOOKUP, 2 * 60 * 1000);
+        }
+
+        @Override
+        boolean isTimedInline() {
+            return true;
+        }
+
+        PendingResult<?> begin() throws Exception {
+            logger.println("Looking for the virtual machine on Hypervisor...");
+            info = hypervisor.getVirtualMachineInfo(virtualMachineName, true);
+            if (info == null) {
+                throw new VMWareException("Could not find virtual machine " + virtualMachineName + " on the hypervisor", null);
+            }
+            wasRunning = info.isPoweredOn();
+            logger.println("Virtual Machine Found: " + info.getGuestState());
+            return null;
+        }
+    }
+
+    private final class PowerOn extends Stage {
+        PowerOn() {
+            // includes the wait for admission behind other power ons on the same host
+            super("Power on", LaunchMetrics.Phase.POWER_ON, 15 * 60 * 1000);
+        }
+
+        PendingResult<?> begin() throws Exception {
+            if (info.isPoweredOn()) {
+                logger.println("Virtual machine is already running. No startup procedure required.");
+                return null;
+            }
+            if (info.isSuspended()) {
+                startMode = "resumed from suspend";
+                logger.println("Resuming suspended virtual machine");
+            } else {
+                startMode = "cold boot";
+                logger.println("Starting virtual machine");
+            }
+            return hypervisor.getPowerOnScheduler().powerOn(info, logger);
+        }
+    }
+
+    private final class WaitForTools extends Stage {
+        WaitForTools() {
+            super("Wait for VMware Tools", LaunchMetrics.Phase.TOOLS_READY, 5 * 60 * 1000);
+        }
+
+        PendingResult<?> begin() throws Exception {
+            if (wasRunning) {
+                // Tools may have been stopped on purpose, the guest is up either way
+                return null;
+            }
+            return hypervisor.getWatcher().await(info.getMoRef(), VirtualMachineWatcher.TOOLS_STARTED);
+        }
+
+        @Override
+        void end(PendingResult<?> pending) throws Exception {
+            info = (VirtualMachineInfo) pending.get();
+        }
+    }
+
+    private final class WaitForNetwork extends Stage {
+        WaitForNetwork() {
+            super("Wait for guest network", LaunchMetrics.Phase.GUEST_NETWORK, 5 * 60 * 1000);
+        }
+
+        PendingResult<?> begin() throws Exception {
+            if (!info.isToolsRunning()) {
+                logger.println("VMware Tools are not running, the guest network cannot be observed");
+                return null;
+            }
+            return hypervisor.getWatcher().await(info.getMoRef(), VirtualMachineWatcher.GUEST_NETWORK);
+        }
+
+        @Override
+        void end(PendingResult<?> pending) throws Exception {
+            info = (VirtualMachineInfo) pending.get();
+            logger.println("Guest reported IP address " + info.getIpAddress());
+        }
+    }
+
+    private final class WaitForPort extends Stage {
+        WaitForPort() {
+            super("Wait for port " + readinessPort, LaunchMetrics.Phase.AGENT_PORT, 5 * 60 * 1000);
+        }
+
+        PendingResult<?> begin() throws Exception {
+            if (info.getIpAddress() == null) {
+                logger.println("The guest reported no IP address, not waiting for port " + readinessPort);
+                return null;
+            }
+            logger.println("Waiting for " + info.getIpAddress() + ":" + readinessPort + " to accept connections");
+            return new PortProbe(hypervisor.getScheduler(), info.getIpAddress(), readinessPort, PROBE_CONNECT_TIMEOUT,
+                    PROBE_INITIAL_DELAY, PROBE_MAX_DELAY).start();
+        }
+
+        @Override
+        void end(PendingResult<?> pending) throws Exception {
+            logger.println("Port " + readinessPort + " accepted a connection after " + pending.get() + " attempts");
+        }
+    }
+
+    private final class DelegateLaunch extends Stage {
+        DelegateLaunch() {
+            super("Delegate launch", LaunchMetrics.Phase.DELEGATE_LAUNCH, 0);
+        }
+
+        @Override
+        boolean isTimedInline() {
+            return true;
+        }
+
+        /**
+         * Hands the launch to the thread waiting in {@link #await()}.
+         */
+        @Override
+        Executor executor() {
+            return new Executor() {
+                public void execute(Runnable command) {
+                    handoff.add(command);
+                }
+            };
+        }
+
+        PendingResult<?> begin() throws Exception {
+            logger.println("Finished startup procedure... Connecting slave client");
+            delegate.launch(computer, listener);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package jenkins.plugins.vijava;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates numbered daemon threads, so the plugin's pools show up with a
+ * readable name in thread dumps.
+ *
+ * @author jbh
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
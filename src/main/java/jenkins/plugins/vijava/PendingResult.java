@@ -0,0 +1,62 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Future completed from the outside, typically by the inventory tracker once
+ * the awaited change shows up, instead of by running a task.
+ *
+ * @author jbh
+ */
+class PendingResult<T> extends FutureTask<T> {
+
+    private final List<Runnable> listeners = new ArrayList<Runnable>();
+    private boolean completed;
+
+    PendingResult() {
+        super(new Callable<T>() {
+            public T call() throws Exception {
+                throw new IllegalStateException("PendingResult is completed with set() or setException()");
+            }
+        });
+    }
+
+    @Override
+    public void set(T value) {
+        super.set(value);
+    }
+
+    @Override
+    public void setException(Throwable t) {
+        super.setException(t);
+    }
+
+    /**
+     * Runs the listener once this result completes, immediately if it already has.
+     */
+    void addListener(Runnable listener) {
+        synchronized (listeners) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> toRun;
+        synchronized (listeners) {
+            completed = true;
+            toRun = new ArrayList<Runnable>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+}
@@ -20,9 +20,10 @@
 package jenkins.plugins.vijava;
 
 import hudson.Plugin;
+import hudson.Util;
 import hudson.model.Hudson;
-import hudson.slaves.Cloud;
 import hudson.util.ListBoxModel;
+import hudson.util.LogTaskListener;
 
 import java.io.IOException;
 import java.util.List;
@@ -30,6 +31,10 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -38,10 +43,18 @@ import org.kohsuke.stapler.StaplerResponse;
 public class PluginImpl extends Plugin {
 
     private static final java.util.logging.Logger LOGGER = Logger.getLogger(PluginImpl.class.getName());
+    private static final int DEFAULT_LIMIT = 50;
+    /**
+     * Most virtual machines returned by one request, however many match.
+     */
+    static final int MAX_LIMIT = 500;
 
     @Override
     public void start() throws Exception {
         LOGGER.log(Level.FINE, "Starting vmware-slave plugin");
+        // reads back the leases of build wrappers, so virtual machines left
+        // running by builds lost in the restart get stopped
+        VirtualMachineLeases.get();
     }
 
     /**
@@ -50,32 +63,135 @@ public class PluginImpl extends Plugin {
     @Override
     public void stop() throws Exception {
         LOGGER.log(Level.FINE, "Stopping vmware-slave plugin.");
-        for (Cloud cloud : Hudson.getInstance().clouds) {
-            if (cloud instanceof Hypervisor) {
-                ((Hypervisor) cloud).stop();
-            }
+        for (Hypervisor hypervisor : HypervisorRegistry.getAll()) {
+            hypervisor.stop();
         }
     }
 
-    public void doComputerNameValues(StaplerRequest req, StaplerResponse rsp, @QueryParameter("value") String value) throws IOException,
-            ServletException {
+    /**
+     * Lists the virtual machines of the hypervisor <tt>value</tt> whose name
+     * starts with <tt>q</tt>, at most {@link #MAX_LIMIT} of them.
+     */
+    public void doComputerNameValues(StaplerRequest req, StaplerResponse rsp, @QueryParameter("value") String value,
+            @QueryParameter("q") String query) throws IOException, ServletException {
         ListBoxModel m = new ListBoxModel();
-        List<JenkinsVirtualMachine> virtualMachines = null;
-        for (Cloud cloud : Hudson.getInstance().clouds) {
-            if (cloud instanceof Hypervisor) {
-                Hypervisor hypervisor = (Hypervisor) cloud;
-                if (value != null && value.equals(hypervisor.getHypervisorDescription())) {
-                    virtualMachines = hypervisor.getVirtualMachines();
-                    break;
+        Hypervisor hypervisor = HypervisorRegistry.get(value);
+        if (hypervisor != null) {
+            try {
+                for (VirtualMachineInfo vm : hypervisor.searchVirtualMachines(query, false, null, null, 0, MAX_LIMIT).getItems()) {
+                    m.add(new ListBoxModel.Option(vm.getName(), vm.getName()));
                 }
+            } catch (VMWareException e) {
+                LOGGER.log(Level.WARNING, "Failed to list the virtual machines of " + value, e);
             }
-        }
-        if (virtualMachines != null) {
-            for (JenkinsVirtualMachine vm : virtualMachines) {
-                m.add(new ListBoxModel.Option(vm.getName(), vm.getName()));
+            if (!m.isEmpty()) {
+                m.get(0).selected = true;
             }
-            m.get(0).selected = true;
         }
         m.writeTo(req, rsp);
     }
+
+    /**
+     * Typeahead search over the virtual machines of one hypervisor, served
+     * from its in-memory name index. Returns JSON with the total number of
+     * matches and one page of them.
+     *
+     * @param hypervisorDescription the hypervisor to search
+     * @param query name prefix, or part of the name when <tt>match</tt> is <tt>substring</tt>
+     * @param folder only virtual machines directly in a folder of this name
+     * @param label only virtual machines of slaves or pools serving this label
+     */
+    public void doSearchVirtualMachines(StaplerRequest req, StaplerResponse rsp,
+            @QueryParameter("hypervisor") String hypervisorDescription, @QueryParameter("q") String query,
+            @QueryParameter("match") String match, @QueryParameter("folder") String folder,
+            @QueryParameter("label") String label, @QueryParameter("offset") String offset,
+            @QueryParameter("limit") String limit) throws IOException, ServletException {
+        Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+        if (hypervisor == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No hypervisor " + hypervisorDescription);
+            return;
+        }
+        int from = Math.max(0, Util.tryParseNumber(offset, 0).intValue());
+        int max = Math.min(MAX_LIMIT, Math.max(1, Util.tryParseNumber(limit, DEFAULT_LIMIT).intValue()));
+        VirtualMachineIndex.Page page;
+        try {
+            page = hypervisor.searchVirtualMachines(query, "substring".equals(match), folder, label, from, max);
+        } catch (VMWareException e) {
+            LOGGER.log(Level.WARNING, "Failed to search the virtual machines of " + hypervisorDescription, e);
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
+        JSONArray items = new JSONArray();
+        for (VirtualMachineInfo vm : page.getItems()) {
+            JSONObject item = new JSONObject();
+            item.put("name", vm.getName());
+            item.put("moRef", vm.getMoRef());
+            item.put("powerState", String.valueOf(vm.getPowerState()));
+            items.add(item);
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", page.getTotal());
+        result.put("offset", from);
+        result.put("items", items);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    /**
+     * Applies a power action to the virtual machines of a hypervisor selected
+     * by name pattern or label and returns JSON with one result per virtual
+     * machine. Only administrators may POST here.
+     *
+     * @see Hypervisor#powerAll
+     */
+    public void doBulkPower(StaplerRequest req, StaplerResponse rsp,
+            @QueryParameter("hypervisor") String hypervisorDescription, @QueryParameter("action") String action,
+            @QueryParameter("pattern") String pattern, @QueryParameter("label") String label,
+            @QueryParameter("snapshot") String snapshotName) throws IOException, ServletException {
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "POST required");
+            return;
+        }
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+        if (hypervisor == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No hypervisor " + hypervisorDescription);
+            return;
+        }
+        List<BulkPowerOperation.Result> results;
+        try {
+            results = hypervisor.powerAll(BulkPowerOperation.Action.parse(action), pattern, label, snapshotName,
+                    new LogTaskListener(LOGGER, Level.INFO).getLogger());
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        } catch (VMWareException e) {
+            LOGGER.log(Level.WARNING, "Bulk " + action + " failed on " + hypervisorDescription, e);
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
+        JSONArray items = new JSONArray();
+        int failed = 0;
+        for (BulkPowerOperation.Result vm : results) {
+            JSONObject item = new JSONObject();
+            item.put("name", vm.getName());
+            item.put("moRef", vm.getMoRef());
+            item.put("outcome", vm.getOutcome().name());
+            if (vm.getMessage() != null) {
+                item.put("message", vm.getMessage());
+            }
+            item.put("durationMillis", vm.getDurationMillis());
+            items.add(item);
+            if (vm.getOutcome() == BulkPowerOperation.Outcome.FAILED) {
+                failed++;
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("action", BulkPowerOperation.Action.parse(action).name());
+        result.put("total", results.size());
+        result.put("failed", failed);
+        result.put("items", items);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
 }
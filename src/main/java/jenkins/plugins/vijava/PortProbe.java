@@ -0,0 +1,139 @@
+package jenkins.plugins.vijava;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits until a TCP port of a guest accepts connections, so the slave agent
+ * is only launched once sshd or the agent listener is up.
+ *
+ * Connections are opened in non-blocking mode and checked on the scheduler,
+ * so a probe holds no thread while the guest boots. A refused or timed out
+ * attempt is retried after a delay that doubles up to a maximum. The probe
+ * runs until it connects or its result is completed from the outside, e.g.
+ * by a timeout.
+ *
+ * @author jbh
+ */
+final class PortProbe {
+
+    /**
+     * How often a pending connection is checked.
+     */
+    private static final long CHECK_INTERVAL = 50;
+
+    private final ScheduledExecutorService scheduler;
+    private final String host;
+    private final int port;
+    private final long connectTimeout;
+    private final long maxDelay;
+    private final PendingResult<Integer> result = new PendingResult<Integer>();
+    private long delay;
+    private int attempts;
+
+    /**
+     * @param connectTimeout how long one attempt may take to connect
+     * @param initialDelay wait after the first failed attempt, doubled after every other one
+     * @param maxDelay longest wait between two attempts
+     */
+    PortProbe(ScheduledExecutorService scheduler, String host, int port, long connectTimeout, long initialDelay, long maxDelay) {
+        this.scheduler = scheduler;
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+        this.delay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Starts probing and returns a future completed with the number of
+     * attempts it took once the port accepts a connection.
+     */
+    PendingResult<Integer> start() {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                attempt();
+            }
+        });
+        return result;
+    }
+
+    private void attempt() {
+        if (result.isDone()) {
+            return;
+        }
+        attempts++;
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                connected(channel);
+                return;
+            }
+            check(channel, System.currentTimeMillis() + connectTimeout);
+        } catch (IOException e) {
+            close(channel);
+            retry();
+        } catch (RuntimeException e) {
+            // unresolved addresses and the like will not get better
+            close(channel);
+            result.setException(e);
+        }
+    }
+
+    private void check(final SocketChannel channel, final long deadline) {
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                if (result.isDone()) {
+                    close(channel);
+                    return;
+                }
+                try {
+                    if (channel.finishConnect()) {
+                        connected(channel);
+                    } else if (System.currentTimeMillis() >= deadline) {
+                        close(channel);
+                        retry();
+                    } else {
+                        check(channel, deadline);
+                    }
+                } catch (IOException e) {
+                    close(channel);
+                    retry();
+                }
+            }
+        }, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void connected(SocketChannel channel) {
+        close(channel);
+        result.set(attempts);
+    }
+
+    private void retry() {
+        if (result.isDone()) {
+            return;
+        }
+        long wait = delay;
+        delay = Math.min(delay * 2, maxDelay);
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                attempt();
+            }
+        }, wait, TimeUnit.MILLISECONDS);
+    }
+
+    private static void close(SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package jenkins.plugins.vijava;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InsufficientResourcesFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Admission control for power on operations of one {@link Hypervisor}.
+ *
+ * Power ons are queued in arrival order and admitted as soon as the host and
+ * every datastore of the virtual machine have a free slot. A host gets at
+ * most <tt>maxPerHost</tt> concurrent power ons, fewer when its last known
+ * free memory only fits fewer virtual machines, and one at a time while its
+ * CPU is nearly saturated. A request that cannot be admitted does not hold up
+ * requests for other hosts behind it.
+ *
+ * When vSphere rejects a power on with {@link InsufficientResourcesFault},
+ * the host is given a break and the request is queued again instead of
+ * failing the launch.
+ *
+ * Concurrent power ons of the same virtual machine share one request and one
+ * task, so launches racing for it do not fail each other with
+ * <tt>InvalidPowerState</tt> or <tt>TaskInProgress</tt>. Every caller gets
+ * its own future; the request is dropped from the queue once all of them are
+ * cancelled.
+ *
+ * @author jbh
+ */
+class PowerOnScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(PowerOnScheduler.class.getName());
+    private static final String HOST_TYPE = "HostSystem";
+    private static final String CPU_USAGE = "summary.quickStats.overallCpuUsage";
+    private static final String MEMORY_USAGE = "summary.quickStats.overallMemoryUsage";
+    private static final String CPU_MHZ = "summary.hardware.cpuMhz";
+    private static final String CPU_CORES = "summary.hardware.numCpuCores";
+    private static final String MEMORY_SIZE = "summary.hardware.memorySize";
+    /**
+     * How long host usage figures are trusted before they are fetched again.
+     */
+    private static final long HEADROOM_TTL = 30 * 1000;
+    /**
+     * Pause for a host after it reported insufficient resources.
+     */
+    private static final long RETRY_DELAY = 30 * 1000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final double CPU_SATURATED = 0.9;
+    private static final int DEFAULT_MEMORY_MB = 1024;
+
+    private final Hypervisor hypervisor;
+    private final int maxPerHost;
+    private final int maxPerDatastore;
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+    /**
+     * Requests queued or in flight by managed object reference.
+     */
+    private final Map<String, Request> byVirtualMachine = new HashMap<String, Request>();
+    /**
+     * Requests admitted whose power on has not started running on the launch
+     * executor yet, failed by {@link #stop()} as the executor drops them.
+     */
+    private final Set<Request> starting = new HashSet<Request>();
+    private final Map<String, Integer> inFlightByHost = new HashMap<String, Integer>();
+    private final Map<String, Integer> inFlightByDatastore = new HashMap<String, Integer>();
+    private final Map<String, Headroom> headroom = new HashMap<String, Headroom>();
+    private final Map<String, Long> pausedUntil = new HashMap<String, Long>();
+    private int inFlight;
+    private long admitted;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long joined;
+    private boolean stopped;
+
+    PowerOnScheduler(Hypervisor hypervisor, int maxPerHost, int maxPerDatastore) {
+        this.hypervisor = hypervisor;
+        this.maxPerHost = maxPerHost;
+        this.maxPerDatastore = maxPerDatastore;
+    }
+
+    /**
+     * Queues a power on of the virtual machine, or joins the one already
+     * queued or running for it, and returns a future completed when the
+     * power on task has finished. The virtual machine is looked up on a
+     * pooled session only once the power on is admitted.
+     */
+    PendingResult<TaskInfoState> powerOn(VirtualMachineInfo info, PrintStream logger) {
+        final PendingResult<TaskInfoState> caller = new PendingResult<TaskInfoState>();
+        final Request request;
+        boolean created = false;
+        synchronized (this) {
+            if (stopped) {
+                caller.setException(new VMWareException("Power on of " + info.getName() + " refused, the hypervisor was stopped", null));
+                return caller;
+            }
+            Request existing = byVirtualMachine.get(info.getMoRef());
+            if (existing != null) {
+                request = existing;
+                joined++;
+            } else {
+                request = new Request(info, logger);
+                byVirtualMachine.put(info.getMoRef(), request);
+                queue.add(request);
+                created = true;
+            }
+            request.callers.add(caller);
+        }
+        if (created) {
+            request.result.addListener(new Runnable() {
+                public void run() {
+                    synchronized (PowerOnScheduler.this) {
+                        if (byVirtualMachine.get(request.info.getMoRef()) == request) {
+                            byVirtualMachine.remove(request.info.getMoRef());
+                        }
+                    }
+                    dispatch();
+                }
+            });
+        } else {
+            logger.println("Power on of " + info.getName() + " is already requested, waiting for it");
+        }
+        request.result.addListener(new Runnable() {
+            public void run() {
+                try {
+                    caller.set(request.result.get());
+                } catch (ExecutionException e) {
+                    caller.setException(e.getCause());
+                } catch (Exception e) {
+                    caller.setException(e);
+                }
+            }
+        });
+        caller.addListener(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        });
+        dispatch();
+        return caller;
+    }
+
+    /**
+     * Fails the queued power ons and those admitted but not started yet, and
+     * admits no more, once the hypervisor is stopped. Power ons already
+     * running finish on their own.
+     */
+    void stop() {
+        List<Request> dropped;
+        List<Request> notStarted;
+        synchronized (this) {
+            stopped = true;
+            dropped = new ArrayList<Request>(queue);
+            queue.clear();
+            notStarted = new ArrayList<Request>(starting);
+            starting.clear();
+        }
+        for (Request request : dropped) {
+            request.result.setException(stoppedException(request));
+        }
+        for (Request request : notStarted) {
+            finished(request, stoppedException(request));
+        }
+    }
+
+    private static VMWareException stoppedException(Request request) {
+        return new VMWareException("Power on of " + request.info.getName() + " cancelled, the hypervisor was stopped", null);
+    }
+
+    synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized Map<String, Integer> getInFlightByHost() {
+        return new HashMap<String, Integer>(inFlightByHost);
+    }
+
+    /**
+     * Average time admitted requests spent in the queue.
+     */
+    synchronized long getAverageWaitMillis() {
+        return admitted == 0 ? 0 : totalWaitMillis / admitted;
+    }
+
+    synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * Power ons that joined a request already made for the same virtual
+     * machine instead of starting their own.
+     */
+    synchronized long getJoinedCount() {
+        return joined;
+    }
+
+    /**
+     * Average CPU usage of the hosts with known usage figures, between 0 and 1.
+     */
+    synchronized double getAverageCpuUsage() {
+        double total = 0;
+        int hosts = 0;
+        for (Headroom current : headroom.values()) {
+            if (current.cpuCapacityMhz > 0) {
+                total += current.getCpuUsage();
+                hosts++;
+            }
+        }
+        return hosts == 0 ? 0 : total / hosts;
+    }
+
+    /**
+     * Admits every queued request that fits, oldest first.
+     */
+    private void dispatch() {
+        long now = System.currentTimeMillis();
+        List<Request> abandoned = new ArrayList<Request>();
+        List<Request> admitted = new ArrayList<Request>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            for (Iterator<Request> it = queue.iterator(); it.hasNext();) {
+                Request request = it.next();
+                if (request.result.isDone()) {
+                    it.remove();
+                } else if (request.isAbandoned()) {
+                    it.remove();
+                    byVirtualMachine.remove(request.info.getMoRef());
+                    abandoned.add(request);
+                } else if (isAdmissible(request, now)) {
+                    it.remove();
+                    admit(request, now);
+                    admitted.add(request);
+                }
+            }
+        }
+        // completing runs listeners that dispatch again, so not while iterating
+        for (Request request : abandoned) {
+            request.result.setException(new CancellationException("Power on of " + request.info.getName() + " was cancelled"));
+        }
+        for (Request request : admitted) {
+            start(request);
+        }
+    }
+
+    private boolean isAdmissible(Request request, long now) {
+        String host = request.info.getHost();
+        if (host != null) {
+            Long paused = pausedUntil.get(host);
+            if (paused != null && paused > now) {
+                return false;
+            }
+            if (count(inFlightByHost, host) >= getHostAllowance(host, request.info, now)) {
+                return false;
+            }
+        }
+        for (String datastore : request.info.getDatastores()) {
+            if (count(inFlightByDatastore, datastore) >= maxPerDatastore) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of concurrent power ons the host can take right now. Usage
+     * figures are refreshed in the background.
+     */
+    private int getHostAllowance(String host, VirtualMachineInfo info, long now) {
+        Headroom current = headroom.get(host);
+        if (current == null || now - current.fetchedAt > HEADROOM_TTL) {
+            refreshHeadroom(host);
+        }
+        return getAllowance(current, maxPerHost, info.getMemoryMB() > 0 ? info.getMemoryMB() : DEFAULT_MEMORY_MB);
+    }
+
+    /**
+     * Number of concurrent power ons of virtual machines with the given
+     * memory that a host with the given usage figures can take. Until the
+     * first figures of a host arrive, or when they could not be read, the
+     * configured maximum applies.
+     */
+    static int getAllowance(Headroom current, int maxPerHost, int memoryMB) {
+        if (current == null || !current.isKnown()) {
+            return maxPerHost;
+        }
+        // a power on is always allowed on an idle host, vSphere may still fit it by overcommitting
+        int allowance = Math.max(1, Math.min(maxPerHost, current.getFreeMemoryMB() / memoryMB));
+        if (current.getCpuUsage() > CPU_SATURATED) {
+            allowance = 1;
+        }
+        return allowance;
+    }
+
+    private void refreshHeadroom(final String host) {
+        Headroom current = headroom.get(host);
+        if (current != null && current.refreshing) {
+            return;
+        }
+        headroom.put(host, current != null ? current.refreshing() : Headroom.REFRESHING);
+        Runnable refresh = new Runnable() {
+            public void run() {
+                Headroom fetched = null;
+                try {
+                    fetched = hypervisor.getConnectionPool().execute(new HypervisorConnectionPool.Call<Headroom>() {
+                        public Headroom call(ServiceInstance session) throws Exception {
+                            return retrieveHeadroom(session, host);
+                        }
+                    });
+                } catch (VMWareException e) {
+                    LOGGER.log(Level.FINE, "Failed to read usage of host " + host, e);
+                }
+                synchronized (PowerOnScheduler.this) {
+                    if (fetched != null) {
+                        headroom.put(host, fetched);
+                    } else {
+                        headroom.remove(host);
+                    }
+                }
+                dispatch();
+            }
+        };
+        try {
+            hypervisor.getLaunchExecutor().execute(refresh);
+        } catch (VMWareException e) {
+            // the hypervisor was stopped, nothing is admitted any more
+        } catch (RejectedExecutionException e) {
+            // the hypervisor was stopped, nothing is admitted any more
+        }
+    }
+
+    private void admit(final Request request, long now) {
+        final String host = request.info.getHost();
+        adjust(host, request.info.getDatastores(), 1);
+        long waited = now - request.queuedAt;
+        admitted++;
+        totalWaitMillis += waited;
+        maxWaitMillis = Math.max(maxWaitMillis, waited);
+        request.logger.println("Power on of " + request.info.getName() + " admitted after " + waited + " ms in queue"
+                + (host != null ? " (" + count(inFlightByHost, host) + " in flight on host " + host + ")" : ""));
+        request.attempts++;
+        starting.add(request);
+    }
+
+    /**
+     * Runs the power on of an admitted request on the launch executor, or
+     * fails it if the hypervisor was stopped in the meantime.
+     */
+    private void start(final Request request) {
+        Runnable powerOn = VimCalls.within(request.calls, new Runnable() {
+            public void run() {
+                if (!claim(request)) {
+                    return;
+                }
+                final PendingResult<TaskInfoState> task;
+                try {
+                    task = hypervisor.getWatcher().awaitTask(hypervisor.execute(request.info,
+                            new Hypervisor.DomainCall<Task>() {
+                                public Task call(VirtualMachine domain) throws Exception {
+                                    return VimCalls.powerOn(domain);
+                                }
+                            }));
+                } catch (Exception e) {
+                    finished(request, e);
+                    return;
+                }
+                task.addListener(new Runnable() {
+                    public void run() {
+                        try {
+                            task.get();
+                            finished(request, null);
+                        } catch (ExecutionException e) {
+                            finished(request, e.getCause());
+                        } catch (Throwable t) {
+                            finished(request, t);
+                        }
+                    }
+                });
+            }
+        });
+        try {
+            hypervisor.getLaunchExecutor().execute(powerOn);
+        } catch (VMWareException e) {
+            if (claim(request)) {
+                finished(request, e);
+            }
+        } catch (RejectedExecutionException e) {
+            if (claim(request)) {
+                finished(request, stoppedException(request));
+            }
+        }
+    }
+
+    /**
+     * Takes an admitted request out of {@link #starting}, false if
+     * {@link #stop()} has already failed it.
+     */
+    private synchronized boolean claim(Request request) {
+        return starting.remove(request);
+    }
+
+    private void finished(Request request, Throwable failure) {
+        String host = request.info.getHost();
+        boolean retry = false;
+        synchronized (this) {
+            adjust(host, request.info.getDatastores(), -1);
+            if (host != null) {
+                // the new virtual machine uses memory the cached figures do not know about yet
+                headroom.remove(host);
+            }
+            if (failure != null && isInsufficientResources(failure) && request.attempts < MAX_ATTEMPTS
+                    && !request.isAbandoned() && !stopped) {
+                request.logger.println("Host " + host + " has insufficient resources to power on " + request.info.getName()
+                        + ", retrying in " + RETRY_DELAY / 1000 + "s");
+                if (host != null) {
+                    pausedUntil.put(host, System.currentTimeMillis() + RETRY_DELAY);
+                }
+                request.queuedAt = System.currentTimeMillis();
+                queue.addFirst(request);
+                retry = true;
+            }
+        }
+        if (retry) {
+            try {
+                hypervisor.getScheduler().schedule(new Runnable() {
+                    public void run() {
+                        dispatch();
+                    }
+                }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } catch (VMWareException e) {
+                // the hypervisor is stopping, which fails the queued request
+            } catch (RejectedExecutionException e) {
+                // the hypervisor is stopping, which fails the queued request
+            }
+        } else if (failure != null) {
+            request.result.setException(failure);
+        } else {
+            request.result.set(TaskInfoState.success);
+        }
+        dispatch();
+    }
+
+    private static boolean isInsufficientResources(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof InsufficientResourcesFault) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void adjust(String host, List<String> datastores, int delta) {
+        inFlight += delta;
+        if (host != null) {
+            inFlightByHost.put(host, count(inFlightByHost, host) + delta);
+        }
+        for (String datastore : datastores) {
+            inFlightByDatastore.put(datastore, count(inFlightByDatastore, datastore) + delta);
+        }
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Reads CPU and memory usage of a host with one property collector call.
+     */
+    static Headroom retrieveHeadroom(ServiceInstance session, String host) throws Exception {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(HOST_TYPE);
+        mor.setVal(host);
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(mor);
+        objectSpec.setSkip(Boolean.FALSE);
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(HOST_TYPE);
+        propertySpec.setAll(Boolean.FALSE);
+        propertySpec.setPathSet(new String[] { CPU_USAGE, MEMORY_USAGE, CPU_MHZ, CPU_CORES, MEMORY_SIZE });
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+        filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+
+        ObjectContent[] contents = VimCalls.retrieveProperties(session.getPropertyCollector(), filterSpec);
+        Map<String, Number> values = new HashMap<String, Number>();
+        if (contents != null && contents.length > 0 && contents[0].getPropSet() != null) {
+            for (DynamicProperty property : contents[0].getPropSet()) {
+                if (property.getVal() instanceof Number) {
+                    values.put(property.getName(), (Number) property.getVal());
+                }
+            }
+        }
+        long cpuCapacity = value(values, CPU_MHZ) * value(values, CPU_CORES);
+        long memoryCapacityMB = value(values, MEMORY_SIZE) / (1024 * 1024);
+        return new Headroom(value(values, CPU_USAGE), cpuCapacity, value(values, MEMORY_USAGE), memoryCapacityMB);
+    }
+
+    private static long value(Map<String, Number> values, String path) {
+        Number value = values.get(path);
+        return value != null ? value.longValue() : 0;
+    }
+
+    /**
+     * CPU and memory usage of a host at one point in time.
+     */
+    static final class Headroom {
+        static final Headroom REFRESHING = new Headroom(0, 0, 0, 0).refreshing();
+
+        private final long cpuUsageMhz;
+        private final long cpuCapacityMhz;
+        private final long memoryUsageMB;
+        private final long memoryCapacityMB;
+        private final long fetchedAt;
+        private boolean refreshing;
+
+        Headroom(long cpuUsageMhz, long cpuCapacityMhz, long memoryUsageMB, long memoryCapacityMB) {
+            this(cpuUsageMhz, cpuCapacityMhz, memoryUsageMB, memoryCapacityMB, System.currentTimeMillis());
+        }
+
+        private Headroom(long cpuUsageMhz, long cpuCapacityMhz, long memoryUsageMB, long memoryCapacityMB, long fetchedAt) {
+            this.cpuUsageMhz = cpuUsageMhz;
+            this.cpuCapacityMhz = cpuCapacityMhz;
+            this.memoryUsageMB = memoryUsageMB;
+            this.memoryCapacityMB = memoryCapacityMB;
+            this.fetchedAt = fetchedAt;
+        }
+
+        /**
+         * False for the placeholder stored while the first figures of a host
+         * are fetched, and for figures without the host's memory size.
+         */
+        boolean isKnown() {
+            return memoryCapacityMB > 0;
+        }
+
+        Headroom refreshing() {
+            Headroom copy = new Headroom(cpuUsageMhz, cpuCapacityMhz, memoryUsageMB, memoryCapacityMB, fetchedAt);
+            copy.refreshing = true;
+            return copy;
+        }
+
+        double getCpuUsage() {
+            return cpuCapacityMhz > 0 ? (double) cpuUsageMhz / cpuCapacityMhz : 0;
+        }
+
+        int getFreeMemoryMB() {
+            return (int) Math.max(0, memoryCapacityMB - memoryUsageMB);
+        }
+    }
+
+    private static final class Request {
+        private final VirtualMachineInfo info;
+        private final PrintStream logger;
+        private final VimCalls.Scope calls = VimCalls.current();
+        private final PendingResult<TaskInfoState> result = new PendingResult<TaskInfoState>();
+        /**
+         * Futures handed out for this request, guarded by the scheduler.
+         */
+        private final List<PendingResult<TaskInfoState>> callers = new ArrayList<PendingResult<TaskInfoState>>();
+        private long queuedAt = System.currentTimeMillis();
+        private int attempts;
+
+        Request(VirtualMachineInfo info, PrintStream logger) {
+            this.info = info;
+            this.logger = logger;
+        }
+
+        /**
+         * True once every caller has stopped waiting for this power on.
+         */
+        boolean isAbandoned() {
+            for (PendingResult<TaskInfoState> caller : callers) {
+                if (!caller.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * {@link InventorySource} backed by a property collector filter on a
+ * dedicated session of the hypervisor.
+ *
+ * The session is blocked in <tt>WaitForUpdates</tt> for as long as tracking
+ * runs, so it is logged in next to the {@link HypervisorConnectionPool}
+ * rather than taken from it, where it would hold one of the
+ * <tt>maxSessions</tt> permits for good.
+ *
+ * @author jbh
+ */
+class PropertyCollectorInventorySource implements InventorySource {
+
+    private static final Logger LOGGER = Logger.getLogger(PropertyCollectorInventorySource.class.getName());
+
+    private final Hypervisor hypervisor;
+    private volatile HypervisorConnectionPool pool;
+    private volatile ServiceInstance session;
+    private volatile PropertyFilter filter;
+    private final Map<String, PropertyFilter> watches = new ConcurrentHashMap<String, PropertyFilter>();
+
+    PropertyCollectorInventorySource(Hypervisor hypervisor) {
+        this.hypervisor = hypervisor;
+    }
+
+    public void open() throws Exception {
+        pool = hypervisor.getConnectionPool();
+        session = hypervisor.openSession();
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(session.getRootFolder().getMOR());
+        objectSpec.setSkip(Boolean.TRUE);
+        objectSpec.setSelectSet(PropertyCollectorUtil.buildFullTraversal());
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+        filterSpec.setPropSet(new PropertySpec[] { VirtualMachineInventory.createPropertySpec() });
+        long started = System.currentTimeMillis();
+        try {
+            filter = session.getPropertyCollector().createFilter(filterSpec, true);
+        } finally {
+            VimCalls.record("CreateFilter", "PropertyCollector", started);
+        }
+    }
+
+    public VirtualMachineInventory load() throws Exception {
+        return InventoryDiscovery.discover(hypervisor);
+    }
+
+    public Update waitForUpdates(String version) throws Exception {
+        ServiceInstance current = session;
+        if (current == null) {
+            throw new IllegalStateException("Inventory source for " + hypervisor.getHypervisorHost() + " is not open");
+        }
+        long started = System.currentTimeMillis();
+        UpdateSet updateSet;
+        try {
+            updateSet = current.getPropertyCollector().waitForUpdates(version);
+        } catch (Exception e) {
+            if (SoapTransport.isTimeout(e) && session == current) {
+                // a quiet inventory outlasted the read timeout, the session is fine
+                return null;
+            }
+            throw e;
+        } finally {
+            VimCalls.record("WaitForUpdates", "PropertyCollector", started);
+        }
+        return toUpdate(updateSet);
+    }
+
+    public void watch(String type, String moRef, String[] paths) throws Exception {
+        ServiceInstance current = session;
+        if (current == null) {
+            // registered again by the cache once the source is reopened
+            return;
+        }
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setVal(moRef);
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(mor);
+        objectSpec.setSkip(Boolean.FALSE);
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(type);
+        propertySpec.setAll(Boolean.FALSE);
+        propertySpec.setPathSet(paths);
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+        filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+        long started = System.currentTimeMillis();
+        PropertyFilter watch;
+        try {
+            watch = current.getPropertyCollector().createFilter(filterSpec, true);
+        } finally {
+            VimCalls.record("CreateFilter", "PropertyCollector", started);
+        }
+        PropertyFilter previous = watches.put(moRef, watch);
+        if (previous != null) {
+            destroy(previous);
+        }
+    }
+
+    public void unwatch(String moRef) {
+        PropertyFilter watch = watches.remove(moRef);
+        if (watch != null) {
+            destroy(watch);
+        }
+    }
+
+    private void destroy(PropertyFilter watch) {
+        long started = System.currentTimeMillis();
+        try {
+            watch.destroyPropertyFilter();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to destroy property filter on " + hypervisor.getHypervisorHost(), e);
+        } finally {
+            VimCalls.record("DestroyPropertyFilter", "PropertyFilter", started);
+        }
+    }
+
+    public void close() {
+        watches.clear();
+        ServiceInstance current = session;
+        PropertyFilter currentFilter = filter;
+        session = null;
+        filter = null;
+        if (current == null) {
+            return;
+        }
+        PropertyCollector collector = current.getPropertyCollector();
+        long started = System.currentTimeMillis();
+        try {
+            collector.cancelWaitForUpdates();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to cancel pending update wait on " + hypervisor.getHypervisorHost(), e);
+        } finally {
+            VimCalls.record("CancelWaitForUpdates", "PropertyCollector", started);
+        }
+        if (currentFilter != null) {
+            destroy(currentFilter);
+        }
+        pool.logout(current);
+    }
+
+    static Update toUpdate(UpdateSet updateSet) {
+        List<Change> changes = new ArrayList<Change>();
+        PropertyFilterUpdate[] filterSet = updateSet.getFilterSet();
+        if (filterSet != null) {
+            for (PropertyFilterUpdate filterUpdate : filterSet) {
+                ObjectUpdate[] objectSet = filterUpdate.getObjectSet();
+                if (objectSet == null) {
+                    continue;
+                }
+                for (ObjectUpdate objectUpdate : objectSet) {
+                    changes.add(toChange(objectUpdate));
+                }
+            }
+        }
+        return new Update(updateSet.getVersion(), changes);
+    }
+
+    private static Change toChange(ObjectUpdate objectUpdate) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        PropertyChange[] changeSet = objectUpdate.getChangeSet();
+        if (changeSet != null) {
+            for (PropertyChange change : changeSet) {
+                Object value = change.getOp() == PropertyChangeOp.remove || change.getOp() == PropertyChangeOp.indirectRemove
+                        ? null : change.getVal();
+                properties.put(change.getName(), value);
+            }
+        }
+        Kind kind;
+        if (objectUpdate.getKind() == ObjectUpdateKind.enter) {
+            kind = Kind.ENTER;
+        } else if (objectUpdate.getKind() == ObjectUpdateKind.leave) {
+            kind = Kind.LEAVE;
+        } else {
+            kind = Kind.MODIFY;
+        }
+        return new Change(kind, objectUpdate.getObj().getType(), objectUpdate.getObj().getVal(), properties);
+    }
+}
@@ -0,0 +1,62 @@
+package jenkins.plugins.vijava;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one call per key at a time. Callers asking for a key whose
+ * call is already running wait for it and get its result or failure instead
+ * of repeating it against the hypervisor.
+ *
+ * The call runs on the thread of the first caller. Nothing is cached, a call
+ * made after the previous one finished runs again.
+ *
+ * @author jbh
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> running = new ConcurrentHashMap<K, FutureTask<V>>();
+    private final AtomicLong shared = new AtomicLong();
+
+    V execute(K key, Callable<V> call) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> current = running.putIfAbsent(key, task);
+        if (current == null) {
+            try {
+                task.run();
+            } finally {
+                running.remove(key, task);
+            }
+            current = task;
+        } else {
+            shared.incrementAndGet();
+        }
+        try {
+            return current.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * True while a call for the key is running.
+     */
+    boolean isRunning(K key) {
+        return running.containsKey(key);
+    }
+
+    /**
+     * Number of callers that got the result of a call already running.
+     */
+    long getSharedCount() {
+        return shared.get();
+    }
+}
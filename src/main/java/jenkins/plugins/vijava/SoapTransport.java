@@ -0,0 +1,216 @@
+package jenkins.plugins.vijava;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Time limits for the SOAP connections to a hypervisor.
+ *
+ * vijava opens a plain <tt>HttpURLConnection</tt> per call, which without
+ * limits waits forever on a vCenter that accepts connections but does not
+ * answer. vijava versions that take the timeouts when logging in get them
+ * right away. With older ones the login is run on a separate thread and
+ * given up after the connect and read timeouts; a login that completes
+ * after that is logged out again, as the thread cannot be interrupted while
+ * it waits on the socket. Every logged in session then gets the timeouts set
+ * on its SOAP client. vijava versions whose client has no timeout setters
+ * keep their defaults, with only the login bounded.
+ *
+ * A call that times out fails with a {@link SocketTimeoutException}, which
+ * the {@link CircuitBreaker} counts as the hypervisor not answering.
+ *
+ * @author jbh
+ */
+final class SoapTransport {
+
+    private static final Logger LOGGER = Logger.getLogger(SoapTransport.class.getName());
+
+    private static final ExecutorService logins = Executors.newCachedThreadPool(new NamedThreadFactory("vSphere login"));
+    private static volatile boolean timeoutsUnsupported;
+    private static volatile boolean timedLoginUnsupported;
+
+    private SoapTransport() {
+    }
+
+    /**
+     * Logs in, failing with a {@link SocketTimeoutException} if that takes
+     * longer than both timeouts together.
+     *
+     * @param connectTimeout milliseconds to wait for a connection
+     * @param readTimeout milliseconds to wait for an answer to a call
+     */
+    static ServiceInstance login(URL url, String user, String password, int connectTimeout, int readTimeout)
+            throws Exception {
+        ServiceInstance session = timedLogin(url, user, password, connectTimeout, readTimeout);
+        if (session != null) {
+            return session;
+        }
+        Login attempt = new Login(url, user, password);
+        Future<ServiceInstance> login = logins.submit(attempt);
+        try {
+            session = login.get(connectTimeout + readTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            session = attempt.abandon();
+            if (session == null) {
+                throw new SocketTimeoutException("Login to " + url.getHost() + " did not complete within "
+                        + (connectTimeout + readTimeout) / 1000 + "s");
+            }
+        } catch (InterruptedException e) {
+            session = attempt.abandon();
+            if (session != null) {
+                logout(url, session);
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        setTimeouts(session, connectTimeout, readTimeout);
+        return session;
+    }
+
+    /**
+     * Logs in with a vijava constructor that sets the timeouts before the
+     * first call. Returns null if the vijava version has none.
+     */
+    private static ServiceInstance timedLogin(URL url, String user, String password, int connectTimeout,
+            int readTimeout) throws Exception {
+        if (timedLoginUnsupported) {
+            return null;
+        }
+        Constructor<ServiceInstance> constructor;
+        try {
+            constructor = ServiceInstance.class.getConstructor(URL.class, String.class, String.class, boolean.class,
+                    int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            timedLoginUnsupported = true;
+            LOGGER.log(Level.INFO, "The vijava library in use cannot log in with timeouts, logins are run on a separate thread");
+            return null;
+        }
+        try {
+            return constructor.newInstance(url, user, password, true, connectTimeout, readTimeout);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * A login run on a separate thread. If the caller gave up on it before it
+     * completed, the session it gets is logged out instead of being leaked.
+     */
+    private static final class Login implements Callable<ServiceInstance> {
+        private final URL url;
+        private final String user;
+        private final String password;
+        private ServiceInstance session;
+        private boolean abandoned;
+
+        Login(URL url, String user, String password) {
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        public ServiceInstance call() throws Exception {
+            ServiceInstance session = new ServiceInstance(url, user, password, true);
+            synchronized (this) {
+                if (!abandoned) {
+                    this.session = session;
+                    return session;
+                }
+            }
+            LOGGER.log(Level.INFO, "Login to {0} completed after it timed out, logging out again", url.getHost());
+            logout(url, session);
+            return null;
+        }
+
+        /**
+         * Gives up on the login. Returns the session if the login completed
+         * in the meantime, or null if it will be logged out once it does.
+         */
+        synchronized ServiceInstance abandon() {
+            abandoned = true;
+            return session;
+        }
+    }
+
+    private static void logout(URL url, ServiceInstance session) {
+        try {
+            VimCalls.logout(session);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to log out from " + url.getHost(), e);
+        }
+    }
+
+    /**
+     * Sets the timeouts on the SOAP client of the session, if the vijava
+     * version offers them. Returns false if it does not.
+     */
+    static boolean setTimeouts(ServiceInstance session, int connectTimeout, int readTimeout) {
+        if (timeoutsUnsupported) {
+            return false;
+        }
+        try {
+            Object vimService = invoke(session.getServerConnection(), "getVimService");
+            Object client = invoke(vimService, "getWsc");
+            client.getClass().getMethod("setConnectTimeout", int.class).invoke(client, connectTimeout);
+            client.getClass().getMethod("setReadTimeout", int.class).invoke(client, readTimeout);
+            return true;
+        } catch (NoSuchMethodException e) {
+            timeoutsUnsupported = true;
+            LOGGER.log(Level.INFO, "The vijava library in use has no SOAP client timeouts, only logins are time limited");
+            return false;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to set SOAP client timeouts", e);
+            return false;
+        }
+    }
+
+    private static Object invoke(Object target, String getter) throws Exception {
+        Method method = target.getClass().getMethod(getter);
+        return method.invoke(target);
+    }
+
+    /**
+     * True if the exception means a call got no answer within the read
+     * timeout. vijava reports transport errors as a remote exception carrying
+     * only the message of the original one.
+     */
+    static boolean isTimeout(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause instanceof RemoteException && cause.getCause() == null && cause.getMessage() != null
+                    && cause.getMessage().contains(SocketTimeoutException.class.getName())) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
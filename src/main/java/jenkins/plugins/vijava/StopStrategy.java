@@ -0,0 +1,49 @@
+package jenkins.plugins.vijava;
+
+/**
+ * What {@link VirtualMachineLauncher} does with the virtual machine when its
+ * slave disconnects, trading disk state and memory use on the host for how
+ * fast the next launch is.
+ *
+ * @author jbh
+ */
+public enum StopStrategy {
+
+    /**
+     * Shut the guest down; the next launch cold boots it.
+     */
+    SHUTDOWN("Shut down"),
+    /**
+     * Suspend the virtual machine; the next launch resumes it without booting.
+     */
+    SUSPEND("Suspend"),
+    /**
+     * Revert to a snapshot, which leaves the virtual machine running if the
+     * snapshot was taken with its memory, so the next launch finds it ready.
+     */
+    REVERT("Revert to snapshot");
+
+    private final String displayName;
+
+    private StopStrategy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Parses a configured value, defaulting to {@link #SHUTDOWN}.
+     */
+    public static StopStrategy parse(String value) {
+        if (value == null || value.length() == 0) {
+            return SHUTDOWN;
+        }
+        try {
+            return valueOf(value);
+        } catch (IllegalArgumentException e) {
+            return SHUTDOWN;
+        }
+    }
+}
@@ -2,14 +2,15 @@ package jenkins.plugins.vijava;
 
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AutoCompletionCandidates;
 import hudson.model.BuildListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Hudson;
-import hudson.slaves.Cloud;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapper.Environment;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
@@ -24,11 +25,18 @@ public class VMWareBuildWrapper extends BuildWrapper {
     private String hypervisorDescription;
     private String virtualMachineName;
     private Boolean stopWhenFinished;
+    private Integer stopDelay;
     @DataBoundConstructor
-    public VMWareBuildWrapper(String hypervisorDescription, String virtualMachineName, Boolean stopWhenFinished) {
+    public VMWareBuildWrapper(String hypervisorDescription, String virtualMachineName, Boolean stopWhenFinished,
+            Integer stopDelay) {
         this.hypervisorDescription = hypervisorDescription;
         this.virtualMachineName = virtualMachineName;
         this.stopWhenFinished = stopWhenFinished;
+        this.stopDelay = stopDelay;
+    }
+
+    public VMWareBuildWrapper(String hypervisorDescription, String virtualMachineName, Boolean stopWhenFinished) {
+        this(hypervisorDescription, virtualMachineName, stopWhenFinished, null);
     }
     
     public String getHypervisorDescription() {
@@ -41,6 +49,14 @@ public class VMWareBuildWrapper extends BuildWrapper {
     public Boolean getStopWhenFinished() {
         return stopWhenFinished;
     }
+
+    /**
+     * Seconds the virtual machine keeps running after the last build using
+     * it finished, so a following build finds it running.
+     */
+    public int getStopDelay() {
+        return stopDelay != null ? Math.max(0, stopDelay) : 0;
+    }
     public void setHypervisorDescription(String hypervisorDescription) {
         this.hypervisorDescription = hypervisorDescription;
     }
@@ -52,26 +68,54 @@ public class VMWareBuildWrapper extends BuildWrapper {
 
     @Override
     public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        final VirtualMachineLeases leases = VirtualMachineLeases.get();
+        final String holder = build.getFullDisplayName();
+        if (leases.acquire(hypervisorDescription, virtualMachineName, holder, Boolean.TRUE.equals(stopWhenFinished),
+                getStopDelay() * 1000L)) {
+            listener.getLogger().println("Reusing " + virtualMachineName + ", still running after a previous build");
+        }
         VirtualMachineLauncher vmLauncher = new VirtualMachineLauncher(null, hypervisorDescription, virtualMachineName);
-        vmLauncher.launchVM(listener.getLogger());
+        try {
+            vmLauncher.launchVM(listener.getLogger());
+        } catch (IOException e) {
+            release(leases, holder, listener);
+            throw e;
+        } catch (InterruptedException e) {
+            release(leases, holder, listener);
+            throw e;
+        }
         return new Environment() {
             public boolean tearDown( AbstractBuild build, BuildListener listener ) throws IOException, InterruptedException {
-                boolean result = true;
-                if (stopWhenFinished) {
-                    VirtualMachineLauncher vmLauncher = new VirtualMachineLauncher(null, hypervisorDescription, virtualMachineName);
-                    try {
-                        vmLauncher.powerOffVM(listener.getLogger());
-                    } catch (Exception e) {
-                        listener.fatalError(e.getMessage());
-                        result = false;
-                    }
+                VimCalls.Scope calls = VimCalls.open("build tear-down", build.getFullDisplayName());
+                try {
+                    return release(leases, holder, listener);
+                } finally {
+                    calls.close();
                 }
-                return result;
             }
         };
     }
+
+    /**
+     * Ends the lease of the build, stopping the virtual machine if it was the
+     * last one and it is to be stopped without delay.
+     */
+    private boolean release(VirtualMachineLeases leases, String holder, BuildListener listener) {
+        try {
+            leases.release(hypervisorDescription, virtualMachineName, holder, listener.getLogger());
+            return true;
+        } catch (Exception e) {
+            listener.fatalError(e.getMessage());
+            return false;
+        }
+    }
     @Extension(ordinal=999)
     public static class DescriptorImpl extends BuildWrapperDescriptor {
+
+        /**
+         * Most names suggested while typing a virtual machine name.
+         */
+        private static final int MAX_CANDIDATES = 20;
                
         public DescriptorImpl() {
             super(VMWareBuildWrapper.class);
@@ -90,40 +134,53 @@ public class VMWareBuildWrapper extends BuildWrapper {
             return model;
         }
          
-        public ListBoxModel doFillVirtualMachineNameItems(@QueryParameter String hypervisorDescription) {
-            ListBoxModel model = new ListBoxModel();                      
-             for (JenkinsVirtualMachine mac : getDefinedVirtualMachines(hypervisorDescription)) {
-                 model.add(mac.getDisplayName(), mac.getName());
-             }
-             return model;
+        public AutoCompletionCandidates doAutoCompleteVirtualMachineName(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            for (String name : HypervisorRegistry.completeVirtualMachineNames(value, MAX_CANDIDATES)) {
+                candidates.add(name);
+            }
+            return candidates;
+        }
+
+        public FormValidation doCheckVirtualMachineName(@QueryParameter String value,
+                @QueryParameter String hypervisorDescription) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Name of the virtual machine is required");
+            }
+            Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+            if (hypervisor != null && hypervisor.isInventoryLoaded() && hypervisor.getVirtualMachine(value.trim()) == null) {
+                return FormValidation.warning("No virtual machine " + value.trim() + " on " + hypervisorDescription);
+            }
+            return FormValidation.ok();
         }
         
         public List<JenkinsVirtualMachine> getDefinedVirtualMachines(String hypervisorDescription) {
             List<JenkinsVirtualMachine> virtualMachinesList = new ArrayList<JenkinsVirtualMachine>();
             if (hypervisorDescription != null && !hypervisorDescription.equals("")) {
-                Hypervisor hypervisor = null;
-                for (Cloud cloud : Hudson.getInstance().clouds) {
-                    if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(hypervisorDescription)) {
-                        hypervisor = (Hypervisor) cloud;
-                        break;
-                    }
-                }
-                virtualMachinesList.addAll(hypervisor.getVirtualMachines());
+                virtualMachinesList.addAll(HypervisorRegistry.getVirtualMachines(hypervisorDescription));
             }
             return virtualMachinesList;
         }
 
         public List<Hypervisor> getHypervisors() {
-            List<Hypervisor> result = new ArrayList<Hypervisor>();
-            for (Cloud cloud : Hudson.getInstance().clouds) {
-                if (cloud instanceof Hypervisor) {
-                    result.add((Hypervisor) cloud);
-                }
-            }
-                return result;
+            return HypervisorRegistry.getAll();
         }        
 
 
+        public FormValidation doCheckStopDelay(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) < 0) {
+                    return FormValidation.error("The delay cannot be negative");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Not a number of seconds");
+            }
+            return FormValidation.ok();
+        }
+
         @Override
         public boolean isApplicable(AbstractProject<?, ?> item) {
             return true;
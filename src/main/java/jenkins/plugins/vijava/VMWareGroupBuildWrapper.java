@@ -0,0 +1,235 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Starts several virtual machines for a build at once, such as a database,
+ * application servers and a client for integration tests, and waits until
+ * all of them are ready. They are leased like the virtual machine of a
+ * {@link VMWareBuildWrapper} and stopped together when the build is done.
+ *
+ * @author jbh
+ */
+public class VMWareGroupBuildWrapper extends BuildWrapper {
+
+    /**
+     * Seconds each virtual machine may take to become ready when not configured.
+     */
+    static final int DEFAULT_READY_TIMEOUT = 10 * 60;
+
+    private String hypervisorDescription;
+    private String virtualMachineNames;
+    private Boolean stopWhenFinished;
+    private Integer stopDelay;
+    private Integer readyTimeout;
+
+    @DataBoundConstructor
+    public VMWareGroupBuildWrapper(String hypervisorDescription, String virtualMachineNames, Boolean stopWhenFinished,
+            Integer stopDelay, Integer readyTimeout) {
+        this.hypervisorDescription = hypervisorDescription;
+        this.virtualMachineNames = virtualMachineNames;
+        this.stopWhenFinished = stopWhenFinished;
+        this.stopDelay = stopDelay;
+        this.readyTimeout = readyTimeout;
+    }
+
+    public String getHypervisorDescription() {
+        return hypervisorDescription;
+    }
+
+    /**
+     * Names of the virtual machines, one per line.
+     */
+    public String getVirtualMachineNames() {
+        return virtualMachineNames;
+    }
+
+    public Boolean getStopWhenFinished() {
+        return stopWhenFinished;
+    }
+
+    /**
+     * Seconds the virtual machines keep running after the last build using
+     * them finished.
+     */
+    public int getStopDelay() {
+        return stopDelay != null ? Math.max(0, stopDelay) : 0;
+    }
+
+    /**
+     * Seconds each virtual machine may take to become ready.
+     */
+    public int getReadyTimeout() {
+        return readyTimeout != null && readyTimeout > 0 ? readyTimeout : DEFAULT_READY_TIMEOUT;
+    }
+
+    @Override
+    public Environment setUp(AbstractBuild build, Launcher launcher, final BuildListener listener) throws IOException,
+            InterruptedException {
+        final List<String> names = VirtualMachineGroup.parseNames(virtualMachineNames);
+        if (names.isEmpty()) {
+            listener.fatalError("No virtual machines to start");
+            return null;
+        }
+        final Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+        if (hypervisor == null) {
+            listener.fatalError("No hypervisor " + hypervisorDescription);
+            return null;
+        }
+        final VirtualMachineLeases leases = VirtualMachineLeases.get();
+        final String holder = build.getFullDisplayName();
+        final PrintStream logger = listener.getLogger();
+        final Map<String, LaunchPipeline> launches = new ConcurrentHashMap<String, LaunchPipeline>();
+        VirtualMachineGroup.Members members = new VirtualMachineGroup.Members() {
+            public PendingResult<?> start(String virtualMachineName) {
+                LaunchPipeline launch = new LaunchPipeline(hypervisor, virtualMachineName, null, null,
+                        new StreamTaskListener(logger), 0);
+                launches.put(virtualMachineName, launch);
+                return launch.start();
+            }
+
+            public void cancel(String virtualMachineName, String reason) {
+                LaunchPipeline launch = launches.get(virtualMachineName);
+                if (launch != null) {
+                    launch.cancel(reason);
+                }
+            }
+
+            public void stop(String virtualMachineName) throws Exception {
+                leases.release(hypervisorDescription, virtualMachineName, holder, logger);
+            }
+        };
+        final VirtualMachineGroup group = new VirtualMachineGroup(names, members, getReadyTimeout() * 1000L);
+        // leases acquired so far, released again unless the whole group started
+        List<String> acquired = new ArrayList<String>();
+        boolean started = false;
+        try {
+            for (String name : names) {
+                boolean reused = leases.acquire(hypervisorDescription, name, holder,
+                        Boolean.TRUE.equals(stopWhenFinished), getStopDelay() * 1000L);
+                acquired.add(name);
+                if (reused) {
+                    logger.println("Reusing " + name + ", still running after a previous build");
+                }
+            }
+            group.start(logger);
+            started = true;
+        } catch (VMWareException e) {
+            listener.fatalError(e.getMessage());
+            return null;
+        } finally {
+            if (!started) {
+                for (LaunchPipeline launch : launches.values()) {
+                    launch.cancel("the group did not start");
+                }
+                release(new VirtualMachineGroup(acquired, members, 0), listener);
+            }
+        }
+        return new Environment() {
+            public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException,
+                    InterruptedException {
+                VimCalls.Scope calls = VimCalls.open("build tear-down", build.getFullDisplayName());
+                try {
+                    return release(group, listener);
+                } finally {
+                    calls.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Ends the leases of the build on all virtual machines at once, stopping
+     * those it was the last build of.
+     */
+    private boolean release(VirtualMachineGroup group, BuildListener listener) throws InterruptedException {
+        try {
+            group.stop(listener.getLogger());
+            return true;
+        } catch (VMWareException e) {
+            listener.fatalError(e.getMessage());
+            return false;
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends BuildWrapperDescriptor {
+
+        public DescriptorImpl() {
+            super(VMWareGroupBuildWrapper.class);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Start/stop a group of virtual computers running on a virtualization platform";
+        }
+
+        public ListBoxModel doFillHypervisorDescriptionItems() {
+            ListBoxModel model = new ListBoxModel();
+            for (Hypervisor vis : HypervisorRegistry.getAll()) {
+                model.add(vis.getHypervisorDescription(), vis.getHypervisorDescription());
+            }
+            return model;
+        }
+
+        public FormValidation doCheckVirtualMachineNames(@QueryParameter String value,
+                @QueryParameter String hypervisorDescription) {
+            List<String> names = VirtualMachineGroup.parseNames(value);
+            if (names.isEmpty()) {
+                return FormValidation.error("Names of the virtual machines are required");
+            }
+            Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+            if (hypervisor != null && hypervisor.isInventoryLoaded()) {
+                List<String> missing = new ArrayList<String>();
+                for (String name : names) {
+                    if (hypervisor.getVirtualMachine(name) == null) {
+                        missing.add(name);
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    return FormValidation.warning("No virtual machines " + missing + " on " + hypervisorDescription);
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckReadyTimeout(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (Integer.parseInt(value.trim()) <= 0) {
+                    return FormValidation.error("The timeout must be positive");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Not a number of seconds");
+            }
+            return FormValidation.ok();
+        }
+
+        @Override
+        public boolean isApplicable(AbstractProject<?, ?> item) {
+            return true;
+        }
+    }
+}
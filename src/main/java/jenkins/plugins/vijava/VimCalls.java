@@ -0,0 +1,399 @@
+package jenkins.plugins.vijava;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.VirtualMachineSnapshot;
+
+/**
+ * Accounting of the vSphere API round-trips the plugin makes.
+ *
+ * Every place that talks to the hypervisor reports the call here with
+ * {@link #record}, giving the API method and managed object type, or goes
+ * through one of the wrappers below for calls made from several places. Calls are
+ * counted and timed per method, and calls slower than {@link #SLOW_CALL} are
+ * logged with the operation that made them.
+ *
+ * Operations such as a launch, a build or a page request open a {@link Scope}
+ * on the thread doing the work. Calls made while it is entered are
+ * attributed to it, and when it is closed the number of calls it took is
+ * added to the figures of its kind, so an operation that starts making one
+ * call per virtual machine stands out by its calls per operation. Work handed
+ * to other threads carries the scope along by entering it there.
+ *
+ * @author jbh
+ */
+public final class VimCalls {
+
+    private static final Logger LOGGER = Logger.getLogger(VimCalls.class.getName());
+
+    /**
+     * Calls taking longer than this are logged.
+     */
+    static final long SLOW_CALL = 5 * 1000;
+
+    /**
+     * Methods that block until something changes, whose duration says
+     * nothing about the hypervisor's health.
+     */
+    private static final String WAIT_FOR_UPDATES = "WaitForUpdates";
+
+    private static final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+    private static final ConcurrentMap<String, Stats> byMethod = new ConcurrentHashMap<String, Stats>();
+    private static final ConcurrentMap<String, Stats> byOperation = new ConcurrentHashMap<String, Stats>();
+
+    private VimCalls() {
+    }
+
+    /**
+     * Counts a call of the API method on a managed object of the given type,
+     * started at <tt>startedAt</tt>.
+     */
+    static void record(String method, String type, long startedAt) {
+        long duration = System.currentTimeMillis() - startedAt;
+        stats(byMethod, type + "." + method).add(duration);
+        Scope scope = current.get();
+        if (scope != null) {
+            scope.calls.incrementAndGet();
+        }
+        if (duration > SLOW_CALL && !WAIT_FOR_UPDATES.equals(method)) {
+            LOGGER.log(Level.WARNING, "Slow vSphere call {0}.{1} took {2} ms for {3}", new Object[] { type, method, duration,
+                    scope != null ? scope.toString() : "an unattributed caller" });
+        }
+    }
+
+    static ObjectContent[] retrieveProperties(PropertyCollector collector, PropertyFilterSpec filterSpec)
+            throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return collector.retrieveProperties(new PropertyFilterSpec[] { filterSpec });
+        } finally {
+            record("RetrieveProperties", "PropertyCollector", started);
+        }
+    }
+
+    static Task powerOn(VirtualMachine domain) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return domain.powerOnVM_Task(null);
+        } finally {
+            record("PowerOnVM_Task", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    static Task powerOff(VirtualMachine domain) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return domain.powerOffVM_Task();
+        } finally {
+            record("PowerOffVM_Task", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    static void shutdownGuest(VirtualMachine domain) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            domain.shutdownGuest();
+        } finally {
+            record("ShutdownGuest", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    static Task suspend(VirtualMachine domain) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return domain.suspendVM_Task();
+        } finally {
+            record("SuspendVM_Task", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    static Task destroy(VirtualMachine domain) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return domain.destroy_Task();
+        } finally {
+            record("Destroy_Task", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    static Task revertToSnapshot(VirtualMachine domain, ManagedObjectReference snapshot) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return new VirtualMachineSnapshot(domain.getServerConnection(), snapshot).revertToSnapshot_Task(null);
+        } finally {
+            record("RevertToSnapshot_Task", "VirtualMachineSnapshot", started);
+        }
+    }
+
+    static TaskInfo getTaskInfo(Task task) throws RemoteException {
+        long started = System.currentTimeMillis();
+        try {
+            return task.getTaskInfo();
+        } finally {
+            record("RetrieveProperties", VirtualMachineWatcher.TASK, started);
+        }
+    }
+
+    static void logout(ServiceInstance session) {
+        long started = System.currentTimeMillis();
+        try {
+            session.getServerConnection().logout();
+        } finally {
+            record("Logout", "SessionManager", started);
+        }
+    }
+
+    /**
+     * Opens a scope for one operation of the given kind and enters it on the
+     * current thread. Close it with {@link Scope#close()} once the operation
+     * is over.
+     *
+     * @param kind what sort of operation this is, e.g. <tt>launch</tt>; figures are kept per kind
+     * @param subject what the operation works on, for the log
+     */
+    static Scope open(String kind, String subject) {
+        Scope scope = newScope(kind, subject);
+        scope.previous = scope.enter();
+        return scope;
+    }
+
+    /**
+     * Creates a scope without entering it, for operations that run as a
+     * series of tasks on other threads. Each task enters it, e.g. through
+     * {@link #within}.
+     */
+    static Scope newScope(String kind, String subject) {
+        return new Scope(kind, subject);
+    }
+
+    /**
+     * Wraps the task so that it runs with <tt>scope</tt> entered, or returns
+     * it unchanged if <tt>scope</tt> is null.
+     */
+    static Runnable within(final Scope scope, final Runnable task) {
+        if (scope == null) {
+            return task;
+        }
+        return new Runnable() {
+            public void run() {
+                Scope previous = scope.enter();
+                try {
+                    task.run();
+                } finally {
+                    restore(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Scope entered on the current thread, or null.
+     */
+    static Scope current() {
+        return current.get();
+    }
+
+    /**
+     * Makes <tt>scope</tt>, which may be null, the current scope again,
+     * typically the one returned by {@link Scope#enter()}.
+     */
+    static void restore(Scope scope) {
+        if (scope != null) {
+            current.set(scope);
+        } else {
+            current.remove();
+        }
+    }
+
+    /**
+     * Call figures by <tt>Type.Method</tt>, most frequent first.
+     */
+    public static List<Stats> getMethods() {
+        return sorted(byMethod);
+    }
+
+    /**
+     * Figures by kind of operation, counting API calls per operation instead
+     * of milliseconds.
+     */
+    public static List<Stats> getOperations() {
+        return sorted(byOperation);
+    }
+
+    static JSONObject toJSON() {
+        JSONObject result = new JSONObject();
+        result.put("slowCallMillis", SLOW_CALL);
+        result.put("methods", toJSON(getMethods(), "Millis"));
+        result.put("operations", toJSON(getOperations(), "Calls"));
+        return result;
+    }
+
+    private static JSONArray toJSON(List<Stats> all, String unit) {
+        JSONArray array = new JSONArray();
+        for (Stats stats : all) {
+            JSONObject entry = new JSONObject();
+            entry.put("name", stats.getName());
+            entry.put("count", stats.getCount());
+            entry.put("total" + unit, stats.getTotal());
+            entry.put("mean" + unit, stats.getMean());
+            entry.put("max" + unit, stats.getMax());
+            if ("Millis".equals(unit)) {
+                entry.put("slow", stats.getSlow());
+            }
+            array.add(entry);
+        }
+        return array;
+    }
+
+    private static List<Stats> sorted(ConcurrentMap<String, Stats> map) {
+        List<Stats> all = new ArrayList<Stats>(map.values());
+        Collections.sort(all, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                long ca = a.getCount();
+                long cb = b.getCount();
+                return ca != cb ? (ca > cb ? -1 : 1) : a.getName().compareTo(b.getName());
+            }
+        });
+        return all;
+    }
+
+    private static Stats stats(ConcurrentMap<String, Stats> map, String name) {
+        Stats stats = map.get(name);
+        if (stats == null) {
+            Stats created = new Stats(name);
+            stats = map.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * One operation the calls made on the threads it is entered on are
+     * attributed to.
+     */
+    static final class Scope {
+        private final String kind;
+        private final String subject;
+        private final AtomicInteger calls = new AtomicInteger();
+        private Scope previous;
+        private boolean closed;
+
+        private Scope(String kind, String subject) {
+            this.kind = kind;
+            this.subject = subject;
+        }
+
+        /**
+         * Makes this the current scope of the calling thread and returns the
+         * one it replaces, to be passed to {@link VimCalls#restore}.
+         */
+        Scope enter() {
+            Scope replaced = current.get();
+            current.set(this);
+            return replaced;
+        }
+
+        /**
+         * Number of calls attributed to this scope so far.
+         */
+        int getCalls() {
+            return calls.get();
+        }
+
+        /**
+         * Ends the operation, counting its calls for its kind, and restores
+         * the scope that was current when it was opened if this thread still
+         * has it entered. Closing twice has no effect.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            stats(byOperation, kind).add(calls.get());
+            if (current.get() == this) {
+                restore(previous);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subject != null ? kind + " " + subject : kind;
+        }
+    }
+
+    /**
+     * Count, total and maximum of the values added.
+     */
+    public static final class Stats {
+        private final String name;
+        private long count;
+        private long total;
+        private long max;
+        private long slow;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long value) {
+            count++;
+            total += value;
+            max = Math.max(max, value);
+            if (value > SLOW_CALL) {
+                slow++;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getTotal() {
+            return total;
+        }
+
+        public synchronized long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        /**
+         * Values above {@link VimCalls#SLOW_CALL}, meaningful for durations only.
+         */
+        public synchronized long getSlow() {
+            return slow;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package jenkins.plugins.vijava;
+
+import java.rmi.RemoteException;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Creates linked clones of a template snapshot.
+ *
+ * A linked clone gets a delta disk on top of the snapshot's disks instead of
+ * a full copy, so it is created in seconds and many clones share the base
+ * disks of one template on the datastore.
+ *
+ * @author jbh
+ */
+final class VirtualMachineCloner {
+
+    /**
+     * Disk move type that backs the clone's disks with a child of the
+     * snapshot's disks.
+     */
+    static final String LINKED_CLONE = "createNewChildDiskBacking";
+
+    private VirtualMachineCloner() {
+    }
+
+    /**
+     * Starts a linked clone of the named snapshot of <tt>template</tt>, or its
+     * current snapshot if <tt>snapshotName</tt> is empty, in the template's folder.
+     * The clone is left powered off.
+     */
+    static Task linkedClone(VirtualMachine template, String snapshotName, String cloneName) throws VMWareException,
+            RemoteException {
+        ManagedObjectReference snapshot = findSnapshot(template, snapshotName);
+        if (snapshot == null) {
+            throw new VMWareException("Template " + template.getName() + " has no snapshot "
+                    + (snapshotName == null || snapshotName.length() == 0 ? "" : snapshotName + " ") + "to link clones to", null);
+        }
+        VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+        location.setDiskMoveType(LINKED_CLONE);
+        VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+        spec.setLocation(location);
+        spec.setSnapshot(snapshot);
+        spec.setPowerOn(false);
+        spec.setTemplate(false);
+        long started = System.currentTimeMillis();
+        Folder folder;
+        try {
+            folder = (Folder) template.getParent();
+        } finally {
+            VimCalls.record("RetrieveProperties", VirtualMachineInfo.TYPE, started);
+        }
+        started = System.currentTimeMillis();
+        try {
+            return template.cloneVM_Task(folder, cloneName, spec);
+        } finally {
+            VimCalls.record("CloneVM_Task", VirtualMachineInfo.TYPE, started);
+        }
+    }
+
+    /**
+     * Looks up a snapshot of the virtual machine by name, or its current
+     * snapshot if <tt>snapshotName</tt> is empty. Returns null if there is none.
+     */
+    static ManagedObjectReference findSnapshot(VirtualMachine template, String snapshotName) {
+        long started = System.currentTimeMillis();
+        VirtualMachineSnapshotInfo snapshots;
+        try {
+            snapshots = template.getSnapshot();
+        } finally {
+            VimCalls.record("RetrieveProperties", VirtualMachineInfo.TYPE, started);
+        }
+        if (snapshots == null) {
+            return null;
+        }
+        if (snapshotName == null || snapshotName.length() == 0) {
+            return snapshots.getCurrentSnapshot();
+        }
+        return findSnapshot(snapshots.getRootSnapshotList(), snapshotName);
+    }
+
+    private static ManagedObjectReference findSnapshot(VirtualMachineSnapshotTree[] trees, String snapshotName) {
+        if (trees == null) {
+            return null;
+        }
+        for (VirtualMachineSnapshotTree tree : trees) {
+            if (snapshotName.equals(tree.getName())) {
+                return tree.getSnapshot();
+            }
+            ManagedObjectReference child = findSnapshot(tree.getChildSnapshotList(), snapshotName);
+            if (child != null) {
+                return child;
+            }
+        }
+        return null;
+    }
+}
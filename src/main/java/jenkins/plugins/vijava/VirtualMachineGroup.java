@@ -0,0 +1,190 @@
+package jenkins.plugins.vijava;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Starts the virtual machines a build needs all at once and waits until every
+ * one of them is ready, instead of one after the other, and stops them all at
+ * once afterwards.
+ *
+ * Each virtual machine has the same time to become ready, counted from the
+ * start of the group. The time each one took is logged together with the
+ * slowest one, which is what the build waited for.
+ *
+ * @author jbh
+ */
+final class VirtualMachineGroup {
+
+    /**
+     * Starts and stops the single virtual machines of the group.
+     */
+    interface Members {
+        /**
+         * Starts the virtual machine and returns a result completed once it
+         * is ready.
+         */
+        PendingResult<?> start(String virtualMachineName);
+
+        /**
+         * Aborts a start that did not complete in time.
+         */
+        void cancel(String virtualMachineName, String reason);
+
+        void stop(String virtualMachineName) throws Exception;
+    }
+
+    private final List<String> names;
+    private final Members members;
+    private final long readyTimeout;
+
+    /**
+     * @param readyTimeout milliseconds each virtual machine may take to become ready
+     */
+    VirtualMachineGroup(List<String> names, Members members, long readyTimeout) {
+        this.names = names;
+        this.members = members;
+        this.readyTimeout = readyTimeout;
+    }
+
+    /**
+     * Starts every virtual machine and waits for all of them. Starts that
+     * fail or time out are reported together once all have finished, the
+     * virtual machines that did start are left running for the caller to
+     * stop. Returns how long each virtual machine took to become ready.
+     */
+    Map<String, Long> start(PrintStream logger) throws VMWareException, InterruptedException {
+        final long startedAt = System.currentTimeMillis();
+        final Map<String, Long> completedAfter = new ConcurrentHashMap<String, Long>();
+        Map<String, PendingResult<?>> starts = new LinkedHashMap<String, PendingResult<?>>();
+        logger.println("Starting " + names.size() + " virtual machines: " + names);
+        for (final String name : names) {
+            PendingResult<?> start = members.start(name);
+            start.addListener(new Runnable() {
+                public void run() {
+                    completedAfter.put(name, System.currentTimeMillis() - startedAt);
+                }
+            });
+            starts.put(name, start);
+        }
+        Map<String, Long> ready = new LinkedHashMap<String, Long>();
+        List<String> failures = new ArrayList<String>();
+        Exception firstFailure = null;
+        for (Map.Entry<String, PendingResult<?>> start : starts.entrySet()) {
+            String name = start.getKey();
+            try {
+                start.getValue().get(Math.max(0, startedAt + readyTimeout - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+                // the listener may not have run yet when get() returns
+                Long after = completedAfter.get(name);
+                ready.put(name, after != null ? after : System.currentTimeMillis() - startedAt);
+            } catch (TimeoutException e) {
+                String reason = "not ready after " + readyTimeout / 1000 + "s";
+                members.cancel(name, reason);
+                failures.add(name + " " + reason);
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                failures.add(name + ": " + cause.getMessage());
+                firstFailure = firstFailure != null ? firstFailure : cause;
+            } catch (CancellationException e) {
+                failures.add(name + " was cancelled");
+            } catch (InterruptedException e) {
+                for (Map.Entry<String, PendingResult<?>> other : starts.entrySet()) {
+                    if (!other.getValue().isDone()) {
+                        members.cancel(other.getKey(), "build was aborted");
+                    }
+                }
+                throw e;
+            }
+        }
+        report(logger, "ready", ready);
+        if (!failures.isEmpty()) {
+            throw new VMWareException(failures.size() + " of " + names.size() + " virtual machines failed to start: "
+                    + failures, firstFailure);
+        }
+        return ready;
+    }
+
+    /**
+     * Stops every virtual machine at once and waits for all of them, then
+     * reports the ones that failed to stop.
+     */
+    void stop(PrintStream logger) throws VMWareException, InterruptedException {
+        final long startedAt = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, names.size()),
+                new NamedThreadFactory("vSphere group stop"));
+        Map<String, Future<Long>> stops = new LinkedHashMap<String, Future<Long>>();
+        try {
+            for (final String name : names) {
+                stops.put(name, executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        members.stop(name);
+                        return System.currentTimeMillis() - startedAt;
+                    }
+                }));
+            }
+            Map<String, Long> stopped = new LinkedHashMap<String, Long>();
+            List<String> failures = new ArrayList<String>();
+            Exception firstFailure = null;
+            for (Map.Entry<String, Future<Long>> stop : stops.entrySet()) {
+                try {
+                    stopped.put(stop.getKey(), stop.getValue().get());
+                } catch (ExecutionException e) {
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    failures.add(stop.getKey() + ": " + cause.getMessage());
+                    firstFailure = firstFailure != null ? firstFailure : cause;
+                }
+            }
+            report(logger, "released", stopped);
+            if (!failures.isEmpty()) {
+                throw new VMWareException(failures.size() + " of " + names.size()
+                        + " virtual machines failed to stop: " + failures, firstFailure);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void report(PrintStream logger, String what, Map<String, Long> durations) {
+        String slowest = null;
+        for (Map.Entry<String, Long> duration : durations.entrySet()) {
+            logger.println(duration.getKey() + " " + what + " after " + duration.getValue() + " ms");
+            if (slowest == null || duration.getValue() > durations.get(slowest)) {
+                slowest = duration.getKey();
+            }
+        }
+        if (slowest != null) {
+            logger.println(durations.size() + " of " + names.size() + " virtual machines " + what + " after "
+                    + durations.get(slowest) + " ms, slowest was " + slowest);
+        }
+    }
+
+    /**
+     * Splits a list of virtual machine names separated by new lines or
+     * commas, dropping blanks and duplicates.
+     */
+    static List<String> parseNames(String value) {
+        List<String> names = new ArrayList<String>();
+        if (value != null) {
+            for (String name : value.split("[,\\r\\n]+")) {
+                name = name.trim();
+                if (name.length() > 0 && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,162 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The {@link JenkinsVirtualMachine}s of one inventory snapshot, indexed by
+ * name and by managed object reference. Built once per snapshot and never
+ * modified, so lookups need no locking.
+ *
+ * Names are also kept lower cased in sorted order, so a prefix search is a
+ * binary search for the first match plus a scan of the matches, and a
+ * substring search scans one array of short strings. Lower cased names
+ * repeat, for example for <tt>Build01</tt> and <tt>build01</tt>.
+ *
+ * @author jbh
+ */
+final class VirtualMachineIndex {
+
+    /**
+     * Decides which virtual machines a search returns.
+     */
+    interface Filter {
+        boolean accept(VirtualMachineInfo info);
+    }
+
+    /**
+     * One page of search results and the number of matches in total.
+     */
+    static final class Page {
+        private final int total;
+        private final List<VirtualMachineInfo> items;
+
+        Page(int total, List<VirtualMachineInfo> items) {
+            this.total = total;
+            this.items = items;
+        }
+
+        int getTotal() {
+            return total;
+        }
+
+        List<VirtualMachineInfo> getItems() {
+            return items;
+        }
+    }
+
+    private final VirtualMachineInventory source;
+    private final List<JenkinsVirtualMachine> all;
+    private final Map<String, JenkinsVirtualMachine> byName;
+    private final Map<String, JenkinsVirtualMachine> byMoRef;
+    private final String[] sortedKeys;
+    private final VirtualMachineInfo[] sortedInfos;
+
+    VirtualMachineIndex(Hypervisor hypervisor, VirtualMachineInventory source) {
+        this.source = source;
+        List<JenkinsVirtualMachine> machines = new ArrayList<JenkinsVirtualMachine>(source.size());
+        byName = new HashMap<String, JenkinsVirtualMachine>(source.size() * 2);
+        byMoRef = new HashMap<String, JenkinsVirtualMachine>(source.size() * 2);
+        for (VirtualMachineInfo info : source.getAll()) {
+            JenkinsVirtualMachine vm = new JenkinsVirtualMachine(hypervisor, info.getName());
+            machines.add(vm);
+            // same rule as the inventory, the first name in sort order wins
+            if (!byName.containsKey(info.getName())) {
+                byName.put(info.getName(), vm);
+            }
+            byMoRef.put(info.getMoRef(), vm);
+        }
+        all = Collections.unmodifiableList(machines);
+
+        sortedInfos = source.getAll().toArray(new VirtualMachineInfo[source.size()]);
+        Arrays.sort(sortedInfos, new Comparator<VirtualMachineInfo>() {
+            public int compare(VirtualMachineInfo a, VirtualMachineInfo b) {
+                return toKey(a.getName()).compareTo(toKey(b.getName()));
+            }
+        });
+        sortedKeys = new String[sortedInfos.length];
+        for (int i = 0; i < sortedInfos.length; i++) {
+            sortedKeys[i] = toKey(sortedInfos[i].getName());
+        }
+    }
+
+    /**
+     * The inventory snapshot this index was built from.
+     */
+    VirtualMachineInventory getSource() {
+        return source;
+    }
+
+    List<JenkinsVirtualMachine> getAll() {
+        return all;
+    }
+
+    JenkinsVirtualMachine get(String name) {
+        return byName.get(name);
+    }
+
+    JenkinsVirtualMachine getByMoRef(String moRef) {
+        return byMoRef.get(moRef);
+    }
+
+    /**
+     * Returns the virtual machines whose name starts with the query, or
+     * contains it if <tt>substring</tt> is set, ignoring case and in name
+     * order. Only machines the filter accepts count, and at most
+     * <tt>limit</tt> of them are returned from <tt>offset</tt> on.
+     */
+    Page search(String query, boolean substring, Filter filter, int offset, int limit) {
+        String key = toKey(query);
+        int from = 0;
+        if (!substring) {
+            from = lowerBound(sortedKeys, key);
+        }
+        int total = 0;
+        List<VirtualMachineInfo> items = new ArrayList<VirtualMachineInfo>(Math.min(limit, 64));
+        for (int i = from; i < sortedKeys.length; i++) {
+            if (substring ? sortedKeys[i].indexOf(key) < 0 : !sortedKeys[i].startsWith(key)) {
+                if (substring) {
+                    continue;
+                }
+                break;
+            }
+            if (filter != null && !filter.accept(sortedInfos[i])) {
+                continue;
+            }
+            if (total >= offset && items.size() < limit) {
+                items.add(sortedInfos[i]);
+            }
+            total++;
+        }
+        return new Page(total, Collections.unmodifiableList(items));
+    }
+
+    /**
+     * First index whose key is not less than the given one. Unlike
+     * {@link Arrays#binarySearch}, which may return any of several equal
+     * keys, this finds the first of them.
+     */
+    static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static String toKey(String name) {
+        return name == null ? "" : name.toLowerCase(Locale.ENGLISH);
+    }
+}
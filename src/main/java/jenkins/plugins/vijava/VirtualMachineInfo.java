@@ -0,0 +1,255 @@
+package jenkins.plugins.vijava;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ArrayOfManagedObjectReference;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineToolsStatus;
+
+/**
+ * Immutable view of the properties we track for one virtual machine, as
+ * returned by the property collector.
+ *
+ * @author jbh
+ */
+public final class VirtualMachineInfo implements Serializable, Comparable<VirtualMachineInfo> {
+
+    static final String TYPE = "VirtualMachine";
+
+    static final String NAME = "name";
+    static final String POWER_STATE = "runtime.powerState";
+    static final String TOOLS_STATUS = "guest.toolsStatus";
+    static final String GUEST_STATE = "guest.guestState";
+    static final String IP_ADDRESS = "guest.ipAddress";
+    static final String HOST = "runtime.host";
+    static final String DATASTORES = "datastore";
+    static final String MEMORY_MB = "summary.config.memorySizeMB";
+    static final String FOLDER = "parent";
+
+    /**
+     * Property paths fetched for every virtual machine.
+     */
+    static final String[] PROPERTIES = { NAME, POWER_STATE, TOOLS_STATUS, GUEST_STATE, IP_ADDRESS, HOST, DATASTORES, MEMORY_MB,
+            FOLDER };
+
+    private final String name;
+    private final String moRef;
+    private final VirtualMachinePowerState powerState;
+    private final VirtualMachineToolsStatus toolsStatus;
+    private final String guestState;
+    private final String ipAddress;
+    private final String host;
+    private final List<String> datastores;
+    private final int memoryMB;
+    private final String folder;
+
+    /**
+     * Builds the info from property collector values keyed by property path.
+     */
+    VirtualMachineInfo(String moRef, Map<String, Object> properties) {
+        this.moRef = moRef;
+        this.name = (String) properties.get(NAME);
+        this.powerState = toPowerState(properties.get(POWER_STATE));
+        this.toolsStatus = toToolsStatus(properties.get(TOOLS_STATUS));
+        this.guestState = (String) properties.get(GUEST_STATE);
+        this.ipAddress = (String) properties.get(IP_ADDRESS);
+        this.host = toMoRef(properties.get(HOST));
+        this.datastores = toMoRefs(properties.get(DATASTORES));
+        Object memory = properties.get(MEMORY_MB);
+        this.memoryMB = memory instanceof Number ? ((Number) memory).intValue() : 0;
+        this.folder = toMoRef(properties.get(FOLDER));
+    }
+
+    /**
+     * Returns a copy with the given property values replaced. Paths we do not
+     * track are ignored.
+     */
+    VirtualMachineInfo withChanges(Map<String, Object> changes) {
+        Map<String, Object> properties = toProperties();
+        properties.putAll(changes);
+        return new VirtualMachineInfo(moRef, properties);
+    }
+
+    Map<String, Object> toProperties() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(NAME, name);
+        properties.put(POWER_STATE, powerState);
+        properties.put(TOOLS_STATUS, toolsStatus);
+        properties.put(GUEST_STATE, guestState);
+        properties.put(IP_ADDRESS, ipAddress);
+        properties.put(HOST, host);
+        properties.put(DATASTORES, datastores);
+        properties.put(MEMORY_MB, memoryMB);
+        properties.put(FOLDER, folder);
+        return properties;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Value of the managed object reference, e.g. <tt>vm-1234</tt>.
+     */
+    public String getMoRef() {
+        return moRef;
+    }
+
+    public VirtualMachinePowerState getPowerState() {
+        return powerState;
+    }
+
+    public VirtualMachineToolsStatus getToolsStatus() {
+        return toolsStatus;
+    }
+
+    public String getGuestState() {
+        return guestState;
+    }
+
+    /**
+     * Primary guest IP address reported by VMware Tools, or null.
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Managed object reference value of the host running or registering the
+     * virtual machine, or null.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Managed object reference values of the datastores holding the virtual
+     * machine's files.
+     */
+    public List<String> getDatastores() {
+        return datastores;
+    }
+
+    /**
+     * Configured memory, 0 if unknown.
+     */
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    /**
+     * Managed object reference value of the folder or vApp holding the
+     * virtual machine, or null.
+     */
+    public String getFolder() {
+        return folder;
+    }
+
+    public boolean isPoweredOn() {
+        return powerState == VirtualMachinePowerState.poweredOn;
+    }
+
+    public boolean isPoweredOff() {
+        return powerState == VirtualMachinePowerState.poweredOff;
+    }
+
+    public boolean isSuspended() {
+        return powerState == VirtualMachinePowerState.suspended;
+    }
+
+    public boolean isToolsRunning() {
+        return toolsStatus == VirtualMachineToolsStatus.toolsOk || toolsStatus == VirtualMachineToolsStatus.toolsOld;
+    }
+
+    public ManagedObjectReference toManagedObjectReference() {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(TYPE);
+        mor.setVal(moRef);
+        return mor;
+    }
+
+    private static VirtualMachinePowerState toPowerState(Object value) {
+        if (value == null || value instanceof VirtualMachinePowerState) {
+            return (VirtualMachinePowerState) value;
+        }
+        return VirtualMachinePowerState.valueOf(value.toString());
+    }
+
+    private static String toMoRef(Object value) {
+        if (value instanceof ManagedObjectReference) {
+            return ((ManagedObjectReference) value).getVal();
+        }
+        return (String) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> toMoRefs(Object value) {
+        if (value instanceof List) {
+            return (List<String>) value;
+        }
+        ManagedObjectReference[] mors = null;
+        if (value instanceof ArrayOfManagedObjectReference) {
+            mors = ((ArrayOfManagedObjectReference) value).getManagedObjectReference();
+        } else if (value instanceof ManagedObjectReference[]) {
+            mors = (ManagedObjectReference[]) value;
+        }
+        if (mors == null) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>(mors.length);
+        for (ManagedObjectReference mor : mors) {
+            result.add(mor.getVal());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static VirtualMachineToolsStatus toToolsStatus(Object value) {
+        if (value == null || value instanceof VirtualMachineToolsStatus) {
+            return (VirtualMachineToolsStatus) value;
+        }
+        return VirtualMachineToolsStatus.valueOf(value.toString());
+    }
+
+    public int compareTo(VirtualMachineInfo o) {
+        int result = String.valueOf(name).compareTo(String.valueOf(o.name));
+        return result != 0 ? result : moRef.compareTo(o.moRef);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VirtualMachineInfo)) {
+            return false;
+        }
+        VirtualMachineInfo that = (VirtualMachineInfo) o;
+        return moRef.equals(that.moRef) && toProperties().equals(that.toProperties());
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * moRef.hashCode() + (name != null ? name.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("VirtualMachineInfo");
+        sb.append("{name='").append(name).append('\'');
+        sb.append(", moRef=").append(moRef);
+        sb.append(", powerState=").append(powerState);
+        sb.append(", toolsStatus=").append(toolsStatus);
+        sb.append(", guestState=").append(guestState);
+        sb.append(", ipAddress=").append(ipAddress);
+        sb.append(", host=").append(host);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package jenkins.plugins.vijava;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+/**
+ * Immutable snapshot of every virtual machine on a hypervisor, sorted by name.
+ *
+ * The snapshot is fetched with a single batched <tt>RetrieveProperties</tt>
+ * call instead of walking the managed objects one by one, so listing a large
+ * datacenter costs one round-trip regardless of the number of machines.
+ *
+ * @author jbh
+ */
+public final class VirtualMachineInventory implements Serializable {
+
+    static final VirtualMachineInventory EMPTY = new VirtualMachineInventory(Collections.<VirtualMachineInfo>emptyList());
+
+    private final VirtualMachineInfo[] machines;
+    private final Map<String, VirtualMachineInfo> byName;
+    private final Map<String, VirtualMachineInfo> byMoRef;
+
+    VirtualMachineInventory(Collection<VirtualMachineInfo> machines) {
+        this.machines = machines.toArray(new VirtualMachineInfo[machines.size()]);
+        Arrays.sort(this.machines);
+        this.byName = new HashMap<String, VirtualMachineInfo>(this.machines.length * 2);
+        this.byMoRef = new HashMap<String, VirtualMachineInfo>(this.machines.length * 2);
+        for (VirtualMachineInfo info : this.machines) {
+            // names are only unique per folder, the first one in sort order wins
+            if (!byName.containsKey(info.getName())) {
+                byName.put(info.getName(), info);
+            }
+            byMoRef.put(info.getMoRef(), info);
+        }
+    }
+
+    /**
+     * Looks up a virtual machine by name, or returns null.
+     */
+    public VirtualMachineInfo get(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Looks up a virtual machine by managed object reference value, or returns null.
+     */
+    public VirtualMachineInfo getByMoRef(String moRef) {
+        return byMoRef.get(moRef);
+    }
+
+    /**
+     * All virtual machines sorted by name.
+     */
+    public List<VirtualMachineInfo> getAll() {
+        return Collections.unmodifiableList(Arrays.asList(machines));
+    }
+
+    public int size() {
+        return machines.length;
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given machine added or replaced.
+     */
+    VirtualMachineInventory with(VirtualMachineInfo info) {
+        List<VirtualMachineInfo> result = new ArrayList<VirtualMachineInfo>(machines.length + 1);
+        for (VirtualMachineInfo existing : machines) {
+            if (!existing.getMoRef().equals(info.getMoRef())) {
+                result.add(existing);
+            }
+        }
+        result.add(info);
+        return new VirtualMachineInventory(result);
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given property collector changes
+     * applied. Changes to objects other than virtual machines are ignored.
+     */
+    VirtualMachineInventory apply(Collection<InventorySource.Change> changes) {
+        Map<String, VirtualMachineInfo> result = new LinkedHashMap<String, VirtualMachineInfo>(byMoRef);
+        boolean modified = false;
+        for (InventorySource.Change change : changes) {
+            if (!VirtualMachineInfo.TYPE.equals(change.getType())) {
+                continue;
+            }
+            modified = true;
+            switch (change.getKind()) {
+            case ENTER:
+                result.put(change.getMoRef(), new VirtualMachineInfo(change.getMoRef(), change.getProperties()));
+                break;
+            case MODIFY:
+                VirtualMachineInfo existing = result.get(change.getMoRef());
+                if (existing != null) {
+                    result.put(change.getMoRef(), existing.withChanges(change.getProperties()));
+                } else {
+                    result.put(change.getMoRef(), new VirtualMachineInfo(change.getMoRef(), change.getProperties()));
+                }
+                break;
+            case LEAVE:
+                result.remove(change.getMoRef());
+                break;
+            }
+        }
+        return modified ? new VirtualMachineInventory(result.values()) : this;
+    }
+
+    /**
+     * Fetches name, power state and tools state of every virtual machine below
+     * the root folder in one property collector call.
+     */
+    static VirtualMachineInventory retrieve(ServiceInstance serviceInstance) throws RemoteException {
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(serviceInstance.getRootFolder().getMOR());
+        objectSpec.setSkip(Boolean.TRUE);
+        objectSpec.setSelectSet(PropertyCollectorUtil.buildFullTraversal());
+
+        ObjectContent[] contents = retrieve(serviceInstance.getPropertyCollector(), objectSpec);
+        List<VirtualMachineInfo> result = new ArrayList<VirtualMachineInfo>();
+        if (contents != null) {
+            for (ObjectContent content : contents) {
+                result.add(toInfo(content));
+            }
+        }
+        return new VirtualMachineInventory(result);
+    }
+
+    /**
+     * Fetches the current properties of a single virtual machine in one call.
+     */
+    static VirtualMachineInfo retrieve(ManagedObject virtualMachine) throws RemoteException {
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(virtualMachine.getMOR());
+        objectSpec.setSkip(Boolean.FALSE);
+
+        PropertyCollector collector = virtualMachine.getServerConnection().getServiceInstance().getPropertyCollector();
+        ObjectContent[] contents = retrieve(collector, objectSpec);
+        if (contents == null || contents.length == 0) {
+            return null;
+        }
+        return toInfo(contents[0]);
+    }
+
+    /**
+     * Fetches the tracked properties of the virtual machines the object specs
+     * lead to, in one property collector call.
+     */
+    static ObjectContent[] retrieve(PropertyCollector collector, ObjectSpec... objectSpecs) throws RemoteException {
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(objectSpecs);
+        filterSpec.setPropSet(new PropertySpec[] { createPropertySpec() });
+        return VimCalls.retrieveProperties(collector, filterSpec);
+    }
+
+    static PropertySpec createPropertySpec() {
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(VirtualMachineInfo.TYPE);
+        propertySpec.setAll(Boolean.FALSE);
+        propertySpec.setPathSet(VirtualMachineInfo.PROPERTIES);
+        return propertySpec;
+    }
+
+    static VirtualMachineInfo toInfo(ObjectContent content) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        DynamicProperty[] propSet = content.getPropSet();
+        if (propSet != null) {
+            for (DynamicProperty property : propSet) {
+                properties.put(property.getName(), property.getVal());
+            }
+        }
+        return new VirtualMachineInfo(content.getObj().getVal(), properties);
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualMachineInventory{size=" + machines.length + '}';
+    }
+}
@@ -23,13 +23,18 @@ import hudson.Extension;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
-import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
+import hudson.util.StreamTaskListener;
 
 import java.io.IOException;
 import java.io.PrintStream;
 import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,13 +43,11 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import com.vmware.vim25.FileFault;
 import com.vmware.vim25.InsufficientResourcesFault;
 import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ManagedEntityStatus;
 import com.vmware.vim25.RuntimeFault;
 import com.vmware.vim25.TaskInProgress;
-import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.ToolsUnavailable;
-import com.vmware.vim25.VirtualMachinePowerState;
-import com.vmware.vim25.VirtualMachineToolsStatus;
 import com.vmware.vim25.VmConfigFault;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
@@ -54,37 +57,48 @@ public class VirtualMachineLauncher extends ComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineLauncher.class.getName());
     private ComputerLauncher delegate;
     private transient JenkinsVirtualMachine virtualMachine;
+    private transient LaunchPipeline pendingLaunch;
     private String hypervisorDescription;
     private String virtualMachineName;
+    private StopStrategy stopStrategy;
+    private String snapshotName;
+    private int readinessPort;
     private static final int WAIT_TIME = 60000;
+    private static final long POWER_TIMEOUT = 5 * 60 * 1000;
 
-    @DataBoundConstructor
     public VirtualMachineLauncher(ComputerLauncher delegate, String hypervisorDescription, String virtualMachineName) {
+        this(delegate, hypervisorDescription, virtualMachineName, StopStrategy.SHUTDOWN, null);
+    }
+
+    public VirtualMachineLauncher(ComputerLauncher delegate, String hypervisorDescription, String virtualMachineName,
+            StopStrategy stopStrategy, String snapshotName) {
+        this(delegate, hypervisorDescription, virtualMachineName, stopStrategy, snapshotName, 0);
+    }
+
+    @DataBoundConstructor
+    public VirtualMachineLauncher(ComputerLauncher delegate, String hypervisorDescription, String virtualMachineName,
+            StopStrategy stopStrategy, String snapshotName, int readinessPort) {
         super();
         this.delegate = delegate;
         this.virtualMachineName = virtualMachineName;
         this.hypervisorDescription = hypervisorDescription;
-        buildVirtualMachine();
+        this.stopStrategy = stopStrategy;
+        this.snapshotName = snapshotName;
+        this.readinessPort = readinessPort;
     }
 
     private void buildVirtualMachine() {
+        virtualMachine = null;
         if (hypervisorDescription != null && virtualMachineName != null) {
             LOGGER.log(Level.INFO, "Building virtual machine object from names");
-            Hypervisor hypervisor = null;
-            for (Cloud cloud : Hudson.getInstance().clouds) {
-                if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(hypervisorDescription)) {
-                    hypervisor = (Hypervisor) cloud;
-                    break;
-                }
+            Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+            if (hypervisor == null) {
+                LOGGER.log(Level.WARNING, "No hypervisor {0} configured for {1}", new Object[] { hypervisorDescription,
+                        virtualMachineName });
+                return;
             }
             LOGGER.log(Level.INFO, "Hypervisor found... getting Virtual Machines associated");
-            
-            for (JenkinsVirtualMachine vm : hypervisor.getVirtualMachines()) {
-                if (vm.getName().equals(virtualMachineName)) {
-                    virtualMachine = vm;
-                    break;
-                }
-            }
+            virtualMachine = hypervisor.getVirtualMachine(virtualMachineName);
         }
     }
 
@@ -92,94 +106,217 @@ public class VirtualMachineLauncher extends ComputerLauncher {
         return delegate;
     }
 
+    /**
+     * The virtual machine, looked up on first use so that creating the
+     * launcher does not wait for the hypervisor's inventory, and again once
+     * the clouds are reconfigured and its hypervisor is replaced.
+     */
     public JenkinsVirtualMachine getVirtualMachine() {
+        JenkinsVirtualMachine current = virtualMachine;
+        if (current == null || current.getHypervisor() != HypervisorRegistry.get(hypervisorDescription)) {
+            buildVirtualMachine();
+        }
         return virtualMachine;
     }
 
+    public String getHypervisorDescription() {
+        return hypervisorDescription;
+    }
+
+    public StopStrategy getStopStrategy() {
+        return stopStrategy != null ? stopStrategy : StopStrategy.SHUTDOWN;
+    }
+
+    /**
+     * Snapshot to revert to with {@link StopStrategy#REVERT}, the current
+     * snapshot if empty.
+     */
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    /**
+     * Guest port that must accept connections before the delegate launcher
+     * is called, 0 to launch as soon as VMware Tools are running.
+     */
+    public int getReadinessPort() {
+        return readinessPort;
+    }
+
     @Override
     public boolean isLaunchSupported() {
         return delegate.isLaunchSupported();
     }
 
+    /**
+     * Runs the launch pipeline, whose waiting stages hold no thread, and
+     * returns once the delegate launcher has connected the slave, so Jenkins
+     * sees whether the launch worked. A launch already in progress is waited
+     * for instead of starting another one.
+     */
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener taskListener) throws IOException, InterruptedException {
-        PrintStream logger =  taskListener.getLogger();
-        launchVM(logger);
-        delegate.launch(slaveComputer, taskListener);
+        LaunchPipeline launch;
+        synchronized (this) {
+            if (pendingLaunch != null && !pendingLaunch.isDone()) {
+                taskListener.getLogger().println("Launch of "+virtualMachineName+" is already in progress, waiting for it");
+                launch = pendingLaunch;
+            } else {
+                launch = new LaunchPipeline(getHypervisor(), virtualMachineName, delegate, slaveComputer, taskListener,
+                        readinessPort);
+                launch.start();
+                pendingLaunch = launch;
+            }
+        }
+        launch.await();
     }
 
-    public void launchVM(PrintStream logger) throws IOException {
+    /**
+     * Starts the virtual machine and waits until it is up.
+     */
+    public void launchVM(PrintStream logger) throws IOException, InterruptedException {
         logger.println("Getting connection to the virtual datacenter");
         if (virtualMachine == null) {
             logger.println("No connection ready to the Hypervisor... reconnecting...");
-            buildVirtualMachine();
         }
+        LaunchPipeline launch;
         try {
-            VirtualMachine domain = virtualMachine.getHypervisor().getDomain(virtualMachine.getName());
-            logger.println("Looking for the virtual machine on Hypervisor...");
-
-            if (domain != null) {
-                logger.println("Virtual Machine Found: "+domain.getGuest().getGuestState());
-                ensureIsPowerOn(logger, domain);
-                logger.println("Finished startup procedure... Connecting slave client");
-            } else {
-                logger.println("Error! Could not find virtual machine on the hypervisor");
-                throw new IOException("VM not found!");
-            }
-        } catch (IOException e) {
+            launch = new LaunchPipeline(getHypervisor(), virtualMachineName, null, null, new StreamTaskListener(logger),
+                    readinessPort);
+            launch.start();
+        } catch (RuntimeException e) {
             e.printStackTrace(logger);
-            throw e;
-        } catch (Exception t) {
-            t.printStackTrace(logger);
-            throw new IOException(t.getMessage(), t);
+            throw new IOException(e.getMessage(), e);
         }
+        launch.await();
     }
 
+    /**
+     * @deprecated starts the virtual machine with {@link #launchVM}, the
+     *             domain is ignored as it is looked up again by name
+     */
+    @Deprecated
     public void ensureIsPowerOn(PrintStream logger, VirtualMachine domain) throws Exception {
-        if (domain.getRuntime().getPowerState() == VirtualMachinePowerState.poweredOff) {
-            logger.println("Starting virtual machine");
-            Task task = domain.powerOnVM_Task(null);
-            while(task.getTaskInfo().getState() == TaskInfoState.running) {
-                Thread.sleep(1000);
-                logger.println("Waiting for VM startup "+task.getTaskInfo().getProgress());
-            }
-            if (domain.getRuntime().getPowerState() != VirtualMachinePowerState.poweredOn) {
-                throw new RuntimeException("Could not start VM "+domain.getName()); 
-            }
-            long maxWait = (60 * 1000) * 5;
-            long starttime = System.currentTimeMillis();
-            while (domain.getGuest().getToolsStatus() == VirtualMachineToolsStatus.toolsNotRunning) {
-                Thread.sleep(1000);
-                long used = System.currentTimeMillis() - starttime;
-                logger.println("Waiting for OS startup waited:"+(used/1000));
-                if (used > maxWait) {
-                    throw new RuntimeException("Timeout waiting for vmware tools to start on "+domain.getName());
-                }
-            }
-            logger.println("VM has started");
-        } else {
-            logger.println("Virtual machine is already running. No startup procedure required.");
+        launchVM(logger);
+    }
+
+    private static <T> T await(Future<T> future, long timeout, String message) throws Exception {
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new RuntimeException(message);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(message + ": " + e.getCause().getMessage(), e.getCause());
         }
     }
 
+    /**
+     * The configured hypervisor. The virtual machine itself is looked up by
+     * the launch and stop paths, which wait for the inventory to be loaded
+     * instead of relying on the name index that is empty until then.
+     */
+    private Hypervisor getHypervisor() {
+        Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+        if (hypervisor == null) {
+            throw new IllegalStateException("No hypervisor "+hypervisorDescription+" configured for "+virtualMachineName);
+        }
+        return hypervisor;
+    }
+
     @Override
     public void afterDisconnect(SlaveComputer slaveComputer, TaskListener taskListener) {
         PrintStream logger = taskListener.getLogger();
         logger.println("Running disconnect procedure...");
         delegate.afterDisconnect(slaveComputer, taskListener);
-        logger.println("Shutting down Virtual Machine...");
+        VimCalls.Scope calls = VimCalls.open("stop", virtualMachineName);
         try {
-            powerOffVM(logger);
+            stopVM(logger);
         } catch (Throwable t) {
             taskListener.fatalError(t.getMessage(), t);
+        } finally {
+            calls.close();
+        }
+    }
+
+    /**
+     * Stops the virtual machine with the configured {@link StopStrategy} and
+     * logs how long it took. The same stop of the virtual machine already
+     * running is waited for instead.
+     */
+    public void stopVM(final PrintStream logger) throws Exception {
+        getHypervisor().stopVirtualMachine(virtualMachineName, getStopStrategy(), logger, new Callable<Void>() {
+            public Void call() throws Exception {
+                doStopVM(logger);
+                return null;
+            }
+        });
+    }
+
+    private void doStopVM(PrintStream logger) throws Exception {
+        StopStrategy strategy = getStopStrategy();
+        if (strategy == StopStrategy.SHUTDOWN) {
+            logger.println("Shutting down Virtual Machine...");
+            doPowerOffVM(logger);
+            return;
+        }
+        Hypervisor hypervisor = getHypervisor();
+        final VirtualMachineInfo info = hypervisor.getVirtualMachineInfo(virtualMachineName, true);
+        if (info == null) {
+            logger.println("Error! Could not find virtual machine on the hypervisor");
+            return;
+        }
+        VirtualMachineWatcher watcher = hypervisor.getWatcher();
+        long starttime = System.currentTimeMillis();
+        if (strategy == StopStrategy.SUSPEND) {
+            if (!info.isPoweredOn()) {
+                logger.println("Virtual machine is not running. No suspend required.");
+                return;
+            }
+            logger.println("Suspending virtual machine");
+            Task task = hypervisor.execute(info, new Hypervisor.DomainCall<Task>() {
+                public Task call(VirtualMachine domain) throws Exception {
+                    return VimCalls.suspend(domain);
+                }
+            });
+            await(watcher.awaitTask(task), POWER_TIMEOUT, "Could not suspend VM "+info.getName());
+        } else {
+            logger.println("Reverting virtual machine to snapshot "+(snapshotName != null ? snapshotName : "(current)"));
+            Task task = hypervisor.execute(info, new Hypervisor.DomainCall<Task>() {
+                public Task call(VirtualMachine domain) throws Exception {
+                    ManagedObjectReference snapshot = VirtualMachineCloner.findSnapshot(domain, snapshotName);
+                    if (snapshot == null) {
+                        throw new VMWareException("Virtual machine "+info.getName()+" has no snapshot "
+                                +(snapshotName != null ? snapshotName : "")+" to revert to", null);
+                    }
+                    return VimCalls.revertToSnapshot(domain, snapshot);
+                }
+            });
+            await(watcher.awaitTask(task), POWER_TIMEOUT, "Could not revert VM "+info.getName());
         }
+        long duration = System.currentTimeMillis() - starttime;
+        logger.println(strategy.getDisplayName()+" of "+info.getName()+" took "+duration+" ms");
+        LaunchMetrics.record(LaunchMetrics.Phase.STOP, hypervisorDescription, virtualMachineName, duration);
     }
 
-    public void powerOffVM(PrintStream logger) throws Exception {
+    /**
+     * Powers off the virtual machine, or waits for a power off of it already running.
+     */
+    public void powerOffVM(final PrintStream logger) throws Exception {
+        getHypervisor().stopVirtualMachine(virtualMachineName, StopStrategy.SHUTDOWN, logger, new Callable<Void>() {
+            public Void call() throws Exception {
+                doPowerOffVM(logger);
+                return null;
+            }
+        });
+    }
+
+    private void doPowerOffVM(PrintStream logger) throws Exception {
             logger.println("Looking for the virtual machine on Hypervisor...");
-            VirtualMachine domain = virtualMachine.getHypervisor().getDomain(virtualMachine.getName());
-            if (domain != null) {
-                ensureIsPowerOff(logger, domain);
+            Hypervisor hypervisor = getHypervisor();
+            VirtualMachineInfo info = hypervisor.getVirtualMachineInfo(virtualMachineName, true);
+            if (info != null) {
+                ensureIsPowerOff(logger, info);
             } else {
                 logger.println("Error! Could not find virtual machine on the hypervisor");
             }
@@ -187,24 +324,43 @@ public class VirtualMachineLauncher extends ComputerLauncher {
     }
 
     public void ensureIsPowerOff(PrintStream logger, VirtualMachine domain) throws Exception {
+        ensureIsPowerOff(logger, VirtualMachineInventory.retrieve(domain));
+    }
+
+    /**
+     * Shuts the virtual machine down unless the given, freshly fetched, state
+     * says it is not running. Calls on the virtual machine are made on a
+     * pooled session and only the task is waited for outside of it.
+     */
+    public void ensureIsPowerOff(PrintStream logger, VirtualMachineInfo info) throws Exception {
+        Hypervisor hypervisor = getHypervisor();
         logger.println("Virtual Machine Found");
-        if (domain.getRuntime().getPowerState() == VirtualMachinePowerState.poweredOn) {
-            logger.println("Shutting down virtual machine: "+domain.getGuest().getAppHeartbeatStatus());
-            if (domain.getGuest() != null && (domain.getGuest().getToolsStatus() == VirtualMachineToolsStatus.toolsOk || 
-                    domain.getGuest().getToolsStatus() == VirtualMachineToolsStatus.toolsOld)) {
-                domain.shutdownGuest();
+        if (info.isPoweredOn()) {
+            logger.println("Shutting down virtual machine: "+info.getGuestState());
+            if (info.isToolsRunning()) {
+                hypervisor.execute(info, new Hypervisor.DomainCall<Void>() {
+                    public Void call(VirtualMachine domain) throws Exception {
+                        VimCalls.shutdownGuest(domain);
+                        return null;
+                    }
+                });
                 logger.println("Soft shutdown, vmware guest tools works.");
                 
             } else {
-                Task task = domain.powerOffVM_Task();
+                VirtualMachineWatcher watcher = hypervisor.getWatcher();
+                long starttime = System.currentTimeMillis();
+                Task task = hypervisor.execute(info, new Hypervisor.DomainCall<Task>() {
+                    public Task call(VirtualMachine domain) throws Exception {
+                        return VimCalls.powerOff(domain);
+                    }
+                });
                 logger.println("Hard shutdown, no vmware guest tools installed.");
-                while(task.getTaskInfo().getState() == TaskInfoState.running) {
-                    Thread.sleep(1000);
-                    logger.println("Waiting for startup "+task.getTaskInfo().getProgress());
-                }
-                if (domain.getRuntime().getPowerState() != VirtualMachinePowerState.poweredOff) {
-                    throw new RuntimeException("Could not shutdown VM "+domain.getName()); 
-                }
+                await(watcher.awaitTask(task), POWER_TIMEOUT, "Could not shutdown VM "+info.getName());
+                await(watcher.await(info.getMoRef(), VirtualMachineWatcher.POWERED_OFF), POWER_TIMEOUT,
+                        "Could not shutdown VM "+info.getName());
+                long duration = System.currentTimeMillis() - starttime;
+                logger.println("Power off of "+info.getName()+" took "+duration+" ms");
+                LaunchMetrics.record(LaunchMetrics.Phase.STOP, hypervisorDescription, info.getName(), duration);
             }
         } else {
             logger.println("Virtual machine is already suspended. No shutdown procedure required.");
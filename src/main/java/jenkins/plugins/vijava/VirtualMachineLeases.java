@@ -0,0 +1,389 @@
+package jenkins.plugins.vijava;
+
+import hudson.model.Hudson;
+import hudson.util.LogTaskListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counts the builds using a virtual machine through {@link VMWareBuildWrapper},
+ * so the first build to finish does not stop it under the others.
+ *
+ * A virtual machine is stopped once the last build holding it has finished
+ * and at least one of them asked for the stop. With a grace period the stop
+ * is delayed, and a build starting in the meantime cancels it and gets the
+ * virtual machine already running.
+ *
+ * Leases are kept in <tt>JENKINS_HOME/vmware-slave/leases.ser</tt>. Builds
+ * do not survive a restart, so leases read back at startup have lost their
+ * holders; their virtual machines are stopped once the grace period has
+ * passed again, or when the delayed stop was due, and not before
+ * {@link #RESTORE_DELAY} so the clouds are configured by then.
+ *
+ * @author jbh
+ */
+final class VirtualMachineLeases {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineLeases.class.getName());
+
+    private static final int FORMAT = 1;
+
+    /**
+     * Shortest time after startup before stopping a virtual machine whose
+     * lease was read back.
+     */
+    static final long RESTORE_DELAY = 60 * 1000;
+
+    private static VirtualMachineLeases instance;
+
+    /**
+     * Stops a virtual machine whose last lease ended.
+     */
+    interface Stopper {
+        void stop(String hypervisorDescription, String virtualMachineName, PrintStream logger) throws Exception;
+    }
+
+    private final File file;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final Stopper stopper;
+    private final Map<String, Lease> leases = new LinkedHashMap<String, Lease>();
+
+    /**
+     * @param file where leases are kept, or null to keep them in memory only
+     * @param executor runs delayed stops, which block until the virtual machine is off
+     */
+    VirtualMachineLeases(File file, ScheduledExecutorService scheduler, Executor executor, Stopper stopper) {
+        this.file = file;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.stopper = stopper;
+    }
+
+    /**
+     * The leases of this Jenkins, read back from the Jenkins home on first
+     * use.
+     */
+    static synchronized VirtualMachineLeases get() {
+        if (instance == null) {
+            Hudson hudson = Hudson.getInstance();
+            File file = hudson != null ? new File(new File(hudson.getRootDir(), "vmware-slave"), "leases.ser") : null;
+            ExecutorService stops = Executors.newCachedThreadPool(new NamedThreadFactory("vSphere lease stop"));
+            instance = new VirtualMachineLeases(file,
+                    Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("vSphere lease timer")), stops,
+                    new Stopper() {
+                        public void stop(String hypervisorDescription, String virtualMachineName, PrintStream logger)
+                                throws Exception {
+                            new VirtualMachineLauncher(null, hypervisorDescription, virtualMachineName).powerOffVM(logger);
+                        }
+                    });
+            instance.restore(RESTORE_DELAY);
+        }
+        return instance;
+    }
+
+    /**
+     * Takes a lease on the virtual machine for the holder, cancelling a
+     * delayed stop of it and waiting for a stop already running. Returns true
+     * if a delayed stop was cancelled, so the virtual machine is still running.
+     *
+     * @param stop whether the virtual machine is to be stopped when the last lease ends
+     * @param gracePeriod milliseconds to keep the virtual machine running after the last lease ends
+     */
+    synchronized boolean acquire(String hypervisorDescription, String virtualMachineName, String holder, boolean stop,
+            long gracePeriod) throws InterruptedException {
+        String key = key(hypervisorDescription, virtualMachineName);
+        Lease lease = leases.get(key);
+        while (lease != null && lease.stopping) {
+            wait();
+            lease = leases.get(key);
+        }
+        if (lease == null) {
+            lease = new Lease(hypervisorDescription, virtualMachineName);
+            leases.put(key, lease);
+        }
+        boolean cancelled = lease.cancelStop();
+        lease.stop = lease.holders.isEmpty() ? stop : lease.stop || stop;
+        lease.holders.add(holder);
+        lease.gracePeriod = gracePeriod;
+        save();
+        return cancelled;
+    }
+
+    /**
+     * Ends the lease of the holder. If it was the last one and a stop was
+     * asked for, the virtual machine is stopped right away, logging to the
+     * logger and throwing if that fails, or after the grace period.
+     */
+    void release(String hypervisorDescription, String virtualMachineName, String holder, PrintStream logger)
+            throws Exception {
+        Lease lease;
+        synchronized (this) {
+            lease = leases.get(key(hypervisorDescription, virtualMachineName));
+            if (lease == null || !lease.holders.remove(holder)) {
+                return;
+            }
+            if (!lease.holders.isEmpty()) {
+                logger.println(virtualMachineName + " is still used by " + lease.holders.size()
+                        + " other build(s), leaving it running");
+                save();
+                return;
+            }
+            if (!lease.stop) {
+                leases.remove(lease.getKey());
+                save();
+                return;
+            }
+            if (lease.gracePeriod > 0) {
+                logger.println(virtualMachineName + " will be stopped in " + lease.gracePeriod / 1000
+                        + "s unless another build uses it");
+                scheduleStop(lease, System.currentTimeMillis() + lease.gracePeriod);
+                save();
+                return;
+            }
+            lease.stopping = true;
+        }
+        stop(lease, logger);
+    }
+
+    /**
+     * Number of builds holding a lease on the virtual machine.
+     */
+    synchronized int getHolderCount(String hypervisorDescription, String virtualMachineName) {
+        Lease lease = leases.get(key(hypervisorDescription, virtualMachineName));
+        return lease != null ? lease.holders.size() : 0;
+    }
+
+    /**
+     * True while a delayed stop of the virtual machine is waiting for its
+     * grace period to pass.
+     */
+    synchronized boolean isStopPending(String hypervisorDescription, String virtualMachineName) {
+        Lease lease = leases.get(key(hypervisorDescription, virtualMachineName));
+        return lease != null && lease.stopAt > 0;
+    }
+
+    private void stop(Lease lease, PrintStream logger) throws Exception {
+        try {
+            stopper.stop(lease.hypervisorDescription, lease.virtualMachineName, logger);
+        } finally {
+            synchronized (this) {
+                lease.stopping = false;
+                lease.stopAt = 0;
+                if (lease.holders.isEmpty()) {
+                    leases.remove(lease.getKey());
+                }
+                save();
+                notifyAll();
+            }
+        }
+    }
+
+    private void scheduleStop(final Lease lease, final long at) {
+        lease.stopAt = at;
+        try {
+            lease.pendingStop = scheduler.schedule(new Runnable() {
+                public void run() {
+                    startDelayedStop(lease, at);
+                }
+            }, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the lease is stopped after the restart
+        }
+    }
+
+    private void startDelayedStop(final Lease lease, long at) {
+        synchronized (this) {
+            if (lease.stopAt != at || !lease.holders.isEmpty() || leases.get(lease.getKey()) != lease) {
+                return;
+            }
+            lease.pendingStop = null;
+            lease.stopping = true;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        stop(lease, new LogTaskListener(LOGGER, Level.INFO).getLogger());
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to stop " + lease.virtualMachineName + " on "
+                                + lease.hypervisorDescription + " after its last build", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                lease.stopping = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the leases back and schedules the stops still due, none earlier
+     * than <tt>minDelay</tt> from now.
+     */
+    synchronized void restore(long minDelay) {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        List<Lease> restored;
+        try {
+            restored = load();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable virtual machine leases in " + file, e);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Lease lease : restored) {
+            if (!lease.stop) {
+                continue;
+            }
+            long at = lease.stopAt;
+            if (!lease.holders.isEmpty()) {
+                LOGGER.log(Level.INFO, "Builds {0} using {1} did not survive the restart", new Object[] {
+                        lease.holders, lease.virtualMachineName });
+                lease.holders.clear();
+                at = now + lease.gracePeriod;
+            }
+            leases.put(lease.getKey(), lease);
+            scheduleStop(lease, Math.max(at, now + minDelay));
+        }
+        save();
+    }
+
+    private List<Lease> load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            List<Lease> restored = new ArrayList<Lease>();
+            if (in.readInt() != FORMAT) {
+                return restored;
+            }
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                Lease lease = new Lease(in.readUTF(), in.readUTF());
+                lease.stop = in.readBoolean();
+                lease.gracePeriod = in.readLong();
+                lease.stopAt = in.readLong();
+                int holders = in.readInt();
+                for (int j = 0; j < holders; j++) {
+                    lease.holders.add(in.readUTF());
+                }
+                restored.add(lease);
+            }
+            return restored;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the leases next to the file and renames it, as the
+     * {@link InventoryStore} does. Failures are logged, the leases in memory
+     * stay valid.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Failed to create " + directory);
+            }
+            File temp = new File(directory, file.getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FORMAT);
+                out.writeInt(leases.size());
+                for (Lease lease : leases.values()) {
+                    out.writeUTF(lease.hypervisorDescription);
+                    out.writeUTF(lease.virtualMachineName);
+                    out.writeBoolean(lease.stop);
+                    out.writeLong(lease.gracePeriod);
+                    out.writeLong(lease.stopAt);
+                    out.writeInt(lease.holders.size());
+                    for (String holder : lease.holders) {
+                        out.writeUTF(holder);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                // renaming over an existing file fails on Windows
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to replace " + file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save virtual machine leases to " + file, e);
+        }
+    }
+
+    private static String key(String hypervisorDescription, String virtualMachineName) {
+        return hypervisorDescription + "/" + virtualMachineName;
+    }
+
+    /**
+     * The builds holding one virtual machine.
+     */
+    private static final class Lease {
+        private final String hypervisorDescription;
+        private final String virtualMachineName;
+        private final Set<String> holders = new LinkedHashSet<String>();
+        private boolean stop;
+        private long gracePeriod;
+        private long stopAt;
+        private boolean stopping;
+        private ScheduledFuture<?> pendingStop;
+
+        Lease(String hypervisorDescription, String virtualMachineName) {
+            this.hypervisorDescription = hypervisorDescription;
+            this.virtualMachineName = virtualMachineName;
+        }
+
+        String getKey() {
+            return key(hypervisorDescription, virtualMachineName);
+        }
+
+        /**
+         * Cancels a delayed stop, returning true if there was one.
+         */
+        boolean cancelStop() {
+            if (stopAt == 0) {
+                return false;
+            }
+            if (pendingStop != null) {
+                pendingStop.cancel(false);
+                pendingStop = null;
+            }
+            stopAt = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package jenkins.plugins.vijava;
+
+import hudson.Util;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerLauncher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Existing virtual machines a {@link Hypervisor} starts on demand when jobs
+ * for the pool's labels are queued. Every member becomes a
+ * {@link VirtualMachineSlave} named after the virtual machine while it is in
+ * use, and is powered off and released again once it has been idle for
+ * <tt>idleMinutes</tt>.
+ *
+ * When a template is set the pool creates its members instead, as linked
+ * clones of the template's snapshot named <tt>&lt;template&gt;-jenkins-N</tt>,
+ * up to <tt>maxClones</tt> at a time. Clones are destroyed after use unless
+ * <tt>recycleClones</tt> is set, in which case they are kept powered off and
+ * reused by the next build.
+ *
+ * With <tt>maxWarm</tt> set, a {@link WarmPool} keeps between
+ * <tt>minWarm</tt> and <tt>maxWarm</tt> idle members powered on ahead of
+ * demand.
+ *
+ * @author jbh
+ */
+public class VirtualMachinePool {
+
+    private static final String CLONE_SUFFIX = "-jenkins-";
+
+    private final String labelString;
+    private final String virtualMachineNames;
+    private final String remoteFS;
+    private final int numExecutors;
+    private final int idleMinutes;
+    private final ComputerLauncher launcher;
+    private final String templateName;
+    private final String snapshotName;
+    private final int maxClones;
+    private final boolean recycleClones;
+    private final int minWarm;
+    private final int maxWarm;
+    private final int warmIdleMinutes;
+    private transient Set<LabelAtom> labelSet;
+
+    @DataBoundConstructor
+    public VirtualMachinePool(String labelString, String virtualMachineNames, String remoteFS, String numExecutors,
+            String idleMinutes, ComputerLauncher launcher, String templateName, String snapshotName, String maxClones,
+            boolean recycleClones, String minWarm, String maxWarm, String warmIdleMinutes) {
+        this.labelString = Util.fixNull(labelString).trim();
+        this.virtualMachineNames = Util.fixNull(virtualMachineNames).trim();
+        this.remoteFS = remoteFS;
+        this.numExecutors = Util.tryParseNumber(numExecutors, 1).intValue();
+        this.idleMinutes = Util.tryParseNumber(idleMinutes, 10).intValue();
+        this.launcher = launcher;
+        this.templateName = Util.fixEmptyAndTrim(templateName);
+        this.snapshotName = Util.fixEmptyAndTrim(snapshotName);
+        this.maxClones = Util.tryParseNumber(maxClones, 1).intValue();
+        this.recycleClones = recycleClones;
+        this.minWarm = Util.tryParseNumber(minWarm, 0).intValue();
+        this.maxWarm = Math.max(this.minWarm, Util.tryParseNumber(maxWarm, 0).intValue());
+        this.warmIdleMinutes = Util.tryParseNumber(warmIdleMinutes, 30).intValue();
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getVirtualMachineNames() {
+        return virtualMachineNames;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public ComputerLauncher getLauncher() {
+        return launcher;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    public int getMaxClones() {
+        return maxClones;
+    }
+
+    public boolean isRecycleClones() {
+        return recycleClones;
+    }
+
+    /**
+     * Number of idle members kept powered on even when no jobs are expected.
+     */
+    public int getMinWarm() {
+        return minWarm;
+    }
+
+    /**
+     * Upper bound of idle members kept powered on, 0 to disable the warm pool.
+     */
+    public int getMaxWarm() {
+        return maxWarm;
+    }
+
+    /**
+     * Minutes a surplus warm member stays powered on before it is shut down.
+     */
+    public int getWarmIdleMinutes() {
+        return warmIdleMinutes;
+    }
+
+    /**
+     * True if members are linked clones of a template rather than listed
+     * virtual machines.
+     */
+    public boolean isClonePool() {
+        return templateName != null;
+    }
+
+    /**
+     * Name of the <tt>index</tt>th clone of the template.
+     */
+    public String getCloneName(int index) {
+        return templateName + CLONE_SUFFIX + index;
+    }
+
+    /**
+     * Names of the listed pool members in configuration order, or the names of
+     * the existing clones for a clone pool.
+     */
+    public List<String> getMemberNames(VirtualMachineInventory inventory) {
+        if (!isClonePool()) {
+            return new ArrayList<String>(Arrays.asList(Util.tokenize(virtualMachineNames, " ,\t\r\n")));
+        }
+        List<String> clones = new ArrayList<String>();
+        for (VirtualMachineInfo info : inventory.getAll()) {
+            if (isMember(info.getName())) {
+                clones.add(info.getName());
+            }
+        }
+        return clones;
+    }
+
+    public boolean isMember(String virtualMachineName) {
+        if (isClonePool()) {
+            String prefix = templateName + CLONE_SUFFIX;
+            return virtualMachineName.startsWith(prefix) && virtualMachineName.length() > prefix.length()
+                    && Util.tryParseNumber(virtualMachineName.substring(prefix.length()), null) != null;
+        }
+        return Arrays.asList(Util.tokenize(virtualMachineNames, " ,\t\r\n")).contains(virtualMachineName);
+    }
+
+    /**
+     * True if a slave of this pool can run jobs tied to the given label. Jobs
+     * without a label are not provisioned for, pool slaves only take jobs
+     * explicitly tied to them.
+     */
+    public boolean matches(Label label) {
+        if (label == null || labelString.length() == 0) {
+            return false;
+        }
+        if (labelSet == null) {
+            labelSet = Label.parse(labelString);
+        }
+        return label.matches(labelSet);
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualMachinePool{labels='" + labelString + "', "
+                + (isClonePool() ? "template='" + templateName + "'}" : "members='" + virtualMachineNames + "'}");
+    }
+}
@@ -0,0 +1,129 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps a virtual machine slave connected while it has work and disconnects
+ * it once it has been idle for <tt>idleMinutes</tt>. Disconnecting stops the
+ * virtual machine with the slave's {@link StopStrategy}, so it no longer uses
+ * CPU and memory on the host. The slave is connected again, which starts the
+ * virtual machine, as soon as a queued job could run on it.
+ *
+ * To keep virtual machines from flapping, a slave is never disconnected
+ * before it has been online for <tt>minOnlineMinutes</tt>, nor while jobs for
+ * it are waiting in the queue.
+ *
+ * Slaves provisioned from a {@link VirtualMachinePool} are removed instead of
+ * disconnected, which returns the virtual machine to the pool, or destroys it
+ * if it is a clone.
+ *
+ * @author jbh
+ */
+public class VirtualMachineRetentionStrategy extends RetentionStrategy<SlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineRetentionStrategy.class.getName());
+    private final int idleMinutes;
+    private final int minOnlineMinutes;
+    private final boolean removeWhenIdle;
+
+    @DataBoundConstructor
+    public VirtualMachineRetentionStrategy(int idleMinutes, int minOnlineMinutes) {
+        this(idleMinutes, minOnlineMinutes, false);
+    }
+
+    VirtualMachineRetentionStrategy(int idleMinutes, int minOnlineMinutes, boolean removeWhenIdle) {
+        this.idleMinutes = idleMinutes;
+        this.minOnlineMinutes = minOnlineMinutes;
+        this.removeWhenIdle = removeWhenIdle;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public int getMinOnlineMinutes() {
+        return minOnlineMinutes;
+    }
+
+    @Override
+    public synchronized long check(SlaveComputer c) {
+        Node node = c.getNode();
+        if (node == null || c.isConnecting()) {
+            return 1;
+        }
+        if (c.isOffline() && !removeWhenIdle) {
+            if (!c.isTemporarilyOffline() && hasQueuedWork(node)) {
+                LOGGER.log(Level.INFO, "Jobs waiting for {0}, starting it", c.getName());
+                c.connect(false);
+            }
+            return 1;
+        }
+        if (!c.isIdle() || (c.isOnline() && hasQueuedWork(node))) {
+            return 1;
+        }
+        long now = System.currentTimeMillis();
+        long idleMillis = now - c.getIdleStartMilliseconds();
+        if (idleMillis <= idleMinutes * 60 * 1000L
+                || (c.isOnline() && now - c.getConnectTime() < minOnlineMinutes * 60 * 1000L)) {
+            return 1;
+        }
+        if (removeWhenIdle) {
+            remove(c, node, idleMillis);
+        } else {
+            LOGGER.log(Level.INFO, "Disconnecting {0}, idle for {1} minutes", new Object[] { c.getName(), idleMillis / 60000 });
+            c.disconnect();
+        }
+        return 1;
+    }
+
+    private void remove(SlaveComputer c, Node node, long idleMillis) {
+        LOGGER.log(Level.INFO, "Removing {0}, idle for {1} minutes", new Object[] { c.getName(), idleMillis / 60000 });
+        Hypervisor hypervisor = c instanceof VirtualMachineSlaveComputer ? ((VirtualMachineSlaveComputer) c).getHypervisor() : null;
+        try {
+            Hudson.getInstance().removeNode(node);
+            if (hypervisor != null && node instanceof VirtualMachineSlave) {
+                hypervisor.releaseMember(((VirtualMachineSlave) node).getVirtualMachineName());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to remove idle slave " + c.getName(), e);
+        }
+    }
+
+    /**
+     * True if a job in the queue could run on the node.
+     */
+    private static boolean hasQueuedWork(Node node) {
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+            Label label = item.getAssignedLabel();
+            if (label == null ? node.getMode() == Node.Mode.NORMAL : label.contains(node)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void start(SlaveComputer c) {
+        c.connect(false);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        public String getDisplayName() {
+            return "Stop the virtual machine when idle and start it on demand";
+        }
+    }
+}
@@ -19,16 +19,18 @@
  */
 package jenkins.plugins.vijava;
 
+import hudson.model.Computer;
 import hudson.model.Slave;
 import hudson.model.Descriptor;
-import hudson.model.Hudson;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.RetentionStrategy;
 import hudson.slaves.NodeProperty;
-import hudson.slaves.Cloud;
 import hudson.Util;
 import hudson.Extension;
 import hudson.Functions;
+import hudson.model.AutoCompletionCandidates;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import java.util.List;
 import java.util.ArrayList;
@@ -36,23 +38,33 @@ import java.util.logging.Logger;
 import java.io.IOException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 
 public class VirtualMachineSlave extends Slave {
 
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlave.class.getName());
     private String hypervisorDescription;
     private String virtualMachineName;
+    private String stopStrategy;
+    private String snapshotName;
+    private String readinessPort;
 
     @DataBoundConstructor
     public VirtualMachineSlave(String name, String nodeDescription, String remoteFS, String numExecutors, Mode mode, String labelString,
             VirtualMachineLauncher launcher, ComputerLauncher delegateLauncher, RetentionStrategy retentionStrategy,
-            List<? extends NodeProperty<?>> nodeProperties, String hypervisorDescription, String virtualMachineName)
+            List<? extends NodeProperty<?>> nodeProperties, String hypervisorDescription, String virtualMachineName,
+            String stopStrategy, String snapshotName, String readinessPort)
             throws Descriptor.FormException, IOException {
         super(name, nodeDescription, remoteFS, Util.tryParseNumber(numExecutors, 1).intValue(), mode, labelString,
-                launcher == null ? new VirtualMachineLauncher(delegateLauncher, hypervisorDescription, virtualMachineName) : launcher,
+                launcher == null ? new VirtualMachineLauncher(delegateLauncher, hypervisorDescription, virtualMachineName,
+                        StopStrategy.parse(stopStrategy), Util.fixEmptyAndTrim(snapshotName),
+                        Util.tryParseNumber(readinessPort, 0).intValue()) : launcher,
                 retentionStrategy, nodeProperties);
         this.hypervisorDescription = hypervisorDescription;
         this.virtualMachineName = virtualMachineName;
+        this.stopStrategy = stopStrategy;
+        this.snapshotName = snapshotName;
+        this.readinessPort = readinessPort;
     }
 
     public String getHypervisorDescription() {
@@ -63,15 +75,37 @@ public class VirtualMachineSlave extends Slave {
         return virtualMachineName;
     }
 
+    public String getStopStrategy() {
+        return StopStrategy.parse(stopStrategy).name();
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    public String getReadinessPort() {
+        return readinessPort;
+    }
+
     public ComputerLauncher getDelegateLauncher() {
         return ((VirtualMachineLauncher) getLauncher()).getDelegate();
     }
 
+    @Override
+    public Computer createComputer() {
+        return new VirtualMachineSlaveComputer(this);
+    }
+
     public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
 
     @Extension
     public static final class DescriptorImpl extends SlaveDescriptor {
 
+        /**
+         * Most names suggested while typing a virtual machine name.
+         */
+        private static final int MAX_CANDIDATES = 20;
+
         private String hypervisorDescription;
         private String virtualMachineName;
 
@@ -91,26 +125,33 @@ public class VirtualMachineSlave extends Slave {
         public List<JenkinsVirtualMachine> getDefinedVirtualMachines(String hypervisorDescription) {
             List<JenkinsVirtualMachine> virtualMachinesList = new ArrayList<JenkinsVirtualMachine>();
             if (hypervisorDescription != null && !hypervisorDescription.equals("")) {
-                Hypervisor hypervisor = null;
-                for (Cloud cloud : Hudson.getInstance().clouds) {
-                    if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(hypervisorDescription)) {
-                        hypervisor = (Hypervisor) cloud;
-                        break;
-                    }
-                }
-                virtualMachinesList.addAll(hypervisor.getVirtualMachines());
+                virtualMachinesList.addAll(HypervisorRegistry.getVirtualMachines(hypervisorDescription));
             }
             return virtualMachinesList;
         }
 
         public List<Hypervisor> getHypervisors() {
-            List<Hypervisor> result = new ArrayList<Hypervisor>();
-            for (Cloud cloud : Hudson.getInstance().clouds) {
-                if (cloud instanceof Hypervisor) {
-                    result.add((Hypervisor) cloud);
-                }
+            return HypervisorRegistry.getAll();
+        }
+
+        public AutoCompletionCandidates doAutoCompleteVirtualMachineName(@QueryParameter String value) {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            for (String name : HypervisorRegistry.completeVirtualMachineNames(value, MAX_CANDIDATES)) {
+                candidates.add(name);
             }
-            return result;
+            return candidates;
+        }
+
+        public FormValidation doCheckVirtualMachineName(@QueryParameter String value,
+                @QueryParameter String hypervisorDescription) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Name of the virtual machine is required");
+            }
+            Hypervisor hypervisor = HypervisorRegistry.get(hypervisorDescription);
+            if (hypervisor != null && hypervisor.isInventoryLoaded() && hypervisor.getVirtualMachine(value.trim()) == null) {
+                return FormValidation.warning("No virtual machine " + value.trim() + " on " + hypervisorDescription);
+            }
+            return FormValidation.ok();
         }
 
         public List<Descriptor<ComputerLauncher>> getComputerLauncherDescriptors() {
@@ -123,6 +164,14 @@ public class VirtualMachineSlave extends Slave {
             return result;
         }
 
+        public ListBoxModel doFillStopStrategyItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (StopStrategy strategy : StopStrategy.values()) {
+                items.add(strategy.getDisplayName(), strategy.name());
+            }
+            return items;
+        }
+
         public String getHypervisorDescription() {
             return hypervisorDescription;
         }
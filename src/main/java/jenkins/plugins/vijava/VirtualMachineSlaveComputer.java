@@ -21,18 +21,24 @@
 package jenkins.plugins.vijava;
 
 import hudson.model.Slave;
+import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
-import com.vmware.vim25.mo.ServiceInstance;
-
 public class VirtualMachineSlaveComputer extends SlaveComputer {
 
-    /**
-     * Cached connection to the virtaul datacenter. Lazily fetched.
-     */
-    private volatile ServiceInstance hypervisorConnection;
-
     public VirtualMachineSlaveComputer(Slave slave) {
         super(slave);
     }
+
+    /**
+     * Hypervisor running this computer. Connections to the virtual datacenter are
+     * borrowed from its connection pool instead of being cached per computer.
+     */
+    public Hypervisor getHypervisor() {
+        ComputerLauncher launcher = getLauncher();
+        if (launcher instanceof VirtualMachineLauncher) {
+            return HypervisorRegistry.get(((VirtualMachineLauncher) launcher).getHypervisorDescription());
+        }
+        return null;
+    }
 }
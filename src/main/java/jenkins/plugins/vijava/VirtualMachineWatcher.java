@@ -0,0 +1,312 @@
+package jenkins.plugins.vijava;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachineToolsStatus;
+import com.vmware.vim25.mo.Task;
+
+/**
+ * Completes futures for callers waiting on power operations.
+ *
+ * Instead of polling each task and virtual machine every second, waiters
+ * register here and are resolved from the property collector updates the
+ * hypervisor's {@link InventoryCache} already receives. Tasks are added to the
+ * same property collector session with a filter on their state.
+ *
+ * Futures are completed on a separate executor, in the order of the updates,
+ * and task filters are removed on another one, so neither waiter code nor a
+ * slow vCenter holds up the thread applying the updates. While the cache is
+ * not tracking changes, for instance while it reconnects, waits on a task or
+ * a virtual machine fall back to reading its state directly until they are
+ * over or tracking has resumed.
+ *
+ * @author jbh
+ */
+class VirtualMachineWatcher implements InventoryCache.Listener {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineWatcher.class.getName());
+
+    /**
+     * Milliseconds between direct reads while the cache is not tracking.
+     */
+    static final long POLL_INTERVAL = 5 * 1000;
+
+    static final String TASK = "Task";
+    static final String TASK_STATE = "info.state";
+    static final String TASK_ERROR = "info.error";
+    private static final String[] TASK_PROPERTIES = { TASK_STATE, TASK_ERROR };
+
+    /**
+     * State of a virtual machine a caller is waiting for.
+     */
+    interface Condition {
+        boolean isSatisfied(VirtualMachineInfo info);
+    }
+
+    static final Condition POWERED_ON = new Condition() {
+        public boolean isSatisfied(VirtualMachineInfo info) {
+            return info.isPoweredOn();
+        }
+    };
+
+    static final Condition POWERED_OFF = new Condition() {
+        public boolean isSatisfied(VirtualMachineInfo info) {
+            return info.isPoweredOff();
+        }
+    };
+
+    static final Condition TOOLS_STARTED = new Condition() {
+        public boolean isSatisfied(VirtualMachineInfo info) {
+            return info.isPoweredOn() && info.getToolsStatus() != VirtualMachineToolsStatus.toolsNotRunning;
+        }
+    };
+
+    static final Condition GUEST_NETWORK = new Condition() {
+        public boolean isSatisfied(VirtualMachineInfo info) {
+            return info.isPoweredOn() && info.getIpAddress() != null;
+        }
+    };
+
+    static final Condition EXISTS = new Condition() {
+        public boolean isSatisfied(VirtualMachineInfo info) {
+            return true;
+        }
+    };
+
+    /**
+     * Reads state from the hypervisor without the cache.
+     */
+    interface Reader {
+        /**
+         * Current state of the virtual machine, or null if it no longer exists.
+         */
+        VirtualMachineInfo readVirtualMachine(String moRef) throws Exception;
+
+        /**
+         * Current {@link #TASK_STATE} and {@link #TASK_ERROR} of the task.
+         */
+        Map<String, Object> readTask(String moRef) throws Exception;
+    }
+
+    private final InventoryCache cache;
+    private final Executor completions;
+    private final Executor calls;
+    private final ScheduledExecutorService scheduler;
+    private final Reader reader;
+    private final Map<String, PendingResult<TaskInfoState>> tasks = new ConcurrentHashMap<String, PendingResult<TaskInfoState>>();
+    private final List<StateWaiter> waiters = new CopyOnWriteArrayList<StateWaiter>();
+
+    /**
+     * @param completions single thread completing the futures in update order
+     * @param calls runs the calls on the hypervisor: filter removal and direct reads
+     * @param scheduler times the direct reads
+     */
+    VirtualMachineWatcher(InventoryCache cache, Executor completions, Executor calls,
+            ScheduledExecutorService scheduler, Reader reader) {
+        this.cache = cache;
+        this.completions = completions;
+        this.calls = calls;
+        this.scheduler = scheduler;
+        this.reader = reader;
+        cache.addListener(this);
+    }
+
+    /**
+     * Returns a future completed with {@link TaskInfoState#success} when the
+     * task finishes, or failed with the task error.
+     */
+    PendingResult<TaskInfoState> awaitTask(Task task) {
+        final String moRef = task.getMOR().getVal();
+        final PendingResult<TaskInfoState> result = new PendingResult<TaskInfoState>();
+        tasks.put(moRef, result);
+        result.addListener(new Runnable() {
+            public void run() {
+                tasks.remove(moRef);
+                dispatch(calls, new Runnable() {
+                    public void run() {
+                        cache.unwatch(moRef);
+                    }
+                });
+            }
+        });
+        try {
+            cache.watch(TASK, moRef, TASK_PROPERTIES);
+        } catch (Exception e) {
+            result.setException(e);
+            return result;
+        }
+        if (!cache.isTracking()) {
+            poll(result, new Read() {
+                public void read() throws Exception {
+                    complete(result, reader.readTask(moRef));
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Returns a future completed with the virtual machine state once the
+     * condition holds, immediately if it already does.
+     */
+    PendingResult<VirtualMachineInfo> await(String moRef, Condition condition) {
+        return register(new StateWaiter(moRef, null, condition));
+    }
+
+    /**
+     * Returns a future completed with the state of the named virtual machine
+     * once it shows up in the inventory, for instance after a clone.
+     */
+    PendingResult<VirtualMachineInfo> awaitCreated(String name) {
+        return register(new StateWaiter(null, name, EXISTS));
+    }
+
+    private PendingResult<VirtualMachineInfo> register(final StateWaiter waiter) {
+        waiters.add(waiter);
+        waiter.result.addListener(new Runnable() {
+            public void run() {
+                waiters.remove(waiter);
+            }
+        });
+        VirtualMachineInventory inventory = cache.getInventory();
+        if (inventory != null) {
+            waiter.check(inventory);
+        }
+        if (waiter.moRef != null && !cache.isTracking()) {
+            poll(waiter.result, new Read() {
+                public void read() throws Exception {
+                    waiter.check(reader.readVirtualMachine(waiter.moRef));
+                }
+            });
+        }
+        return waiter.result;
+    }
+
+    /**
+     * Called on the tracker thread, hands the update over to the completion
+     * executor.
+     */
+    public void onUpdate(final VirtualMachineInventory inventory, final List<InventorySource.Change> changes) {
+        dispatch(completions, new Runnable() {
+            public void run() {
+                for (InventorySource.Change change : changes) {
+                    if (TASK.equals(change.getType())) {
+                        PendingResult<TaskInfoState> result = tasks.get(change.getMoRef());
+                        if (result != null) {
+                            complete(result, change.getProperties());
+                        }
+                    }
+                }
+                for (StateWaiter waiter : waiters) {
+                    waiter.check(inventory);
+                }
+            }
+        });
+    }
+
+    private interface Read {
+        void read() throws Exception;
+    }
+
+    /**
+     * Reads the state directly every {@link #POLL_INTERVAL} until the wait is
+     * over or the cache is tracking changes again.
+     */
+    private void poll(final PendingResult<?> result, final Read read) {
+        dispatch(calls, new Runnable() {
+            public void run() {
+                if (result.isDone() || cache.isTracking()) {
+                    return;
+                }
+                try {
+                    read.read();
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Failed to read the state directly, retrying", e);
+                }
+                if (result.isDone() || cache.isTracking()) {
+                    return;
+                }
+                try {
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            poll(result, read);
+                        }
+                    }, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the hypervisor was stopped
+                }
+            }
+        });
+    }
+
+    private static void dispatch(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the hypervisor was stopped, nothing else will run it
+            task.run();
+        }
+    }
+
+    private static void complete(PendingResult<TaskInfoState> result, Map<String, Object> properties) {
+        Object state = properties.get(TASK_STATE);
+        if (state == null) {
+            return;
+        }
+        TaskInfoState taskState = state instanceof TaskInfoState ? (TaskInfoState) state : TaskInfoState.valueOf(state.toString());
+        if (taskState == TaskInfoState.success) {
+            result.set(taskState);
+        } else if (taskState == TaskInfoState.error) {
+            Object error = properties.get(TASK_ERROR);
+            if (error instanceof LocalizedMethodFault) {
+                LocalizedMethodFault fault = (LocalizedMethodFault) error;
+                result.setException(new VMWareException("Task failed: " + fault.getLocalizedMessage(), fault.getFault()));
+            } else {
+                result.setException(new VMWareException("Task failed", null));
+            }
+        }
+    }
+
+    private static final class StateWaiter {
+        private final String moRef;
+        private final String name;
+        private final Condition condition;
+        private final PendingResult<VirtualMachineInfo> result = new PendingResult<VirtualMachineInfo>();
+
+        StateWaiter(String moRef, String name, Condition condition) {
+            this.moRef = moRef;
+            this.name = name;
+            this.condition = condition;
+        }
+
+        void check(VirtualMachineInventory inventory) {
+            if (moRef == null) {
+                VirtualMachineInfo info = inventory.get(name);
+                if (info != null && condition.isSatisfied(info)) {
+                    result.set(info);
+                }
+                return;
+            }
+            check(inventory.getByMoRef(moRef));
+        }
+
+        void check(VirtualMachineInfo info) {
+            if (info == null) {
+                result.setException(new VMWareException("Virtual machine " + moRef + " no longer exists", null));
+            } else if (condition.isSatisfied(info)) {
+                result.set(info);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package jenkins.plugins.vijava;
+
+import hudson.model.Queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps idle members of a {@link VirtualMachinePool} powered on with VMware
+ * Tools running ahead of demand, so the first build of a burst does not wait
+ * for a cold boot.
+ *
+ * The number of warm members follows an exponentially weighted moving average
+ * of the jobs arriving in the queue for the pool's labels, bounded by the
+ * pool's <tt>minWarm</tt> and <tt>maxWarm</tt>. Surplus members are shut
+ * down again once they have been warm and idle for <tt>warmIdleMinutes</tt>.
+ *
+ * @author jbh
+ */
+class WarmPool {
+
+    private static final Logger LOGGER = Logger.getLogger(WarmPool.class.getName());
+    /**
+     * Weight of the latest sample in the arrival forecast.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final Hypervisor hypervisor;
+    private final VirtualMachinePool pool;
+    private double forecast;
+    private Set<Integer> queued = new HashSet<Integer>();
+    private final Map<String, Long> warmSince = new HashMap<String, Long>();
+    private final List<Future<?>> warming = new ArrayList<Future<?>>();
+    private boolean stopped;
+
+    WarmPool(Hypervisor hypervisor, VirtualMachinePool pool) {
+        this.hypervisor = hypervisor;
+        this.pool = pool;
+    }
+
+    /**
+     * Expected number of jobs arriving for the pool per maintenance period.
+     */
+    synchronized double getForecast() {
+        return forecast;
+    }
+
+    /**
+     * Number of warm members wanted right now.
+     */
+    synchronized int getTarget() {
+        return Math.min(pool.getMaxWarm(), Math.max(pool.getMinWarm(), (int) Math.round(forecast)));
+    }
+
+    /**
+     * Updates the forecast from the current queue and powers members on or
+     * off to meet it.
+     */
+    synchronized void maintain(VirtualMachineInventory inventory, Queue.Item[] items) {
+        if (stopped) {
+            return;
+        }
+        forecast = SMOOTHING * countArrivals(items) + (1 - SMOOTHING) * forecast;
+        int target = getTarget();
+
+        for (Iterator<Future<?>> it = warming.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        long now = System.currentTimeMillis();
+        List<VirtualMachineInfo> warm = new ArrayList<VirtualMachineInfo>();
+        List<VirtualMachineInfo> cold = new ArrayList<VirtualMachineInfo>();
+        for (VirtualMachineInfo info : hypervisor.getIdleMembers(pool, inventory)) {
+            if (info.isPoweredOn()) {
+                warm.add(info);
+                if (!warmSince.containsKey(info.getName())) {
+                    warmSince.put(info.getName(), now);
+                }
+            } else if (info.isPoweredOff()) {
+                cold.add(info);
+            }
+        }
+        Set<String> warmNames = new HashSet<String>();
+        for (VirtualMachineInfo info : warm) {
+            warmNames.add(info.getName());
+        }
+        warmSince.keySet().retainAll(warmNames);
+
+        int missing = target - warm.size() - warming.size();
+        while (missing > 0) {
+            String name = cold.isEmpty() ? null : cold.remove(0).getName();
+            Future<?> warmUp = hypervisor.warmUp(pool, name, inventory);
+            if (warmUp == null) {
+                break;
+            }
+            LOGGER.log(Level.INFO, "Warming up {0} for {1}, forecast {2}", new Object[] { name != null ? name : "a new clone",
+                    pool, forecast });
+            warming.add(warmUp);
+            missing--;
+        }
+
+        int surplus = warm.size() + warming.size() - target;
+        Collections.sort(warm, new Comparator<VirtualMachineInfo>() {
+            public int compare(VirtualMachineInfo a, VirtualMachineInfo b) {
+                return warmSince.get(a.getName()).compareTo(warmSince.get(b.getName()));
+            }
+        });
+        for (VirtualMachineInfo info : warm) {
+            if (surplus <= 0 || now - warmSince.get(info.getName()) < pool.getWarmIdleMinutes() * 60 * 1000L) {
+                break;
+            }
+            LOGGER.log(Level.INFO, "Shutting down {0}, warm for {1} minutes with no demand",
+                    new Object[] { info.getName(), (now - warmSince.get(info.getName())) / 60000 });
+            hypervisor.coolDown(pool, info.getName());
+            warmSince.remove(info.getName());
+            surplus--;
+        }
+    }
+
+    /**
+     * Cancels the warm ups still running and stops maintaining the pool, once
+     * the hypervisor is stopped. Warm members are left running.
+     */
+    synchronized void stop() {
+        stopped = true;
+        for (Future<?> warmUp : warming) {
+            warmUp.cancel(true);
+        }
+        warming.clear();
+    }
+
+    /**
+     * Counts jobs for the pool's labels that entered the queue since the last
+     * call. The queue is sampled, so jobs that come and go between two calls
+     * are not counted.
+     */
+    private int countArrivals(Queue.Item[] items) {
+        Set<Integer> current = new HashSet<Integer>();
+        int arrivals = 0;
+        for (Queue.Item item : items) {
+            if (pool.matches(item.getAssignedLabel())) {
+                current.add(item.id);
+                if (!queued.contains(item.id)) {
+                    arrivals++;
+                }
+            }
+        }
+        queued = current;
+        return arrivals;
+    }
+}
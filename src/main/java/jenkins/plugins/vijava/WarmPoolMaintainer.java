@@ -0,0 +1,29 @@
+package jenkins.plugins.vijava;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+
+/**
+ * Samples the build queue every minute and lets every {@link Hypervisor}
+ * resize its {@link WarmPool}s.
+ *
+ * @author jbh
+ */
+@Extension
+public class WarmPoolMaintainer extends PeriodicWork {
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        Queue.Item[] items = Hudson.getInstance().getQueue().getItems();
+        for (Hypervisor hypervisor : HypervisorRegistry.getAll()) {
+            hypervisor.maintainWarmPools(items);
+        }
+    }
+}
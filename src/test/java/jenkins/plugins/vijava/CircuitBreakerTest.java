@@ -0,0 +1,109 @@
+package jenkins.plugins.vijava;
+
+import java.net.ConnectException;
+import java.rmi.RemoteException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.vmware.vim25.NotAuthenticated;
+
+/**
+ * Opens, probes and closes a {@link CircuitBreaker} with short delays.
+ *
+ * @author jbh
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private ScheduledExecutorService scheduler;
+    private final AtomicBoolean reachable = new AtomicBoolean();
+    private final AtomicInteger probes = new AtomicInteger();
+    private CircuitBreaker breaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        breaker = new CircuitBreaker("vcenter", 3, 100, 400, scheduler, scheduler, new Callable<Void>() {
+            public Void call() throws Exception {
+                probes.incrementAndGet();
+                if (!reachable.get()) {
+                    throw new ConnectException("Connection refused");
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.succeeded(10);
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.check();
+
+        breaker.failed(new ConnectException("Connection refused"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.check();
+            fail("open breaker let a caller through");
+        } catch (VMWareException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("vcenter is unavailable after 3 failed attempts"));
+        }
+    }
+
+    public void testAnsweredCallsEndARunOfFailures() throws Exception {
+        // occasional read timeouts between many successful calls
+        for (int i = 0; i < 10; i++) {
+            breaker.failed(new RemoteException("java.net.SocketTimeoutException: Read timed out"));
+            breaker.failed(new RemoteException("java.net.SocketTimeoutException: Read timed out"));
+            breaker.reset();
+            breaker.reset();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.check();
+
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.failed(new ConnectException("Connection refused"));
+        breaker.failed(new ConnectException("Connection refused"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        breaker.reset();
+        assertEquals("an answer alone must not close an open breaker", CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testProbeClosesOnceReachable() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            breaker.failed(new ConnectException("Connection refused"));
+        }
+        Thread.sleep(250);
+        assertTrue(breaker.isOpen());
+        assertTrue(probes.get() >= 1);
+
+        reachable.set(true);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (breaker.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.check();
+    }
+
+    public void testOnlyTransportErrorsAreUnreachable() {
+        assertTrue(CircuitBreaker.isUnreachable(new ConnectException("Connection refused")));
+        assertTrue(CircuitBreaker.isUnreachable(new RemoteException("VI SDK invoke exception:java.net.SocketTimeoutException")));
+        assertTrue(CircuitBreaker.isUnreachable(new VMWareException("Failed to connect", new ConnectException("refused"))));
+        assertFalse(CircuitBreaker.isUnreachable(new NotAuthenticated()));
+        assertFalse(CircuitBreaker.isUnreachable(new VMWareException("No such snapshot", null)));
+    }
+}
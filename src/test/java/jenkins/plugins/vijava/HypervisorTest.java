@@ -28,22 +28,24 @@ public class HypervisorTest extends HudsonTestCase {
 
     public void testCreation() throws Exception {
          hp = new Hypervisor("vmhost4.corena.no", 443 , "", "vmadmin", "Flax07%");
+        hudson.clouds.add(hp);
         for (JenkinsVirtualMachine virtualMachine : hp.getVirtualMachines()) {
             VirtualMachine dom = virtualMachine.getHypervisor().getDomain(virtualMachine.getName());
             System.out.println(virtualMachine + dom.getRuntime().getPowerState().toString()+":"+dom.getGuest().getGuestState());
             if (dom.getName().equals("servicesci")) {
                 
-                new VirtualMachineLauncher(null,  null, dom.getName()).ensureIsPowerOn(System.out, dom);
+                new VirtualMachineLauncher(null,  virtualMachine.getHypervisor().getHypervisorDescription(), dom.getName()).ensureIsPowerOn(System.out, dom);
             }
             
         }
         Hypervisor hp2 = new Hypervisor("vc00.corenagroup.local", 443 , "", "asadmin", "Life77sys");
+        hudson.clouds.add(hp2);
         for (JenkinsVirtualMachine virtualMachine : hp2.getVirtualMachines()) {
             VirtualMachine dom = virtualMachine.getHypervisor().getDomain(virtualMachine.getName());
             System.out.println(virtualMachine + dom.getRuntime().getPowerState().toString()+":"+dom.getGuest().getGuestState());
             if (dom.getName().equals("servicesci")) {
                 
-                new VirtualMachineLauncher(null,  null, dom.getName()).ensureIsPowerOn(System.out, dom);
+                new VirtualMachineLauncher(null,  virtualMachine.getHypervisor().getHypervisorDescription(), dom.getName()).ensureIsPowerOn(System.out, dom);
             }
             
         }
@@ -0,0 +1,260 @@
+package jenkins.plugins.vijava;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineToolsStatus;
+
+/**
+ * Drives {@link InventoryCache} with a fake SDK feed replaying canned update sets.
+ *
+ * @author jbh
+ */
+public class InventoryCacheTest extends TestCase {
+
+    private ReplaySource source;
+    private InventoryCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        source = new ReplaySource();
+        cache = new InventoryCache("fake", source);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.stop();
+        super.tearDown();
+    }
+
+    public void testInitialSnapshot() throws Exception {
+        source.replay(update("1",
+                change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOff)),
+                change(InventorySource.Kind.ENTER, "vm-2", vm("build02", VirtualMachinePowerState.poweredOn))));
+        cache.start();
+
+        VirtualMachineInventory inventory = cache.awaitInventory(5000);
+        assertNotNull(inventory);
+        assertEquals(2, inventory.size());
+        assertEquals("build01", inventory.getAll().get(0).getName());
+        assertTrue(inventory.get("build02").isPoweredOn());
+        assertEquals(1, cache.getVersion());
+        assertTrue(cache.isTracking());
+        assertEquals(0, cache.getStaleness());
+    }
+
+    public void testAppliesDeltas() throws Exception {
+        source.replay(update("1",
+                change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOff)),
+                change(InventorySource.Kind.ENTER, "vm-2", vm("build02", VirtualMachinePowerState.poweredOn))));
+        source.replay(update("2",
+                change(InventorySource.Kind.MODIFY, "vm-1", property(VirtualMachineInfo.POWER_STATE, VirtualMachinePowerState.poweredOn))));
+        source.replay(update("3",
+                change(InventorySource.Kind.MODIFY, "vm-1", property(VirtualMachineInfo.TOOLS_STATUS, VirtualMachineToolsStatus.toolsOk)),
+                change(InventorySource.Kind.MODIFY, "vm-2", property(VirtualMachineInfo.NAME, "build00"))));
+        source.replay(update("4",
+                change(InventorySource.Kind.LEAVE, "vm-2", new HashMap<String, Object>()),
+                change(InventorySource.Kind.ENTER, "vm-3", vm("build03", VirtualMachinePowerState.suspended))));
+        cache.start();
+
+        assertTrue(source.awaitDrained(5000));
+        waitForVersion(4);
+
+        VirtualMachineInventory inventory = cache.getInventory();
+        assertEquals(2, inventory.size());
+        assertTrue(inventory.get("build01").isPoweredOn());
+        assertTrue(inventory.get("build01").isToolsRunning());
+        assertNull(inventory.get("build00"));
+        assertNull(inventory.get("build02"));
+        assertEquals("build03", inventory.getByMoRef("vm-3").getName());
+        assertEquals(Arrays.asList("", "1", "2", "3"), source.getWaitedVersions().subList(0, 4));
+    }
+
+    public void testWaitsAgainAfterTimedOutWait() throws Exception {
+        source.replay(update("1",
+                change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOff))));
+        source.replay(null);
+        source.replay(update("2",
+                change(InventorySource.Kind.MODIFY, "vm-1", property(VirtualMachineInfo.POWER_STATE, VirtualMachinePowerState.poweredOn))));
+        cache.start();
+
+        assertTrue(source.awaitDrained(5000));
+        waitForVersion(2);
+        assertTrue(cache.getInventory().get("build01").isPoweredOn());
+        assertTrue(cache.isTracking());
+        assertEquals(Arrays.asList("", "1", "1", "2"), source.getWaitedVersions().subList(0, 4));
+    }
+
+    public void testServesLastSnapshotWhileReconnecting() throws Exception {
+        source.replay(update("1",
+                change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOn))));
+        cache.start();
+
+        assertNotNull(cache.awaitInventory(5000));
+        source.fail();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.isTracking() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(cache.isTracking());
+        Thread.sleep(20);
+        assertTrue(cache.getStaleness() >= 20);
+        assertEquals(1, cache.getInventory().size());
+    }
+
+    public void testServesPreloadedSnapshotUntilFirstUpdate() throws Exception {
+        source.preload(new VirtualMachineInventory(Arrays.asList(
+                new VirtualMachineInfo("vm-1", vm("build01", VirtualMachinePowerState.poweredOff)))));
+        cache.start();
+
+        VirtualMachineInventory inventory = cache.awaitInventory(5000);
+        assertNotNull(inventory);
+        assertEquals(1, inventory.size());
+        assertFalse(cache.isTracking());
+
+        source.replay(update("1",
+                change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOn)),
+                change(InventorySource.Kind.ENTER, "vm-2", vm("build02", VirtualMachinePowerState.poweredOn))));
+        waitForVersion(2);
+        assertEquals(2, cache.getInventory().size());
+        assertTrue(cache.getInventory().get("build01").isPoweredOn());
+        assertTrue(cache.isTracking());
+    }
+
+    public void testRestoresStoredSnapshotAndStoresUpdates() throws Exception {
+        File file = File.createTempFile("inventory", ".ser.gz");
+        try {
+            InventoryStore store = new InventoryStore(file);
+            store.save(new VirtualMachineInventory(Arrays.asList(
+                    new VirtualMachineInfo("vm-1", vm("build01", VirtualMachinePowerState.poweredOff)))),
+                    System.currentTimeMillis() - 60000);
+            cache = new InventoryCache("fake", source, store);
+            cache.start();
+
+            assertEquals(1, cache.getInventory().size());
+            assertTrue(cache.getInventory().get("build01").isPoweredOff());
+            assertTrue(cache.getStaleness() >= 60000);
+
+            source.replay(update("1",
+                    change(InventorySource.Kind.ENTER, "vm-1", vm("build01", VirtualMachinePowerState.poweredOn)),
+                    change(InventorySource.Kind.ENTER, "vm-2", vm("build02", VirtualMachinePowerState.poweredOn))));
+            waitForVersion(2);
+            cache.stop();
+
+            VirtualMachineInventory stored = store.load().getInventory();
+            assertEquals(2, stored.size());
+            assertTrue(stored.get("build01").isPoweredOn());
+            assertEquals(cache.getInventory().get("build02"), stored.get("build02"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void waitForVersion(long version) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getVersion() < version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(version, cache.getVersion());
+    }
+
+    private static Map<String, Object> vm(String name, VirtualMachinePowerState powerState) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(VirtualMachineInfo.NAME, name);
+        properties.put(VirtualMachineInfo.POWER_STATE, powerState);
+        properties.put(VirtualMachineInfo.TOOLS_STATUS, VirtualMachineToolsStatus.toolsNotRunning);
+        properties.put(VirtualMachineInfo.GUEST_STATE, "notRunning");
+        return properties;
+    }
+
+    private static Map<String, Object> property(String path, Object value) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(path, value);
+        return properties;
+    }
+
+    private static InventorySource.Change change(InventorySource.Kind kind, String moRef, Map<String, Object> properties) {
+        return new InventorySource.Change(kind, VirtualMachineInfo.TYPE, moRef, properties);
+    }
+
+    private static InventorySource.Update update(String version, InventorySource.Change... changes) {
+        return new InventorySource.Update(version, Arrays.asList(changes));
+    }
+
+    /**
+     * Hands out the canned updates in order, then blocks like WaitForUpdates
+     * does when nothing changes.
+     */
+    private static class ReplaySource implements InventorySource {
+        private final LinkedList<Update> updates = new LinkedList<Update>();
+        private final List<String> waitedVersions = new ArrayList<String>();
+        private boolean failed;
+        private VirtualMachineInventory preloaded;
+
+        synchronized void replay(Update update) {
+            updates.add(update);
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        synchronized List<String> getWaitedVersions() {
+            return new ArrayList<String>(waitedVersions);
+        }
+
+        synchronized boolean awaitDrained(long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (!updates.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+            return updates.isEmpty();
+        }
+
+        synchronized void preload(VirtualMachineInventory inventory) {
+            preloaded = inventory;
+        }
+
+        public synchronized VirtualMachineInventory load() {
+            return preloaded;
+        }
+
+        public synchronized void open() throws Exception {
+            if (failed) {
+                throw new IllegalStateException("fake endpoint is down");
+            }
+        }
+
+        public synchronized Update waitForUpdates(String version) throws Exception {
+            waitedVersions.add(version);
+            while (updates.isEmpty() && !failed) {
+                wait();
+            }
+            if (failed) {
+                throw new IllegalStateException("fake endpoint is down");
+            }
+            return updates.removeFirst();
+        }
+
+        public synchronized void close() {
+            notifyAll();
+        }
+
+        public void watch(String type, String moRef, String[] paths) {
+        }
+
+        public void unwatch(String moRef) {
+        }
+    }
+}
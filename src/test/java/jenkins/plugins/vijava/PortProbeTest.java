@@ -0,0 +1,79 @@
+package jenkins.plugins.vijava;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link PortProbe} against a server socket on the loopback interface.
+ *
+ * @author jbh
+ */
+public class PortProbeTest extends TestCase {
+
+    private ScheduledExecutorService scheduler;
+    private ServerSocket server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        scheduler.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testConnectsToListeningPort() throws Exception {
+        server = listen(0);
+        PendingResult<Integer> result = probe(server.getLocalPort()).start();
+        assertEquals(Integer.valueOf(1), result.get(5, TimeUnit.SECONDS));
+    }
+
+    public void testRetriesUntilPortListens() throws Exception {
+        int port = freePort();
+        PendingResult<Integer> result = probe(port).start();
+        Thread.sleep(300);
+        assertFalse(result.isDone());
+
+        server = listen(port);
+        assertTrue(result.get(5, TimeUnit.SECONDS) > 1);
+    }
+
+    public void testStopsWhenCompletedFromOutside() throws Exception {
+        PendingResult<Integer> result = probe(freePort()).start();
+        Thread.sleep(200);
+        result.setException(new TimeoutException("launch timed out"));
+        Thread.sleep(200);
+        assertTrue(result.isDone());
+        assertTrue(scheduler.shutdownNow().size() <= 1);
+    }
+
+    private PortProbe probe(int port) {
+        return new PortProbe(scheduler, "127.0.0.1", port, 500, 50, 200);
+    }
+
+    private static ServerSocket listen(int port) throws Exception {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress("127.0.0.1", port));
+        return socket;
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = listen(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
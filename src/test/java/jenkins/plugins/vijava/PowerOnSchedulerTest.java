@@ -0,0 +1,79 @@
+package jenkins.plugins.vijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+/**
+ * Checks how many concurrent power ons {@link PowerOnScheduler} allows a host
+ * for the usage figures it knows, and that power ons of a stopped hypervisor
+ * fail instead of hanging.
+ *
+ * @author jbh
+ */
+public class PowerOnSchedulerTest extends TestCase {
+
+    private static final int MAX_PER_HOST = 4;
+
+    public void testAllowsMaximumBeforeFirstFiguresArrive() {
+        assertEquals(MAX_PER_HOST, PowerOnScheduler.getAllowance(null, MAX_PER_HOST, 2048));
+        assertEquals(MAX_PER_HOST, PowerOnScheduler.getAllowance(PowerOnScheduler.Headroom.REFRESHING, MAX_PER_HOST, 2048));
+    }
+
+    public void testAllowsMaximumWithoutMemoryFigures() {
+        PowerOnScheduler.Headroom noMemory = new PowerOnScheduler.Headroom(1000, 20000, 0, 0);
+        assertEquals(MAX_PER_HOST, PowerOnScheduler.getAllowance(noMemory, MAX_PER_HOST, 2048));
+    }
+
+    public void testLimitsByFreeMemory() {
+        PowerOnScheduler.Headroom host = new PowerOnScheduler.Headroom(1000, 20000, 60000, 65536);
+        assertEquals(2, PowerOnScheduler.getAllowance(host, MAX_PER_HOST, 2048));
+        PowerOnScheduler.Headroom idle = new PowerOnScheduler.Headroom(1000, 20000, 1000, 65536);
+        assertEquals(MAX_PER_HOST, PowerOnScheduler.getAllowance(idle, MAX_PER_HOST, 2048));
+        PowerOnScheduler.Headroom full = new PowerOnScheduler.Headroom(1000, 20000, 65536, 65536);
+        assertEquals(1, PowerOnScheduler.getAllowance(full, MAX_PER_HOST, 2048));
+    }
+
+    public void testKeepsKnownFiguresWhileRefreshing() {
+        PowerOnScheduler.Headroom host = new PowerOnScheduler.Headroom(1000, 20000, 60000, 65536);
+        assertEquals(2, PowerOnScheduler.getAllowance(host.refreshing(), MAX_PER_HOST, 2048));
+    }
+
+    public void testOneAtATimeOnSaturatedCpu() {
+        PowerOnScheduler.Headroom busy = new PowerOnScheduler.Headroom(19000, 20000, 1000, 65536);
+        assertEquals(1, PowerOnScheduler.getAllowance(busy, MAX_PER_HOST, 2048));
+    }
+
+    public void testFailsAdmittedPowerOnOfStoppedHypervisor() throws Exception {
+        Hypervisor hypervisor = new Hypervisor("vcenter", 443, null, "user", "secret");
+        hypervisor.stop();
+        try {
+            hypervisor.getLaunchExecutor();
+            fail("a stopped hypervisor must not start a new executor");
+        } catch (VMWareException expected) {
+        }
+
+        PowerOnScheduler scheduler = new PowerOnScheduler(hypervisor, MAX_PER_HOST, 2);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(VirtualMachineInfo.NAME, "build01");
+        properties.put(VirtualMachineInfo.POWER_STATE, VirtualMachinePowerState.poweredOff);
+        PendingResult<TaskInfoState> result = scheduler.powerOn(new VirtualMachineInfo("vm-1", properties),
+                new PrintStream(new ByteArrayOutputStream()));
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("power on of a stopped hypervisor must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VMWareException);
+        }
+        assertEquals(0, scheduler.getInFlight());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+}
@@ -0,0 +1,111 @@
+package jenkins.plugins.vijava;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Races callers for the same key through a {@link SingleFlight}.
+ *
+ * @author jbh
+ */
+public class SingleFlightTest extends TestCase {
+
+    private final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        Future<Integer> first = executor.submit(caller("vm-1", null));
+        waitUntilRunning("vm-1");
+        Future<Integer> second = executor.submit(caller("vm-1", null));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(1, flight.getSharedCount());
+        assertFalse(flight.isRunning("vm-1"));
+    }
+
+    public void testFailureIsSharedAndNotRemembered() throws Exception {
+        Future<Integer> first = executor.submit(caller("vm-1", new VMWareException("power on refused", null)));
+        waitUntilRunning("vm-1");
+        Future<Integer> second = executor.submit(caller("vm-1", null));
+        Thread.sleep(100);
+        release.countDown();
+
+        assertFailed(first);
+        assertFailed(second);
+        assertEquals(Integer.valueOf(2), flight.execute("vm-1", new Callable<Integer>() {
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        }));
+    }
+
+    public void testOtherKeysRunIndependently() throws Exception {
+        Future<Integer> first = executor.submit(caller("vm-1", null));
+        waitUntilRunning("vm-1");
+        assertEquals(Integer.valueOf(2), flight.execute("vm-2", new Callable<Integer>() {
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        }));
+        release.countDown();
+        assertEquals(Integer.valueOf(1), first.get(5, TimeUnit.SECONDS));
+    }
+
+    private Callable<Integer> caller(final String key, final Exception failure) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return flight.execute(key, new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int count = calls.incrementAndGet();
+                        release.await();
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        return count;
+                    }
+                });
+            }
+        };
+    }
+
+    private void waitUntilRunning(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!flight.isRunning(key) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertFailed(Future<Integer> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("expected the shared call to fail");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertTrue(e.getCause() instanceof VMWareException);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package jenkins.plugins.vijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Starts and stops a {@link VirtualMachineGroup} of virtual machines that
+ * become ready after a fixed delay each. No member completes before every
+ * member of the group has been started or is being stopped, so a group that
+ * handled its members one after the other fails instead of just being slow.
+ *
+ * @author jbh
+ */
+public class VirtualMachineGroupTest extends TestCase {
+
+    private ScheduledExecutorService scheduler;
+    private final List<String> cancelled = new CopyOnWriteArrayList<String>();
+    private final List<String> stopped = new CopyOnWriteArrayList<String>();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final PrintStream logger = new PrintStream(log, true);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = Executors.newScheduledThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Members named after the milliseconds they take to become ready, or
+     * "never" for one that does not. Each start or stop counts down
+     * <tt>arrived</tt>, and none completes before it has reached zero.
+     */
+    private VirtualMachineGroup.Members members(final CountDownLatch arrived) {
+        return new VirtualMachineGroup.Members() {
+            public PendingResult<?> start(String virtualMachineName) {
+                arrived.countDown();
+                final PendingResult<String> result = new PendingResult<String>();
+                if (!virtualMachineName.equals("never")) {
+                    scheduler.schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                if (arrived.await(5, TimeUnit.SECONDS)) {
+                                    result.set("ready");
+                                } else {
+                                    result.setException(new IllegalStateException("started one after the other"));
+                                }
+                            } catch (InterruptedException e) {
+                                result.setException(e);
+                            }
+                        }
+                    }, Long.parseLong(virtualMachineName), TimeUnit.MILLISECONDS);
+                }
+                return result;
+            }
+
+            public void cancel(String virtualMachineName, String reason) {
+                cancelled.add(virtualMachineName);
+            }
+
+            public void stop(String virtualMachineName) throws Exception {
+                arrived.countDown();
+                if (!arrived.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("stopped one after the other");
+                }
+                stopped.add(virtualMachineName);
+            }
+        };
+    }
+
+    public void testStartsAllAtOnceAndReportsSlowest() throws Exception {
+        Map<String, Long> ready = new VirtualMachineGroup(Arrays.asList("300", "100", "200"), members(new CountDownLatch(3)),
+                5000).start(logger);
+
+        assertEquals(3, ready.size());
+        assertTrue(ready.get("300") >= 300);
+        assertTrue(ready.get("100") < ready.get("300"));
+        assertTrue(log.toString(), log.toString().contains("3 of 3 virtual machines ready after "));
+        assertTrue(log.toString(), log.toString().contains("slowest was 300"));
+    }
+
+    public void testReportsMembersNotReadyInTime() throws Exception {
+        VirtualMachineGroup group = new VirtualMachineGroup(Arrays.asList("100", "never"), members(new CountDownLatch(2)), 300);
+        try {
+            group.start(logger);
+            fail("a member that never got ready was accepted");
+        } catch (VMWareException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 2 virtual machines failed to start"));
+            assertTrue(e.getMessage(), e.getMessage().contains("never not ready after"));
+        }
+        assertEquals(Arrays.asList("never"), cancelled);
+    }
+
+    public void testStopsAllAtOnce() throws Exception {
+        new VirtualMachineGroup(Arrays.asList("1", "2", "3", "4"), members(new CountDownLatch(4)), 1000).stop(logger);
+
+        assertEquals(4, stopped.size());
+    }
+
+    public void testParsesNames() {
+        assertEquals(Arrays.asList("db", "app-1", "app-2", "client"),
+                VirtualMachineGroup.parseNames(" db\napp-1, app-2\r\n\r\nclient\ndb"));
+        assertTrue(VirtualMachineGroup.parseNames(null).isEmpty());
+    }
+}
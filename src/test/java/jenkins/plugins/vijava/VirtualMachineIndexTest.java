@@ -0,0 +1,82 @@
+package jenkins.plugins.vijava;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Searches and pages the sorted names of a {@link VirtualMachineIndex}.
+ *
+ * @author jbh
+ */
+public class VirtualMachineIndexTest extends TestCase {
+
+    private VirtualMachineIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        List<VirtualMachineInfo> machines = new ArrayList<VirtualMachineInfo>();
+        String[] names = { "build01", "Build01", "BUILD01", "build02", "build10", "test01", "alpha" };
+        for (int i = 0; i < names.length; i++) {
+            machines.add(new VirtualMachineInfo("vm-" + i, vm(names[i])));
+        }
+        index = new VirtualMachineIndex(null, new VirtualMachineInventory(machines));
+    }
+
+    public void testPrefixSearchFindsEveryRepeatedKey() {
+        VirtualMachineIndex.Page page = index.search("build01", false, null, 0, 100);
+        assertEquals(3, page.getTotal());
+        assertEquals(3, page.getItems().size());
+
+        assertEquals(5, index.search("BUILD", false, null, 0, 100).getTotal());
+        assertEquals(1, index.search("build1", false, null, 0, 100).getTotal());
+        assertEquals(0, index.search("zulu", false, null, 0, 100).getTotal());
+        assertEquals(7, index.search("", false, null, 0, 100).getTotal());
+    }
+
+    public void testPagesThroughMatches() {
+        List<String> seen = new ArrayList<String>();
+        for (int offset = 0; offset < 5; offset += 2) {
+            VirtualMachineIndex.Page page = index.search("build", false, null, offset, 2);
+            assertEquals(5, page.getTotal());
+            for (VirtualMachineInfo info : page.getItems()) {
+                seen.add(info.getMoRef());
+            }
+        }
+        assertEquals(5, seen.size());
+        assertEquals(5, new HashSet<String>(seen).size());
+        assertEquals("build10", index.search("build", false, null, 4, 2).getItems().get(0).getName());
+    }
+
+    public void testSubstringSearchAndFilter() {
+        assertEquals(4, index.search("01", true, null, 0, 100).getTotal());
+        VirtualMachineIndex.Page page = index.search("build", false, new VirtualMachineIndex.Filter() {
+            public boolean accept(VirtualMachineInfo info) {
+                return info.getName().equals(info.getName().toLowerCase());
+            }
+        }, 0, 100);
+        assertEquals(3, page.getTotal());
+    }
+
+    public void testLowerBoundFindsFirstEqualKey() {
+        String[] keys = { "a", "b", "b", "b", "c" };
+        assertEquals(0, VirtualMachineIndex.lowerBound(keys, "a"));
+        assertEquals(1, VirtualMachineIndex.lowerBound(keys, "b"));
+        assertEquals(4, VirtualMachineIndex.lowerBound(keys, "bb"));
+        assertEquals(5, VirtualMachineIndex.lowerBound(keys, "d"));
+        assertEquals(0, VirtualMachineIndex.lowerBound(new String[0], "a"));
+        assertEquals(Arrays.asList("a", "b", "b", "b", "c"), Arrays.asList(keys));
+    }
+
+    private static Map<String, Object> vm(String name) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(VirtualMachineInfo.NAME, name);
+        return properties;
+    }
+}
@@ -0,0 +1,102 @@
+package jenkins.plugins.vijava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import junit.framework.TestCase;
+
+/**
+ * Shares virtual machines between builds through {@link VirtualMachineLeases}
+ * and stops them once the last build is done.
+ *
+ * @author jbh
+ */
+public class VirtualMachineLeasesTest extends TestCase {
+
+    private final List<String> stopped = new CopyOnWriteArrayList<String>();
+    private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+    private ScheduledExecutorService scheduler;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        file = File.createTempFile("leases", ".ser");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        file.delete();
+        super.tearDown();
+    }
+
+    private VirtualMachineLeases newLeases() {
+        return new VirtualMachineLeases(file, scheduler, scheduler, new VirtualMachineLeases.Stopper() {
+            public void stop(String hypervisorDescription, String virtualMachineName, PrintStream logger) {
+                stopped.add(hypervisorDescription + "/" + virtualMachineName);
+            }
+        });
+    }
+
+    public void testStopsOnlyAfterLastBuild() throws Exception {
+        VirtualMachineLeases leases = newLeases();
+        leases.acquire("vcenter", "build-vm", "job #1", true, 0);
+        leases.acquire("vcenter", "build-vm", "job #2", true, 0);
+
+        leases.release("vcenter", "build-vm", "job #1", logger);
+        assertTrue(stopped.isEmpty());
+        assertEquals(1, leases.getHolderCount("vcenter", "build-vm"));
+
+        leases.release("vcenter", "build-vm", "job #2", logger);
+        assertEquals(1, stopped.size());
+        assertEquals("vcenter/build-vm", stopped.get(0));
+        assertEquals(0, leases.getHolderCount("vcenter", "build-vm"));
+    }
+
+    public void testLeavesRunningWhenNoBuildAsksForStop() throws Exception {
+        VirtualMachineLeases leases = newLeases();
+        leases.acquire("vcenter", "build-vm", "job #1", false, 0);
+        leases.release("vcenter", "build-vm", "job #1", logger);
+        assertTrue(stopped.isEmpty());
+    }
+
+    public void testBuildWithinGracePeriodReusesRunningMachine() throws Exception {
+        VirtualMachineLeases leases = newLeases();
+        leases.acquire("vcenter", "build-vm", "job #1", true, 200);
+        leases.release("vcenter", "build-vm", "job #1", logger);
+        assertTrue(leases.isStopPending("vcenter", "build-vm"));
+
+        assertTrue(leases.acquire("vcenter", "build-vm", "job #2", true, 200));
+        Thread.sleep(400);
+        assertTrue(stopped.isEmpty());
+
+        leases.release("vcenter", "build-vm", "job #2", logger);
+        Thread.sleep(400);
+        assertEquals(1, stopped.size());
+        assertFalse(leases.isStopPending("vcenter", "build-vm"));
+    }
+
+    public void testStopsMachinesOfBuildsLostInRestart() throws Exception {
+        VirtualMachineLeases leases = newLeases();
+        leases.acquire("vcenter", "build-vm", "job #1", true, 100);
+        leases.acquire("vcenter", "other-vm", "job #2", false, 100);
+
+        VirtualMachineLeases restarted = newLeases();
+        restarted.restore(0);
+        assertEquals(0, restarted.getHolderCount("vcenter", "build-vm"));
+        assertTrue(restarted.isStopPending("vcenter", "build-vm"));
+        assertFalse(restarted.isStopPending("vcenter", "other-vm"));
+
+        Thread.sleep(400);
+        assertEquals(1, stopped.size());
+        assertEquals("vcenter/build-vm", stopped.get(0));
+    }
+}
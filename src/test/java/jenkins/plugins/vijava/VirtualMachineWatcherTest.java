@@ -0,0 +1,127 @@
+package jenkins.plugins.vijava;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineToolsStatus;
+
+/**
+ * Resolves waits of a {@link VirtualMachineWatcher} from updates and, while
+ * the inventory cache is not tracking, from direct reads.
+ *
+ * @author jbh
+ */
+public class VirtualMachineWatcherTest extends TestCase {
+
+    private final AtomicReference<VirtualMachinePowerState> powerState = new AtomicReference<VirtualMachinePowerState>(
+            VirtualMachinePowerState.poweredOff);
+    private final AtomicInteger reads = new AtomicInteger();
+    private ExecutorService completions;
+    private ExecutorService calls;
+    private ScheduledExecutorService scheduler;
+    private VirtualMachineWatcher watcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        completions = Executors.newSingleThreadExecutor(new NamedThreadFactory("watcher completions"));
+        calls = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // never started, so it is not tracking
+        InventoryCache cache = new InventoryCache("fake", new IdleSource());
+        watcher = new VirtualMachineWatcher(cache, completions, calls, scheduler, new VirtualMachineWatcher.Reader() {
+            public VirtualMachineInfo readVirtualMachine(String moRef) {
+                reads.incrementAndGet();
+                return new VirtualMachineInfo(moRef, vm("build01", powerState.get()));
+            }
+
+            public Map<String, Object> readTask(String moRef) {
+                return Collections.<String, Object> singletonMap(VirtualMachineWatcher.TASK_STATE, TaskInfoState.running);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        completions.shutdownNow();
+        calls.shutdownNow();
+        scheduler.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testReadsStateDirectlyWhileNotTracking() throws Exception {
+        powerState.set(VirtualMachinePowerState.poweredOn);
+        VirtualMachineInfo info = watcher.await("vm-1", VirtualMachineWatcher.POWERED_ON).get(5, TimeUnit.SECONDS);
+        assertTrue(info.isPoweredOn());
+        assertEquals(1, reads.get());
+    }
+
+    public void testCompletesOffTheUpdatingThread() throws Exception {
+        PendingResult<VirtualMachineInfo> result = watcher.await("vm-1", VirtualMachineWatcher.POWERED_ON);
+        final AtomicReference<String> completedOn = new AtomicReference<String>();
+        result.addListener(new Runnable() {
+            public void run() {
+                completedOn.set(Thread.currentThread().getName());
+            }
+        });
+
+        watcher.onUpdate(new VirtualMachineInventory(Arrays.asList(
+                new VirtualMachineInfo("vm-1", vm("build01", VirtualMachinePowerState.poweredOn)))),
+                Collections.<InventorySource.Change> emptyList());
+
+        assertTrue(result.get(5, TimeUnit.SECONDS).isPoweredOn());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (completedOn.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(completedOn.get());
+        assertTrue(completedOn.get(), completedOn.get().startsWith("watcher completions"));
+    }
+
+    private static Map<String, Object> vm(String name, VirtualMachinePowerState powerState) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(VirtualMachineInfo.NAME, name);
+        properties.put(VirtualMachineInfo.POWER_STATE, powerState);
+        properties.put(VirtualMachineInfo.TOOLS_STATUS, VirtualMachineToolsStatus.toolsNotRunning);
+        properties.put(VirtualMachineInfo.GUEST_STATE, "notRunning");
+        return properties;
+    }
+
+    /**
+     * Source of a cache that is never started.
+     */
+    private static class IdleSource implements InventorySource {
+        public void open() {
+        }
+
+        public VirtualMachineInventory load() {
+            return VirtualMachineInventory.EMPTY;
+        }
+
+        public Update waitForUpdates(String version) throws Exception {
+            Thread.sleep(Long.MAX_VALUE);
+            return null;
+        }
+
+        public void close() {
+        }
+
+        public void watch(String type, String moRef, String[] paths) {
+        }
+
+        public void unwatch(String moRef) {
+        }
+    }
+}